@@ -0,0 +1,85 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import org.apache.ivy.util.MessageLogger;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+/**
+ * Ant build listener which notifies the EndOfRunNotifier's listeners when the build it's added to finishes. Kept apart
+ * from EndOfRunNotifier so Ant is only needed on the classpath when the plugin is used from Ant.
+ */
+class AntEndOfRunListener implements BuildListener {
+
+  /**
+   * The logger of the build.
+   */
+  private final MessageLogger logger;
+
+  /**
+   * Constructs a new instance.
+   * 
+   * @param logger The logger of the build.
+   */
+  private AntEndOfRunListener(MessageLogger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * Adds a listener to the passed Ant project, unless it already has one.
+   * 
+   * @param antProject The Ant project.
+   * @param logger The logger of the build.
+   */
+  static void addTo(Object antProject, MessageLogger logger) {
+    Project project = (Project) antProject;
+    synchronized (project) {
+      for (Object listener : project.getBuildListeners()) {
+        if (listener instanceof AntEndOfRunListener) {
+          return;
+        }
+      }
+      project.addBuildListener(new AntEndOfRunListener(logger));
+    }
+  }
+
+  public void buildFinished(BuildEvent event) {
+    event.getProject().removeBuildListener(this);
+    EndOfRunNotifier.notifyListeners(logger);
+  }
+
+  public void buildStarted(BuildEvent event) {
+  }
+
+  public void messageLogged(BuildEvent event) {
+  }
+
+  public void targetFinished(BuildEvent event) {
+  }
+
+  public void targetStarted(BuildEvent event) {
+  }
+
+  public void taskFinished(BuildEvent event) {
+  }
+
+  public void taskStarted(BuildEvent event) {
+  }
+
+}
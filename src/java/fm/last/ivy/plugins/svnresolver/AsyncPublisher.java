@@ -0,0 +1,373 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.MessageLogger;
+
+import fm.last.ivy.plugins.svnresolver.PublishJournalEntry.JournalFile;
+
+/**
+ * Commits publishes recorded in a PublishJournal to Subversion on a background thread, in the order they were
+ * recorded. Any entries left in the journal by a previous process are committed when the publisher is started. If a
+ * publish fails, no further publishes are committed by this process, so a later publish can never be overwritten by an
+ * earlier one when the journal is replayed. The failed publish and all publishes after it stay in the journal for the
+ * next process to replay.
+ */
+public class AsyncPublisher {
+
+  /**
+   * Maximum time in milliseconds to wait at JVM exit for publishes which are still pending.
+   */
+  private static final long SHUTDOWN_TIMEOUT = 60000;
+
+  /**
+   * The repository to commit to.
+   */
+  private final SvnRepository repository;
+
+  /**
+   * The journal containing the publishes to commit.
+   */
+  private final PublishJournal journal;
+
+  /**
+   * Publishes waiting to be committed, in order.
+   */
+  private final LinkedList<PublishJournalEntry> queue = new LinkedList<PublishJournalEntry>();
+
+  /**
+   * Whether the publisher has been started.
+   */
+  private boolean started = false;
+
+  /**
+   * Whether a publish has failed, after which no further publishes are committed.
+   */
+  private boolean stopped = false;
+
+  /**
+   * The thread committing the publishes, null while there is nothing to commit. This isn't a daemon thread so the JVM
+   * doesn't exit normally before all queued publishes are committed.
+   */
+  private volatile Thread workerThread;
+
+  /**
+   * Hook which waits for pending publishes when the JVM exits.
+   */
+  private Thread shutdownHook;
+
+  /**
+   * The logger of the thread which started the publisher, used to report publishes which are left in the journal at
+   * JVM exit as no Ivy context is available then.
+   */
+  private MessageLogger logger;
+
+  /**
+   * The number of publishes which have been submitted but not finished yet.
+   */
+  private int pendingCount = 0;
+
+  /**
+   * The number of publishes which have been committed.
+   */
+  private int committedCount = 0;
+
+  /**
+   * The number of publishes which failed, these are left in the journal to be retried by the next process.
+   */
+  private int failedCount = 0;
+
+  /**
+   * The number of publishes which weren't committed because an earlier publish failed, these are left in the journal to
+   * be committed by the next process.
+   */
+  private int heldBackCount = 0;
+
+  /**
+   * The error the last failed publish failed with, null if none have failed.
+   */
+  private Exception lastError;
+
+  /**
+   * Constructs a new instance.
+   * 
+   * @param repository The repository to commit to.
+   * @param journal The journal containing the publishes to commit.
+   */
+  public AsyncPublisher(SvnRepository repository, PublishJournal journal) {
+    this.repository = repository;
+    this.journal = journal;
+  }
+
+  /**
+   * Starts the publisher if it hasn't been started yet, locking the journal and scheduling any entries already in it
+   * (left behind by a previous process) to be committed.
+   * 
+   * @throws IOException If the journal is in use by another publisher or an error occurs reading it.
+   */
+  public synchronized void start() throws IOException {
+    if (started) {
+      return;
+    }
+    journal.lock();
+    started = true;
+    stopped = false;
+    logger = IvyContext.getContext().getMessageLogger();
+    shutdownHook = new Thread("ivysvn-async-publish-shutdown") {
+      @Override
+      public void run() {
+        waitAtExit();
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+    List<PublishJournalEntry> entries = journal.getEntries();
+    if (!entries.isEmpty()) {
+      Message.info("Replaying " + entries.size() + " publishes from journal " + journal.getDirectory());
+    }
+    for (PublishJournalEntry entry : entries) {
+      submit(entry);
+    }
+  }
+
+  /**
+   * Schedules a completed journal entry to be committed. If an earlier publish has failed the entry is left in the
+   * journal instead.
+   * 
+   * @param entry The journal entry.
+   */
+  public synchronized void submit(PublishJournalEntry entry) {
+    if (stopped) {
+      heldBackCount++;
+      Message.warn("Not publishing " + entry.getModules() + " as an earlier background publish failed, leaving it in "
+          + "journal " + entry.getFolder());
+      return;
+    }
+    pendingCount++;
+    queue.add(entry);
+    if (workerThread == null) {
+      workerThread = new Thread("ivysvn-async-publish") {
+        @Override
+        public void run() {
+          commitQueued();
+        }
+      };
+      workerThread.start();
+    }
+  }
+
+  /**
+   * Commits queued publishes until the queue is empty or a publish fails. Runs on the worker thread.
+   */
+  private void commitQueued() {
+    while (true) {
+      PublishJournalEntry entry;
+      synchronized (this) {
+        if (queue.isEmpty()) {
+          workerThread = null;
+          return;
+        }
+        entry = queue.removeFirst();
+      }
+      Exception error = null;
+      try {
+        publish(entry);
+        entry.delete();
+      } catch (Exception e) {
+        Message.error("Background publish of " + entry.getModules() + " failed, leaving it and any later publishes in "
+            + "journal " + journal.getDirectory() + ": " + e.getMessage());
+        error = e;
+      }
+      finished(error);
+    }
+  }
+
+  /**
+   * Records that a publish has finished.
+   * 
+   * @param error The error the publish failed with, or null if it was committed.
+   */
+  private synchronized void finished(Exception error) {
+    pendingCount--;
+    if (error == null) {
+      committedCount++;
+    } else {
+      failedCount++;
+      lastError = error;
+      stopped = true;
+      heldBackCount += queue.size();
+      pendingCount -= queue.size();
+      queue.clear();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Waits for pending publishes when the JVM exits, reporting any which are left in the journal.
+   */
+  private void waitAtExit() {
+    boolean finished = false;
+    try {
+      finished = waitForPublishes(SHUTDOWN_TIMEOUT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (!finished || failedCount > 0) {
+        logger.warn((pendingCount + failedCount + heldBackCount) + " background publishes were not committed, they "
+            + "are left in journal " + journal.getDirectory() + " for the next process using it");
+      }
+    }
+  }
+
+  /**
+   * Stops the publisher once all pending publishes have finished, releasing the journal so another publisher can use
+   * it.
+   * 
+   * @throws InterruptedException If interrupted while waiting for pending publishes.
+   * @throws IOException If an error occurs releasing the journal.
+   */
+  public void close() throws InterruptedException, IOException {
+    waitForPublishes(0);
+    synchronized (this) {
+      if (!started) {
+        return;
+      }
+      started = false;
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // JVM is already exiting
+      }
+      journal.unlock();
+    }
+  }
+
+  /**
+   * Commits a journal entry, repeating the sequence of publish calls which recorded it.
+   * 
+   * @param entry The journal entry.
+   * @throws IOException If an error occurs committing the entry.
+   */
+  private void publish(PublishJournalEntry entry) throws IOException {
+    List<ModuleRevisionId> modules = entry.getModules();
+    boolean group = modules.size() > 1;
+    boolean committed = false;
+    try {
+      if (group) {
+        repository.beginGroupPublishTransaction();
+      }
+      for (int i = 0; i < modules.size(); i++) {
+        repository.beginPublishTransaction(modules.get(i));
+        for (JournalFile file : entry.getFiles(i)) {
+          repository.put(file.getFile(), file.getDestination(), file.isOverwrite());
+          for (String algorithm : file.getChecksumAlgorithms()) {
+            repository.putChecksum(file.getDestination(), algorithm, file.isOverwrite());
+          }
+        }
+        repository.commitPublishTransaction();
+      }
+      if (group) {
+        repository.commitGroupPublishTransaction();
+      }
+      committed = true;
+    } finally {
+      if (!committed) {
+        if (group) {
+          repository.abortGroupPublishTransaction();
+        } else {
+          repository.abortPublishTransaction();
+        }
+      }
+    }
+  }
+
+  /**
+   * Determines whether the calling thread is the one committing publishes.
+   * 
+   * @return true if called from the background thread.
+   */
+  public boolean isWorkerThread() {
+    return Thread.currentThread() == workerThread;
+  }
+
+  /**
+   * Waits for all submitted publishes to finish.
+   * 
+   * @param timeout Maximum time to wait in milliseconds, 0 to wait forever.
+   * @return true if all publishes finished, false if the timeout expired first.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public synchronized boolean waitForPublishes(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (pendingCount > 0) {
+      if (timeout == 0) {
+        wait();
+      } else {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of publishes which have been submitted but not finished yet
+   */
+  public synchronized int getPendingCount() {
+    return pendingCount;
+  }
+
+  /**
+   * @return the number of publishes which have been committed
+   */
+  public synchronized int getCommittedCount() {
+    return committedCount;
+  }
+
+  /**
+   * @return the number of publishes which failed and have been left in the journal
+   */
+  public synchronized int getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * @return the number of publishes which weren't committed because an earlier publish failed, and have been left in
+   *         the journal
+   */
+  public synchronized int getHeldBackCount() {
+    return heldBackCount;
+  }
+
+  /**
+   * @return the error the last failed publish failed with, null if none have failed
+   */
+  public synchronized Exception getLastError() {
+    return lastError;
+  }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Limits the rate at which data is transferred through the streams it wraps using a token bucket. The bucket holds up
+ * to one second's worth of data (or BURST_MINIMUM bytes, whichever is larger) so short bursts are let through at full
+ * speed, while sustained transfers are slowed to the limit. All streams wrapped by the same limiter share its rate, and
+ * the rate can be changed at any time, affecting transfers already in progress.
+ */
+public class BandwidthLimiter {
+
+  /**
+   * Minimum number of bytes that can be transferred in a burst.
+   */
+  static final long BURST_MINIMUM = 64 * 1024;
+
+  /**
+   * The maximum rate in bytes per second, 0 for no limit.
+   */
+  private long bytesPerSecond = 0;
+
+  /**
+   * The number of bytes which can currently be transferred without waiting, negative if transfers in progress have
+   * used more than were available and must wait for the bucket to refill.
+   */
+  private double tokens = 0;
+
+  /**
+   * Time in nanoseconds at which tokens were last added to the bucket.
+   */
+  private long refilledAt = System.nanoTime();
+
+  /**
+   * Sets the maximum rate at which data is transferred.
+   *
+   * @param bytesPerSecond The rate in bytes per second, 0 for no limit.
+   */
+  public synchronized void setBytesPerSecond(long bytesPerSecond) {
+    if (bytesPerSecond < 0) {
+      throw new IllegalArgumentException("Bandwidth limit cannot be negative");
+    }
+    refill();
+    if (this.bytesPerSecond == 0) { // start with a full bucket
+      tokens = getCapacity(bytesPerSecond);
+    }
+    this.bytesPerSecond = bytesPerSecond;
+    tokens = Math.min(tokens, getCapacity(bytesPerSecond));
+  }
+
+  /**
+   * @return The maximum rate in bytes per second, 0 for no limit.
+   */
+  public synchronized long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Gets the size of the bucket for the passed rate.
+   *
+   * @param rate The rate in bytes per second.
+   * @return The maximum number of bytes that can be transferred in a burst.
+   */
+  private static long getCapacity(long rate) {
+    return Math.max(rate, BURST_MINIMUM);
+  }
+
+  /**
+   * Adds the tokens accumulated since the bucket was last refilled.
+   */
+  private void refill() {
+    long now = System.nanoTime();
+    if (bytesPerSecond > 0) {
+      tokens = Math.min(getCapacity(bytesPerSecond), tokens + (now - refilledAt) * bytesPerSecond / 1e9);
+    }
+    refilledAt = now;
+  }
+
+  /**
+   * Takes tokens for data which is about to be transferred, waiting if the bucket doesn't hold enough of them.
+   *
+   * @param length The number of bytes to be transferred.
+   * @throws InterruptedIOException If interrupted while waiting.
+   */
+  public void acquire(long length) throws InterruptedIOException {
+    long waitNanos = 0;
+    synchronized (this) {
+      if (bytesPerSecond == 0) {
+        return;
+      }
+      refill();
+      tokens -= length; // go into debt rather than splitting the transfer, later transfers wait for it to be paid off
+      if (tokens < 0) {
+        waitNanos = (long) (-tokens * 1e9 / bytesPerSecond);
+      }
+    }
+    if (waitNanos > 0) {
+      try {
+        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+      } catch (InterruptedException e) {
+        throw (InterruptedIOException) new InterruptedIOException("Interrupted while limiting bandwidth").initCause(e);
+      }
+    }
+  }
+
+  /**
+   * Wraps a stream which data is being read from, limiting the rate at which data can be read.
+   *
+   * @param input The stream to wrap.
+   * @return The wrapped stream.
+   */
+  public InputStream wrap(InputStream input) {
+    return new FilterInputStream(input) {
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+          acquire(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+          acquire(count);
+        }
+        return count;
+      }
+
+    };
+  }
+
+  /**
+   * Wraps a stream which data is being written to, limiting the rate at which data can be written.
+   *
+   * @param output The stream to wrap.
+   * @return The wrapped stream.
+   */
+  public OutputStream wrap(OutputStream output) {
+    return new FilterOutputStream(output) {
+
+      @Override
+      public void write(int b) throws IOException {
+        acquire(1);
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        acquire(len);
+        out.write(b, off, len);
+      }
+
+    };
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.ivy.util.ChecksumHelper;
+
+/**
+ * InputStream that calculates one or more checksums of the data read through it, so checksums can be generated while
+ * data is being streamed elsewhere instead of requiring a separate read of the data.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+  /**
+   * Mapping of Ivy checksum algorithm names to Java digest algorithm names.
+   */
+  private static final Map<String, String> DIGEST_ALGORITHMS = new HashMap<String, String>();
+
+  static {
+    DIGEST_ALGORITHMS.put("md5", "MD5");
+    DIGEST_ALGORITHMS.put("sha1", "SHA-1");
+  }
+
+  /**
+   * Digests being calculated, where the key is the Ivy checksum algorithm name.
+   */
+  private Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+
+  /**
+   * Whether the end of the stream has been reached.
+   */
+  private boolean complete = false;
+
+  /**
+   * Constructs a new instance.
+   *
+   * @param in The stream to calculate checksums for.
+   * @param algorithms The Ivy names of the checksum algorithms to calculate (e.g. "md5", "sha1").
+   * @throws IOException If any of the algorithms are not supported.
+   */
+  public ChecksumInputStream(InputStream in, Iterable<String> algorithms) throws IOException {
+    super(in);
+    for (String algorithm : algorithms) {
+      digests.put(algorithm, createDigest(algorithm));
+    }
+  }
+
+  /**
+   * Creates a digest for the passed Ivy checksum algorithm.
+   *
+   * @param algorithm The Ivy name of the checksum algorithm.
+   * @return A digest.
+   * @throws IOException If the algorithm is not supported.
+   */
+  private static MessageDigest createDigest(String algorithm) throws IOException {
+    String digestAlgorithm = DIGEST_ALGORITHMS.get(algorithm);
+    if (digestAlgorithm == null) {
+      throw new IOException("Unknown checksum algorithm: " + algorithm);
+    }
+    try {
+      return MessageDigest.getInstance(digestAlgorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw (IOException) new IOException("Checksum algorithm not supported: " + algorithm).initCause(e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b == -1) {
+      complete = true;
+    } else {
+      for (MessageDigest digest : digests.values()) {
+        digest.update((byte) b);
+      }
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int count = super.read(b, off, len);
+    if (count == -1) {
+      complete = true;
+    } else {
+      for (MessageDigest digest : digests.values()) {
+        digest.update(b, off, count);
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    throw new IOException("Skipping not supported while calculating checksums");
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /**
+   * Returns whether all the data has been read, in which case the checksums are available.
+   *
+   * @return true if all data has been read, false otherwise.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Gets the calculated checksums. Can only be called once all data has been read.
+   *
+   * @return The checksums as hex strings, keyed by Ivy checksum algorithm name.
+   * @throws IllegalStateException If not all data has been read.
+   */
+  public Map<String, String> getChecksums() {
+    if (!complete) {
+      throw new IllegalStateException("Checksums not available until all data has been read");
+    }
+    Map<String, String> checksums = new HashMap<String, String>();
+    for (Entry<String, MessageDigest> entry : digests.entrySet()) {
+      checksums.put(entry.getKey(), ChecksumHelper.byteArrayToHexString(entry.getValue().digest()));
+    }
+    return checksums;
+  }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.ivy.util.Message;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNURL;
+
+/**
+ * Limits the number of concurrent requests made to a Subversion server, requests over the limit wait until a request
+ * in progress finishes. There is one limiter per server (protocol, host and port), shared by all repositories on it.
+ * The limit can be adapted to the server's behaviour: it is increased additively while requests succeed with a latency
+ * close to the lowest latency seen for their type of request, and decreased multiplicatively when requests fail or
+ * their latency rises, so that many clients sharing a server back off when it becomes overloaded. Latencies are only
+ * compared with those of the same type, as e.g. listing a folder normally takes longer than looking up a file.
+ * <p>
+ * Requests are either metadata requests (e.g. descriptor retrievals and existence checks) or bulk requests (e.g.
+ * artifact downloads and commits). Queued metadata requests are let through before queued bulk requests, since a
+ * resolve can't find further dependencies until they finish, but a share of the limit is reserved for bulk requests so
+ * they are never starved.
+ */
+public class ConcurrencyLimiter {
+
+  /**
+   * Limiters keyed by server, see getKey().
+   */
+  private static final Map<String, ConcurrencyLimiter> instances = new HashMap<String, ConcurrencyLimiter>();
+
+  /**
+   * Limit used when adaptive limiting starts, unless the maximum limit is lower.
+   */
+  static final int INITIAL_LIMIT = 4;
+
+  /**
+   * Factor the limit is multiplied by when a request fails.
+   */
+  private static final double FAILURE_BACKOFF = 0.5;
+
+  /**
+   * Factor the limit is multiplied by when a request's latency is too far above the lowest latency seen.
+   */
+  private static final double LATENCY_BACKOFF = 0.9;
+
+  /**
+   * Multiple of the lowest latency seen above which a request's latency is taken as a sign of overload.
+   */
+  private static final double LATENCY_TOLERANCE = 2.0;
+
+  /**
+   * Rate at which the lowest latency moves towards each latency sample, so it recovers if the network changes.
+   */
+  private static final double MIN_LATENCY_DRIFT = 0.01;
+
+  /**
+   * Share of the limit reserved for bulk requests while metadata requests are queued, at least one request.
+   */
+  static final double BULK_SHARE = 0.25;
+
+  /**
+   * Key identifying the server this limiter is for.
+   */
+  private final String key;
+
+  /**
+   * The maximum limit.
+   */
+  private int maxLimit;
+
+  /**
+   * Whether the limit is adapted to the server's behaviour, if false the limit is always the maximum limit.
+   */
+  private boolean adaptive;
+
+  /**
+   * The current limit, fractional so that it can be increased by less than one request at a time.
+   */
+  private double limit;
+
+  /**
+   * Number of requests currently in progress.
+   */
+  private int inFlight = 0;
+
+  /**
+   * Number of bulk requests currently in progress.
+   */
+  private int bulkInFlight = 0;
+
+  /**
+   * Number of metadata requests waiting for a request in progress to finish.
+   */
+  private int metadataQueueDepth = 0;
+
+  /**
+   * Number of bulk requests waiting for a request in progress to finish.
+   */
+  private int bulkQueueDepth = 0;
+
+  /**
+   * The lowest latency seen in nanoseconds for each type of request.
+   */
+  private final Map<String, Double> minLatencies = new HashMap<String, Double>();
+
+  /**
+   * Constructs a new instance.
+   *
+   * @param key Key identifying the server this limiter is for.
+   * @param maxLimit The maximum number of concurrent requests.
+   * @param adaptive Whether the limit is adapted to the server's behaviour.
+   */
+  ConcurrencyLimiter(String key, int maxLimit, boolean adaptive) {
+    this.key = key;
+    limit = adaptive ? Math.min(INITIAL_LIMIT, maxLimit) : maxLimit;
+    configure(maxLimit, adaptive);
+  }
+
+  /**
+   * Gets the key identifying the server the passed URL belongs to.
+   *
+   * @param url The URL.
+   * @return The key, in the form protocol://host:port.
+   */
+  public static String getKey(SVNURL url) {
+    return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+  }
+
+  /**
+   * Gets the limiter for the passed key, creating it if necessary.
+   *
+   * @param key Key identifying the server.
+   * @param maxLimit The maximum number of concurrent requests.
+   * @param adaptive Whether the limit is adapted to the server's behaviour.
+   * @return The limiter, configured with the passed values.
+   */
+  public static ConcurrencyLimiter getInstance(String key, int maxLimit, boolean adaptive) {
+    synchronized (instances) {
+      ConcurrencyLimiter limiter = instances.get(key);
+      if (limiter == null) {
+        limiter = new ConcurrencyLimiter(key, maxLimit, adaptive);
+        instances.put(key, limiter);
+      } else {
+        limiter.configure(maxLimit, adaptive);
+      }
+      return limiter;
+    }
+  }
+
+  /**
+   * Gets the limiter for the passed key if it has been created.
+   *
+   * @param key Key identifying the server.
+   * @return The limiter, null if there is none.
+   */
+  public static ConcurrencyLimiter getExistingInstance(String key) {
+    synchronized (instances) {
+      return instances.get(key);
+    }
+  }
+
+  /**
+   * Gets all limiters which have been created.
+   *
+   * @return The limiters.
+   */
+  public static Collection<ConcurrencyLimiter> getInstances() {
+    synchronized (instances) {
+      return new ArrayList<ConcurrencyLimiter>(instances.values());
+    }
+  }
+
+  /**
+   * Sets the maximum limit and whether the limit is adapted. An adapted limit is kept, only being reduced if it is now
+   * above the maximum, so repositories on the same server don't undo what has been learned about it.
+   *
+   * @param maxLimit The maximum number of concurrent requests.
+   * @param adaptive Whether the limit is adapted to the server's behaviour.
+   */
+  synchronized void configure(int maxLimit, boolean adaptive) {
+    if (maxLimit < 1) {
+      throw new IllegalArgumentException("Maximum concurrent requests must be at least 1");
+    }
+    if (this.maxLimit != maxLimit || this.adaptive != adaptive) {
+      this.maxLimit = maxLimit;
+      this.adaptive = adaptive;
+      limit = adaptive ? Math.min(limit, maxLimit) : maxLimit;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Waits until a request can be made without exceeding the limit. Every successful call must be followed by a call to
+   * release(). The calling thread's operation deadline (if any) limits how long this waits.
+   *
+   * @param bulk Whether the request is a bulk request, as opposed to a metadata request.
+   * @throws InterruptedException If interrupted while waiting.
+   * @throws SVNCancelException If the calling thread's operation deadline passes while waiting.
+   */
+  public synchronized void acquire(boolean bulk) throws InterruptedException, SVNCancelException {
+    if (!canProceed(bulk)) {
+      if (bulk) {
+        bulkQueueDepth++;
+      } else {
+        metadataQueueDepth++;
+      }
+      Message.debug("Waiting to make " + (bulk ? "bulk" : "metadata") + " request to " + key + " (limit="
+          + (int) limit + ", queued=" + getQueueDepth() + ")");
+      try {
+        while (!canProceed(bulk)) {
+          long remaining = OperationDeadline.getRemaining();
+          if (remaining == Long.MAX_VALUE) {
+            wait();
+          } else {
+            OperationDeadline.check();
+            wait(Math.max(1, remaining));
+          }
+        }
+      } catch (SVNCancelException e) {
+        notifyAll(); // leaving the queue may let other requests through
+        throw e;
+      } finally {
+        if (bulk) {
+          bulkQueueDepth--;
+        } else {
+          metadataQueueDepth--;
+        }
+      }
+    }
+    inFlight++;
+    if (bulk) {
+      bulkInFlight++;
+    }
+  }
+
+  /**
+   * Determines whether a request can be made now. Metadata requests go first unless bulk requests are queued and
+   * haven't got their reserved share of the limit, in which case a slot is kept free for them.
+   *
+   * @param bulk Whether the request is a bulk request.
+   * @return true if the request can be made, false if it must wait.
+   */
+  private boolean canProceed(boolean bulk) {
+    int currentLimit = (int) limit;
+    if (inFlight >= currentLimit) {
+      return false;
+    }
+    int reservedBulk = Math.max(1, (int) (currentLimit * BULK_SHARE));
+    if (bulk) {
+      return metadataQueueDepth == 0 || bulkInFlight < reservedBulk;
+    }
+    int unusedReservation = bulkQueueDepth == 0 ? 0 : Math.max(0, reservedBulk - bulkInFlight);
+    return inFlight < currentLimit - unusedReservation;
+  }
+
+  /**
+   * Records that a request has finished and adapts the limit based on its outcome.
+   *
+   * @param type The type of request (e.g. "list"), its latency is only compared with those of the same type.
+   * @param latency The time the request took in nanoseconds, or a negative number if the time depends on something
+   *          other than the server's load (e.g. the amount of data transferred) and shouldn't be used to adapt the
+   *          limit.
+   * @param failed Whether the request failed because of a problem communicating with the server.
+   * @param bulk Whether the request was a bulk request, must match the value passed to acquire().
+   */
+  public synchronized void release(String type, long latency, boolean failed, boolean bulk) {
+    inFlight--;
+    if (bulk) {
+      bulkInFlight--;
+    }
+    if (adaptive) {
+      if (failed) {
+        limit = Math.max(1, limit * FAILURE_BACKOFF);
+      } else if (latency >= 0) {
+        Double previousMinLatency = minLatencies.get(type);
+        double minLatency = previousMinLatency == null ? latency : Math.min(latency, previousMinLatency
+            + (latency - previousMinLatency) * MIN_LATENCY_DRIFT);
+        minLatencies.put(type, minLatency);
+        if (latency > minLatency * LATENCY_TOLERANCE) {
+          limit = Math.max(1, limit * LATENCY_BACKOFF);
+        } else {
+          limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+      } else {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * @return Key identifying the server this limiter is for.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return The current maximum number of concurrent requests.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return The number of requests currently in progress.
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * @return The number of requests waiting for a request in progress to finish.
+   */
+  public synchronized int getQueueDepth() {
+    return metadataQueueDepth + bulkQueueDepth;
+  }
+
+  /**
+   * @return The number of bulk requests currently in progress.
+   */
+  public synchronized int getBulkInFlight() {
+    return bulkInFlight;
+  }
+
+  /**
+   * @return The number of metadata requests waiting for a request in progress to finish.
+   */
+  public synchronized int getMetadataQueueDepth() {
+    return metadataQueueDepth;
+  }
+
+  /**
+   * @return The number of bulk requests waiting for a request in progress to finish.
+   */
+  public synchronized int getBulkQueueDepth() {
+    return bulkQueueDepth;
+  }
+
+}
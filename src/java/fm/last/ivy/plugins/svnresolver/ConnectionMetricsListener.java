@@ -0,0 +1,251 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ivy.util.Message;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.ISVNConnectionListener;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+/**
+ * Connection listener which tracks the connections opened by repositories, per host. A connection opened by a
+ * repository which has had a connection before is counted as a reconnect, these are mostly caused by
+ * setLocation(url, true) closing the session, and each one costs a new connection and authentication handshake. Note
+ * that SVNKit only notifies listeners of connections for the svn:// and http(s):// protocols, not for file://.
+ */
+public class ConnectionMetricsListener implements ISVNConnectionListener {
+
+  /**
+   * The instance registered on every repository created by SvnUtils.
+   */
+  private static final ConnectionMetricsListener instance = new ConnectionMetricsListener();
+
+  /**
+   * Connection statistics, keyed by host.
+   */
+  private final ConcurrentMap<String, HostConnections> hosts = new ConcurrentHashMap<String, HostConnections>();
+
+  /**
+   * The connection state of each repository which has opened a connection, weakly keyed so repositories can be
+   * garbage collected.
+   */
+  private final Map<SVNRepository, Connection> connections = Collections
+      .synchronizedMap(new WeakHashMap<SVNRepository, Connection>());
+
+  /**
+   * Constructs a new instance, use getInstance() to get the instance registered on every repository.
+   */
+  ConnectionMetricsListener() {
+  }
+
+  /**
+   * Gets the instance registered on every repository created by SvnUtils.
+   *
+   * @return The instance.
+   */
+  public static ConnectionMetricsListener getInstance() {
+    return instance;
+  }
+
+  /**
+   * Gets the key which connections to the host of the passed URL are tracked under.
+   *
+   * @param url The URL.
+   * @return The protocol, host and port of the URL.
+   */
+  public static String getHostKey(SVNURL url) {
+    return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+  }
+
+  /**
+   * Gets the connection statistics for a host.
+   *
+   * @param url A URL on the host.
+   * @return The statistics, which are all 0 if no connections have been opened to the host.
+   */
+  public HostConnections getHostConnections(SVNURL url) {
+    String hostKey = getHostKey(url);
+    HostConnections hostConnections = hosts.get(hostKey);
+    if (hostConnections == null) {
+      hostConnections = new HostConnections();
+      HostConnections existing = hosts.putIfAbsent(hostKey, hostConnections);
+      if (existing != null) {
+        hostConnections = existing;
+      }
+    }
+    return hostConnections;
+  }
+
+  /**
+   * Records a connection being opened.
+   */
+  public void connectionOpened(SVNRepository repository) {
+    SVNURL location = repository.getLocation();
+    HostConnections host = getHostConnections(location);
+    boolean reconnect;
+    synchronized (connections) {
+      Connection connection = connections.get(repository);
+      reconnect = connection != null;
+      if (connection == null) {
+        connection = new Connection();
+        connections.put(repository, connection);
+      } else if (connection.openedAt != null) { // already counted as open
+        return;
+      }
+      connection.openedAt = System.nanoTime();
+      connection.host = host;
+    }
+    host.opened.incrementAndGet();
+    if (reconnect) {
+      host.reconnects.incrementAndGet();
+    }
+    int open = host.open.incrementAndGet();
+    int peak = host.peakOpen.get();
+    while (open > peak && !host.peakOpen.compareAndSet(peak, open)) {
+      peak = host.peakOpen.get();
+    }
+    Message.debug((reconnect ? "Reconnected to " : "Connected to ") + getHostKey(location) + ", " + open
+        + " connections open");
+  }
+
+  /**
+   * Records a connection being closed.
+   */
+  public void connectionClosed(SVNRepository repository) {
+    long lifetime;
+    HostConnections host;
+    synchronized (connections) {
+      Connection connection = connections.get(repository);
+      if (connection == null || connection.openedAt == null) { // not known to be open
+        return;
+      }
+      lifetime = System.nanoTime() - connection.openedAt;
+      host = connection.host;
+      connection.openedAt = null;
+    }
+    host.closed.incrementAndGet();
+    host.open.decrementAndGet();
+    host.lifetimes.record(lifetime);
+    Message.debug("Closed connection to " + getHostKey(repository.getLocation()) + " after " + lifetime / 1000000
+        + "ms");
+  }
+
+  /**
+   * Connection statistics for a host.
+   */
+  public static class HostConnections {
+
+    /**
+     * Connections opened.
+     */
+    private final AtomicLong opened = new AtomicLong();
+
+    /**
+     * Connections closed.
+     */
+    private final AtomicLong closed = new AtomicLong();
+
+    /**
+     * Connections opened by repositories which had a connection before.
+     */
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * Connections currently open.
+     */
+    private final AtomicInteger open = new AtomicInteger();
+
+    /**
+     * The highest number of connections open at the same time.
+     */
+    private final AtomicInteger peakOpen = new AtomicInteger();
+
+    /**
+     * How long closed connections were open for.
+     */
+    private final LatencyHistogram lifetimes = new LatencyHistogram();
+
+    /**
+     * @return The number of connections opened.
+     */
+    public long getOpened() {
+      return opened.get();
+    }
+
+    /**
+     * @return The number of connections closed.
+     */
+    public long getClosed() {
+      return closed.get();
+    }
+
+    /**
+     * @return The number of connections opened by repositories which had a connection before.
+     */
+    public long getReconnects() {
+      return reconnects.get();
+    }
+
+    /**
+     * @return The number of connections currently open.
+     */
+    public int getOpen() {
+      return open.get();
+    }
+
+    /**
+     * @return The highest number of connections open at the same time.
+     */
+    public int getPeakOpen() {
+      return peakOpen.get();
+    }
+
+    /**
+     * @return How long closed connections were open for.
+     */
+    public LatencyHistogram getLifetimes() {
+      return lifetimes;
+    }
+
+  }
+
+  /**
+   * The connection state of a repository.
+   */
+  private static class Connection {
+
+    /**
+     * The time the repository's connection was opened as returned by System.nanoTime(), null if it is closed.
+     */
+    private Long openedAt;
+
+    /**
+     * The statistics for the host the connection was opened to.
+     */
+    private HostConnections host;
+
+  }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tmatesoft.svn.core.io.SVNLocationEntry;
+
+/**
+ * Index of file content known to exist in an Ivy repository, where the key is the SHA-1 checksum of the content and the
+ * value is a path@revision at which that content can be found. Used during publish so that content which already exists
+ * in the repository can be added as a server-side copy instead of being uploaded again. Paths are relative to the Ivy
+ * repository root. Entries are only added for content that is known to have been committed (either by a publish or
+ * because it was retrieved), so a copy source taken from this index is always valid.
+ */
+public class ContentIndex {
+
+  /**
+   * Content indexes per Ivy repository root.
+   */
+  private static Map<String, ContentIndex> indexes = new HashMap<String, ContentIndex>();
+
+  /**
+   * Locations of known content where the key is a SHA-1 checksum.
+   */
+  private Map<String, SVNLocationEntry> locations = new HashMap<String, SVNLocationEntry>();
+
+  /**
+   * Private constructor, use getInstance() to get the index for a repository.
+   */
+  private ContentIndex() {
+  }
+
+  /**
+   * Gets the content index for the passed Ivy repository root, creating it if necessary.
+   *
+   * @param repositoryRoot The Ivy repository root.
+   * @return The content index for the passed repository root.
+   */
+  public static synchronized ContentIndex getInstance(String repositoryRoot) {
+    ContentIndex index = indexes.get(repositoryRoot);
+    if (index == null) {
+      index = new ContentIndex();
+      indexes.put(repositoryRoot, index);
+    }
+    return index;
+  }
+
+  /**
+   * Records that content with the passed checksum exists at the passed path and revision.
+   *
+   * @param sha1 SHA-1 checksum of the content.
+   * @param path Path of the file containing the content, relative to the Ivy repository root.
+   * @param revision The Subversion revision at which the file contains the content.
+   */
+  public synchronized void add(String sha1, String path, long revision) {
+    if (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    locations.put(sha1, new SVNLocationEntry(revision, path));
+  }
+
+  /**
+   * Finds a location at which content with the passed checksum exists.
+   *
+   * @param sha1 SHA-1 checksum of the content.
+   * @return The location of the content, or null if the content is not known to exist.
+   */
+  public synchronized SVNLocationEntry find(String sha1) {
+    return locations.get(sha1);
+  }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * Listener which is notified at the end of a run of the plugin, i.e. when the Ant build it's used in finishes, or when
+ * the JVM exits if it isn't used from Ant, see EndOfRunNotifier.
+ */
+public interface EndOfRunListener {
+
+  /**
+   * Called when a run has finished.
+   * 
+   * @param logger The logger of the run.
+   */
+  void runFinished(MessageLogger logger);
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.ivy.ant.IvyTask;
+import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * Notifies listeners at the end of each run of the plugin. When the plugin is used from Ant the end of a run is the end
+ * of the Ant build whose Ivy settings registered the listener, otherwise (e.g. from the Ivy command line) it's the
+ * JVM exiting, which is also used as a fallback. Listeners are forgotten once notified, so they must be registered
+ * again in each run, which is normally done when the Ivy settings are loaded.
+ */
+public final class EndOfRunNotifier {
+
+  /**
+   * The registered listeners.
+   */
+  private static final Set<EndOfRunListener> listeners = new LinkedHashSet<EndOfRunListener>();
+
+  /**
+   * The logger of the last run a listener was registered in, used when the JVM exits.
+   */
+  private static MessageLogger logger;
+
+  /**
+   * Notifies the listeners when the JVM exits, null until a listener is registered.
+   */
+  private static Thread shutdownHook;
+
+  /**
+   * Private constructor, this class only has static methods.
+   */
+  private EndOfRunNotifier() {
+  }
+
+  /**
+   * Registers a listener to be notified at the end of the current run, unless it's already registered.
+   * 
+   * @param listener The listener.
+   */
+  public static synchronized void register(EndOfRunListener listener) {
+    listeners.add(listener);
+    logger = IvyContext.getContext().getMessageLogger();
+    Object project = IvyContext.peekInContextStack(IvyTask.ANT_PROJECT_CONTEXT_KEY);
+    if (project != null) { // only touch Ant classes when running in Ant
+      AntEndOfRunListener.addTo(project, logger);
+    }
+    if (shutdownHook == null) {
+      shutdownHook = new Thread("ivysvn-end-of-run") {
+        @Override
+        public void run() {
+          MessageLogger exitLogger;
+          synchronized (EndOfRunNotifier.class) {
+            exitLogger = logger;
+          }
+          notifyListeners(exitLogger);
+        }
+      };
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+  }
+
+  /**
+   * Notifies the registered listeners that a run has finished, and forgets them.
+   * 
+   * @param runLogger The logger of the run.
+   */
+  static void notifyListeners(MessageLogger runLogger) {
+    List<EndOfRunListener> currentListeners;
+    synchronized (EndOfRunNotifier.class) {
+      currentListeners = new ArrayList<EndOfRunListener>(listeners);
+      listeners.clear();
+    }
+    for (EndOfRunListener listener : currentListeners) {
+      listener.runFinished(runLogger);
+    }
+  }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.ivy.util.Message;
+
+/**
+ * Emits Java Flight Recorder events for Subversion RPCs, publish phases, cache lookups and session checkouts, so time
+ * spent in the plugin shows up in recordings of build JVMs as named operations with their path, revision and bytes
+ * instead of anonymous socket reads. The plugin is compiled for Java 5, so the event types are defined at runtime via
+ * jdk.jfr.EventFactory using reflection. On JVMs without JFR, or when an event type isn't enabled in the current
+ * recording, events cost a single check and are discarded.
+ */
+public class FlightRecorderEvents {
+
+  /**
+   * The types of event emitted.
+   */
+  public enum Type {
+    RPC("fm.last.ivysvn.Rpc", "Subversion RPC"), PUBLISH_PHASE("fm.last.ivysvn.PublishPhase", "Publish Phase"),
+    CACHE_LOOKUP("fm.last.ivysvn.CacheLookup", "Cache Lookup"), SESSION_CHECKOUT("fm.last.ivysvn.SessionCheckout",
+        "Session Checkout");
+
+    /**
+     * The name of the event type in recordings.
+     */
+    private final String eventName;
+
+    /**
+     * The label of the event type in recordings.
+     */
+    private final String label;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param eventName The name of the event type in recordings.
+     * @param label The label of the event type in recordings.
+     */
+    private Type(String eventName, String label) {
+      this.eventName = eventName;
+      this.label = label;
+    }
+
+    /**
+     * @return The name of the event type in recordings.
+     */
+    public String getEventName() {
+      return eventName;
+    }
+
+  }
+
+  /**
+   * Event which is discarded, used when JFR is unavailable or the event type isn't enabled.
+   */
+  private static final Event DISCARDED = new Event(null);
+
+  /**
+   * The index of each event field, all event types have the same fields.
+   */
+  private static final int OPERATION = 0, PATH = 1, REVISION = 2, BYTES = 3, HIT = 4;
+
+  /**
+   * The event factory for each event type, indexed by ordinal, null if JFR is unavailable.
+   */
+  private static volatile Object[] factories;
+
+  /**
+   * jdk.jfr.EventFactory.newEvent().
+   */
+  private static Method newEvent;
+
+  /**
+   * jdk.jfr.EventFactory.getEventType().
+   */
+  private static Method getEventType;
+
+  /**
+   * jdk.jfr.EventType.isEnabled().
+   */
+  private static Method isEnabled;
+
+  /**
+   * jdk.jfr.Event.begin().
+   */
+  private static Method begin;
+
+  /**
+   * jdk.jfr.Event.commit().
+   */
+  private static Method commit;
+
+  /**
+   * jdk.jfr.Event.set(int, Object).
+   */
+  private static Method set;
+
+  static {
+    try {
+      Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+      Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+      Class<?> name = Class.forName("jdk.jfr.Name");
+      Class<?> label = Class.forName("jdk.jfr.Label");
+      Class<?> category = Class.forName("jdk.jfr.Category");
+      Constructor<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+          String.class, List.class);
+      List<Object> fields = new ArrayList<Object>();
+      fields.add(valueDescriptor.newInstance(String.class, "operation", Arrays.asList(annotationElement.newInstance(
+          label, "Operation"))));
+      fields.add(valueDescriptor.newInstance(String.class, "path", Arrays.asList(annotationElement.newInstance(label,
+          "Path"))));
+      fields.add(valueDescriptor.newInstance(long.class, "revision", Arrays.asList(annotationElement.newInstance(
+          label, "Revision"))));
+      fields.add(valueDescriptor.newInstance(long.class, "bytes", Arrays.asList(annotationElement.newInstance(label,
+          "Bytes"))));
+      fields.add(valueDescriptor.newInstance(boolean.class, "hit", Arrays.asList(annotationElement.newInstance(label,
+          "Cache Hit"))));
+
+      Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+      Method create = eventFactory.getMethod("create", List.class, List.class);
+      Object[] createdFactories = new Object[Type.values().length];
+      for (Type type : Type.values()) {
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(annotationElement.newInstance(name, type.eventName));
+        annotations.add(annotationElement.newInstance(label, type.label));
+        annotations.add(annotationElement.newInstance(category, new String[] { "IvySvn" }));
+        createdFactories[type.ordinal()] = create.invoke(null, annotations, fields);
+      }
+      newEvent = eventFactory.getMethod("newEvent");
+      getEventType = eventFactory.getMethod("getEventType");
+      isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+      Class<?> event = Class.forName("jdk.jfr.Event");
+      begin = event.getMethod("begin");
+      commit = event.getMethod("commit");
+      set = event.getMethod("set", int.class, Object.class);
+      factories = createdFactories;
+    } catch (ClassNotFoundException e) {
+      Message.debug("Java Flight Recorder not available, not emitting events");
+    } catch (Exception e) {
+      Message.debug("Could not define Java Flight Recorder events: " + e);
+    }
+  }
+
+  /**
+   * Private constructor, events are created via static methods.
+   */
+  private FlightRecorderEvents() {
+  }
+
+  /**
+   * @return Whether JFR is available, if it isn't all events are discarded.
+   */
+  public static boolean isAvailable() {
+    return factories != null;
+  }
+
+  /**
+   * Begins timing an event, which must be committed via Event.commit() once the operation has finished.
+   *
+   * @param type The event type.
+   * @param operation The operation, e.g. the name of the RPC.
+   * @param path The path or URL the operation is for, may be null.
+   * @return The event.
+   */
+  public static Event begin(Type type, String operation, String path) {
+    if (factories == null) {
+      return DISCARDED;
+    }
+    try {
+      Object factory = factories[type.ordinal()];
+      if (!(Boolean) isEnabled.invoke(getEventType.invoke(factory))) {
+        return DISCARDED;
+      }
+      Object event = newEvent.invoke(factory);
+      set.invoke(event, OPERATION, operation);
+      set.invoke(event, PATH, path);
+      begin.invoke(event);
+      return new Event(event);
+    } catch (Exception e) {
+      disable(e);
+      return DISCARDED;
+    }
+  }
+
+  /**
+   * Emits an event for a cache lookup.
+   *
+   * @param cache The name of the cache.
+   * @param path The path looked up.
+   * @param hit Whether the path was found in the cache.
+   */
+  public static void lookup(String cache, String path, boolean hit) {
+    begin(Type.CACHE_LOOKUP, cache, path).setHit(hit).commit();
+  }
+
+  /**
+   * Stops emitting events after an unexpected error using JFR, so a problem with it can't break builds.
+   *
+   * @param e The error.
+   */
+  private static void disable(Exception e) {
+    factories = null;
+    Message.warn("Error emitting Java Flight Recorder event, no more events will be emitted: " + e);
+  }
+
+  /**
+   * An event which has begun. Values set on an event which is being discarded are ignored.
+   */
+  public static class Event {
+
+    /**
+     * The JFR event, null if the event is being discarded.
+     */
+    private final Object event;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param event The JFR event, null if the event is being discarded.
+     */
+    private Event(Object event) {
+      this.event = event;
+    }
+
+    /**
+     * Sets a field of the event.
+     *
+     * @param index The index of the field.
+     * @param value The value.
+     * @return This event.
+     */
+    private Event set(int index, Object value) {
+      if (event != null) {
+        try {
+          set.invoke(event, index, value);
+        } catch (Exception e) {
+          disable(e);
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Sets the revision the operation was for.
+     *
+     * @param revision The revision.
+     * @return This event.
+     */
+    public Event setRevision(long revision) {
+      return set(REVISION, revision);
+    }
+
+    /**
+     * Sets the number of bytes the operation transferred.
+     *
+     * @param bytes The number of bytes.
+     * @return This event.
+     */
+    public Event setBytes(long bytes) {
+      return set(BYTES, bytes);
+    }
+
+    /**
+     * Sets whether a cache lookup found what it was looking for.
+     *
+     * @param hit Whether the lookup was a hit.
+     * @return This event.
+     */
+    public Event setHit(boolean hit) {
+      return set(HIT, hit);
+    }
+
+    /**
+     * Ends the event and writes it to any recordings it is enabled in.
+     */
+    public void commit() {
+      if (event != null) {
+        try {
+          commit.invoke(event);
+        } catch (Exception e) {
+          disable(e);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of operation latencies, recorded without locking so it can be updated on every request. Latencies are
+ * counted in buckets whose bounds are powers of two microseconds, so percentiles are accurate to within a factor of
+ * two, which is enough to tell a healthy server from a struggling one.
+ */
+public class LatencyHistogram {
+
+  /**
+   * Number of buckets, the last bucket holds all latencies of 2^(BUCKETS - 1) microseconds (about 9 minutes) or more.
+   */
+  private static final int BUCKETS = 30;
+
+  /**
+   * Number of latencies recorded in each bucket, bucket i holds latencies from 2^(i-1) (0 for bucket 0) up to 2^i
+   * microseconds.
+   */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  /**
+   * Number of latencies recorded.
+   */
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * Sum of the latencies recorded in nanoseconds.
+   */
+  private final AtomicLong total = new AtomicLong();
+
+  /**
+   * Highest latency recorded in nanoseconds.
+   */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos The latency in nanoseconds.
+   */
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    long currentMax = max.get();
+    while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+      currentMax = max.get();
+    }
+  }
+
+  /**
+   * @return The number of latencies recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return The mean latency in milliseconds, 0 if none have been recorded.
+   */
+  public double getMeanMillis() {
+    long currentCount = count.get();
+    return currentCount == 0 ? 0 : total.get() / 1e6 / currentCount;
+  }
+
+  /**
+   * @return The highest latency recorded in milliseconds.
+   */
+  public double getMaxMillis() {
+    return max.get() / 1e6;
+  }
+
+  /**
+   * Gets an upper bound for the latency below which the passed fraction of latencies fall.
+   *
+   * @param fraction The fraction, e.g. 0.95 for the 95th percentile.
+   * @return The upper bound of the bucket containing the percentile in milliseconds, capped at the highest latency
+   *         recorded, 0 if no latencies have been recorded.
+   */
+  public double getPercentileMillis(double fraction) {
+    long[] snapshot = new long[BUCKETS];
+    long snapshotCount = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = buckets.get(i);
+      snapshotCount += snapshot[i];
+    }
+    if (snapshotCount == 0) {
+      return 0;
+    }
+    long threshold = (long) Math.ceil(snapshotCount * fraction);
+    long cumulative = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulative += snapshot[i];
+      if (cumulative >= threshold) {
+        return Math.min((1L << i) / 1e3, getMaxMillis());
+      }
+    }
+    return getMaxMillis();
+  }
+
+}
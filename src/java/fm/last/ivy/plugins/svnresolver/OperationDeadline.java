@@ -0,0 +1,217 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.tmatesoft.svn.core.ISVNCanceller;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+
+/**
+ * The deadline by which the calling thread's current operation (e.g. a retrieve or a publish) must finish. Once the
+ * deadline has passed, any further Subversion calls made by the operation fail with an SVNCancelException instead of
+ * carrying on, so a slow or hung server can't stall a build indefinitely. SVNKit checks the deadline via CANCELLER,
+ * which is set on every session, and the plugin checks it between calls and while file data is transferred.
+ */
+public class OperationDeadline {
+
+  /**
+   * Canceller which cancels SVNKit operations made by a thread once its deadline has passed.
+   */
+  public static final ISVNCanceller CANCELLER = new ISVNCanceller() {
+    public void checkCancelled() throws SVNCancelException {
+      check();
+    }
+  };
+
+  /**
+   * The time in nanoseconds by which the calling thread's operation must finish, null if there is no deadline.
+   */
+  private static final ThreadLocal<Long> deadline = new ThreadLocal<Long>();
+
+  /**
+   * The timeout the calling thread's deadline was started with in milliseconds, for error messages.
+   */
+  private static final ThreadLocal<Long> timeout = new ThreadLocal<Long>();
+
+  /**
+   * Private constructor, the deadline is accessed via static methods.
+   */
+  private OperationDeadline() {
+  }
+
+  /**
+   * Starts a deadline for the calling thread's operation, replacing any existing deadline.
+   *
+   * @param timeoutMillis The time the operation may take in milliseconds, 0 for no deadline.
+   */
+  public static void start(long timeoutMillis) {
+    if (timeoutMillis <= 0) {
+      end();
+      return;
+    }
+    deadline.set(System.nanoTime() + timeoutMillis * 1000000);
+    timeout.set(timeoutMillis);
+  }
+
+  /**
+   * Starts a deadline for the calling thread's operation unless the thread already has one, e.g. because the operation
+   * is part of a larger operation.
+   *
+   * @param timeoutMillis The time the operation may take in milliseconds, 0 for no deadline.
+   * @return true if a deadline was started and must be ended via end(), false otherwise.
+   */
+  public static boolean startIfNone(long timeoutMillis) {
+    if (timeoutMillis <= 0 || deadline.get() != null) {
+      return false;
+    }
+    start(timeoutMillis);
+    return true;
+  }
+
+  /**
+   * Ends the calling thread's deadline.
+   */
+  public static void end() {
+    deadline.remove();
+    timeout.remove();
+  }
+
+  /**
+   * Gets the calling thread's deadline so it can be passed on to another thread doing part of the operation.
+   *
+   * @return The deadline in nanoseconds as returned by System.nanoTime(), or null if there is no deadline.
+   */
+  public static Long get() {
+    return deadline.get();
+  }
+
+  /**
+   * Sets the calling thread's deadline to one obtained from another thread via get().
+   *
+   * @param deadlineNanos The deadline, or null for no deadline.
+   * @param timeoutMillis The timeout the deadline was started with in milliseconds.
+   */
+  public static void set(Long deadlineNanos, long timeoutMillis) {
+    if (deadlineNanos == null) {
+      end();
+    } else {
+      deadline.set(deadlineNanos);
+      timeout.set(timeoutMillis);
+    }
+  }
+
+  /**
+   * Gets the time left before the calling thread's deadline.
+   *
+   * @return The remaining time in milliseconds, Long.MAX_VALUE if there is no deadline.
+   */
+  public static long getRemaining() {
+    Long deadlineNanos = deadline.get();
+    if (deadlineNanos == null) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, (deadlineNanos - System.nanoTime()) / 1000000);
+  }
+
+  /**
+   * Checks whether the calling thread's deadline has passed.
+   *
+   * @throws SVNCancelException If the deadline has passed.
+   */
+  public static void check() throws SVNCancelException {
+    Long deadlineNanos = deadline.get();
+    if (deadlineNanos != null && System.nanoTime() - deadlineNanos >= 0) {
+      throw new SVNCancelException(SVNErrorMessage.create(SVNErrorCode.CANCELLED, "Operation did not finish within "
+          + timeout.get() + "ms"));
+    }
+  }
+
+  /**
+   * Checks whether the calling thread's deadline has passed, for use while streaming data.
+   *
+   * @throws IOException If the deadline has passed.
+   */
+  private static void checkStream() throws IOException {
+    try {
+      check();
+    } catch (SVNCancelException e) {
+      throw (IOException) new IOException(e.getMessage()).initCause(e);
+    }
+  }
+
+  /**
+   * Wraps a stream which data is being read from, so reading fails once the calling thread's deadline has passed.
+   *
+   * @param input The stream to wrap.
+   * @return The wrapped stream, or the passed stream if the calling thread has no deadline.
+   */
+  public static InputStream wrap(InputStream input) {
+    if (deadline.get() == null) {
+      return input;
+    }
+    return new FilterInputStream(input) {
+
+      @Override
+      public int read() throws IOException {
+        checkStream();
+        return super.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        checkStream();
+        return super.read(b, off, len);
+      }
+
+    };
+  }
+
+  /**
+   * Wraps a stream which data is being written to, so writing fails once the calling thread's deadline has passed.
+   *
+   * @param output The stream to wrap.
+   * @return The wrapped stream, or the passed stream if the calling thread has no deadline.
+   */
+  public static OutputStream wrap(OutputStream output) {
+    if (deadline.get() == null) {
+      return output;
+    }
+    return new FilterOutputStream(output) {
+
+      @Override
+      public void write(int b) throws IOException {
+        checkStream();
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        checkStream();
+        out.write(b, off, len);
+      }
+
+    };
+  }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.ivy.util.FileUtil;
+import org.apache.ivy.util.Message;
+
+/**
+ * A local directory which records publishes so they can be committed to Subversion in the background, and which
+ * survives the process dying so any publishes which weren't committed can be replayed later. The journal is locked
+ * while in use so two processes can never commit (or replay) the same publishes.
+ */
+public class PublishJournal {
+
+  /**
+   * Prefix of the names of entries which are still being written.
+   */
+  private static final String INCOMPLETE_PREFIX = "incomplete-";
+
+  /**
+   * Name of the file in the journal directory which is locked while the journal is in use.
+   */
+  private static final String LOCK_FILE_NAME = ".lock";
+
+  /**
+   * The journal directory.
+   */
+  private final File directory;
+
+  /**
+   * Sequence number used to order entries created within the same millisecond.
+   */
+  private int sequence = 0;
+
+  /**
+   * The lock held on the journal, null if it isn't locked.
+   */
+  private FileLock lock;
+
+  /**
+   * Constructs a new instance.
+   * 
+   * @param directory The journal directory, created if it doesn't exist.
+   */
+  public PublishJournal(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Locks the journal for exclusive use by this process, failing immediately if another process (or another journal
+   * for the same directory in this process) holds the lock. The lock is released by unlock() or when the process
+   * exits.
+   * 
+   * @throws IOException If the journal is already locked or the lock file cannot be created.
+   */
+  public synchronized void lock() throws IOException {
+    if (lock != null) {
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+    FileChannel channel = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw").getChannel();
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    } finally {
+      if (lock == null) {
+        channel.close();
+      }
+    }
+    if (lock == null) {
+      throw new IOException("Publish journal " + directory + " is already in use");
+    }
+  }
+
+  /**
+   * Releases the lock on the journal, if held.
+   * 
+   * @throws IOException If an error occurs releasing the lock.
+   */
+  public synchronized void unlock() throws IOException {
+    if (lock == null) {
+      return;
+    }
+    try {
+      lock.release();
+    } finally {
+      lock.channel().close();
+      lock = null;
+    }
+  }
+
+  /**
+   * Creates a new entry, which won't be visible in the journal until it is completed.
+   * 
+   * @return The entry.
+   * @throws IOException If the entry's folder cannot be created.
+   */
+  public synchronized PublishJournalEntry createEntry() throws IOException {
+    File folder = new File(directory, INCOMPLETE_PREFIX + nextEntryName());
+    if (!folder.mkdirs()) {
+      throw new IOException("Could not create journal entry " + folder);
+    }
+    return new PublishJournalEntry(folder);
+  }
+
+  /**
+   * Completes an entry, after which it will be returned by getEntries().
+   * 
+   * @param entry The entry.
+   * @throws IOException If an error occurs completing the entry.
+   */
+  public synchronized void complete(PublishJournalEntry entry) throws IOException {
+    entry.complete(new File(directory, nextEntryName()));
+  }
+
+  /**
+   * Generates a name for an entry, names sort in the order entries were created.
+   * 
+   * @return The entry name.
+   */
+  private String nextEntryName() {
+    return String.format("%013d-%06d", System.currentTimeMillis(), sequence++ % 1000000);
+  }
+
+  /**
+   * Loads all completed entries in the journal, in the order they were created. Incomplete entries left behind by a
+   * process which died while writing them are deleted, as the publish they were for never finished.
+   * 
+   * @return The entries.
+   * @throws IOException If an error occurs loading an entry.
+   */
+  public synchronized List<PublishJournalEntry> getEntries() throws IOException {
+    List<PublishJournalEntry> entries = new ArrayList<PublishJournalEntry>();
+    File[] folders = directory.listFiles();
+    if (folders == null) {
+      return entries;
+    }
+    Arrays.sort(folders);
+    for (File folder : folders) {
+      if (folder.getName().startsWith(INCOMPLETE_PREFIX)) {
+        Message.info("Deleting incomplete publish journal entry " + folder);
+        FileUtil.forceDelete(folder);
+      } else if (folder.isDirectory()) {
+        entries.add(PublishJournalEntry.load(folder));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return the journal directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+}
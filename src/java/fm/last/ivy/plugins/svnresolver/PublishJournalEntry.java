@@ -0,0 +1,291 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.util.FileUtil;
+
+/**
+ * A publish recorded in a PublishJournal. Each entry is a folder containing copies of the files to publish and a
+ * manifest describing where they should be published to. Entries are only visible in the journal once they are
+ * complete, incomplete entries are written to a temporary folder which is renamed once the manifest has been written.
+ */
+public class PublishJournalEntry {
+
+  /**
+   * Name of the manifest file in an entry's folder.
+   */
+  private static final String MANIFEST_FILE_NAME = "publish.properties";
+
+  /**
+   * The folder containing this entry's files.
+   */
+  private File folder;
+
+  /**
+   * The modules in this entry in the order they were published.
+   */
+  private List<ModuleRevisionId> modules = new ArrayList<ModuleRevisionId>();
+
+  /**
+   * The files to publish for each module, in the same order as the modules.
+   */
+  private List<List<JournalFile>> moduleFiles = new ArrayList<List<JournalFile>>();
+
+  /**
+   * A file to publish.
+   */
+  public class JournalFile {
+
+    /**
+     * The name of the copy of the file in the journal.
+     */
+    private final String name;
+
+    /**
+     * The location of the file in the repository.
+     */
+    private final String destination;
+
+    /**
+     * Whether to overwrite the file if it already exists.
+     */
+    private final boolean overwrite;
+
+    /**
+     * Checksum algorithms to publish checksum files for.
+     */
+    private final List<String> checksumAlgorithms = new ArrayList<String>();
+
+    /**
+     * Constructs a new instance.
+     * 
+     * @param name The name of the copy of the file in the journal.
+     * @param destination The location of the file in the repository.
+     * @param overwrite Whether to overwrite the file if it already exists.
+     */
+    JournalFile(String name, String destination, boolean overwrite) {
+      this.name = name;
+      this.destination = destination;
+      this.overwrite = overwrite;
+    }
+
+    /**
+     * @return the copy of the file in the journal
+     */
+    public File getFile() {
+      return new File(folder, name);
+    }
+
+    /**
+     * @return the location of the file in the repository
+     */
+    public String getDestination() {
+      return destination;
+    }
+
+    /**
+     * @return whether to overwrite the file if it already exists
+     */
+    public boolean isOverwrite() {
+      return overwrite;
+    }
+
+    /**
+     * @return the checksum algorithms to publish checksum files for
+     */
+    public List<String> getChecksumAlgorithms() {
+      return checksumAlgorithms;
+    }
+
+  }
+
+  /**
+   * Constructs a new instance.
+   * 
+   * @param folder The folder containing this entry's files.
+   */
+  PublishJournalEntry(File folder) {
+    this.folder = folder;
+  }
+
+  /**
+   * Loads a completed entry from the passed folder.
+   * 
+   * @param folder The entry's folder.
+   * @return The entry.
+   * @throws IOException If an error occurs reading the entry's manifest.
+   */
+  static PublishJournalEntry load(File folder) throws IOException {
+    Properties manifest = new Properties();
+    InputStream input = new FileInputStream(new File(folder, MANIFEST_FILE_NAME));
+    try {
+      manifest.load(input);
+    } finally {
+      input.close();
+    }
+    PublishJournalEntry entry = new PublishJournalEntry(folder);
+    int moduleCount = Integer.parseInt(manifest.getProperty("modules"));
+    for (int i = 0; i < moduleCount; i++) {
+      String prefix = "module." + i;
+      entry.beginModule(ModuleRevisionId.decode(manifest.getProperty(prefix)));
+      int fileCount = Integer.parseInt(manifest.getProperty(prefix + ".files"));
+      for (int j = 0; j < fileCount; j++) {
+        String filePrefix = prefix + ".file." + j;
+        JournalFile file = entry.new JournalFile(manifest.getProperty(filePrefix + ".name"), manifest
+            .getProperty(filePrefix + ".destination"), Boolean.parseBoolean(manifest.getProperty(filePrefix
+            + ".overwrite")));
+        String checksums = manifest.getProperty(filePrefix + ".checksums");
+        if (checksums.length() > 0) {
+          for (String algorithm : checksums.split(",")) {
+            file.checksumAlgorithms.add(algorithm);
+          }
+        }
+        entry.moduleFiles.get(i).add(file);
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Starts recording the files published for a module.
+   * 
+   * @param mrid The module revision being published.
+   */
+  public void beginModule(ModuleRevisionId mrid) {
+    modules.add(mrid);
+    moduleFiles.add(new ArrayList<JournalFile>());
+  }
+
+  /**
+   * Copies a file into the journal for the current module.
+   * 
+   * @param source The file to publish.
+   * @param destination The location of the file in the repository.
+   * @param overwrite Whether to overwrite the file if it already exists.
+   * @throws IOException If an error occurs copying the file.
+   */
+  public void addFile(File source, String destination, boolean overwrite) throws IOException {
+    if (modules.isEmpty()) {
+      throw new IllegalStateException("No module being published");
+    }
+    List<JournalFile> files = moduleFiles.get(moduleFiles.size() - 1);
+    JournalFile file = new JournalFile(modules.size() - 1 + "-" + files.size() + ".dat", destination, overwrite);
+    FileUtil.copy(source, file.getFile(), null);
+    files.add(file);
+  }
+
+  /**
+   * Records that a checksum file should be published for a file previously added to the current module.
+   * 
+   * @param destination The location in the repository of the file the checksum is for.
+   * @param algorithm The checksum algorithm.
+   * @return true if the checksum was recorded, false if the file it is for has not been added.
+   */
+  public boolean addChecksum(String destination, String algorithm) {
+    if (!moduleFiles.isEmpty()) {
+      for (JournalFile file : moduleFiles.get(moduleFiles.size() - 1)) {
+        if (file.getDestination().equals(destination)) {
+          file.checksumAlgorithms.add(algorithm);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes this entry's manifest and moves the entry to its final location, after which it will be published.
+   * 
+   * @param destination The final location of the entry's folder.
+   * @throws IOException If an error occurs writing the manifest or moving the entry.
+   */
+  void complete(File destination) throws IOException {
+    Properties manifest = new Properties();
+    manifest.setProperty("modules", String.valueOf(modules.size()));
+    for (int i = 0; i < modules.size(); i++) {
+      String prefix = "module." + i;
+      manifest.setProperty(prefix, modules.get(i).encodeToString());
+      List<JournalFile> files = moduleFiles.get(i);
+      manifest.setProperty(prefix + ".files", String.valueOf(files.size()));
+      for (int j = 0; j < files.size(); j++) {
+        String filePrefix = prefix + ".file." + j;
+        JournalFile file = files.get(j);
+        manifest.setProperty(filePrefix + ".name", file.name);
+        manifest.setProperty(filePrefix + ".destination", file.getDestination());
+        manifest.setProperty(filePrefix + ".overwrite", String.valueOf(file.isOverwrite()));
+        StringBuilder checksums = new StringBuilder();
+        for (String algorithm : file.getChecksumAlgorithms()) {
+          checksums.append(checksums.length() > 0 ? "," : "").append(algorithm);
+        }
+        manifest.setProperty(filePrefix + ".checksums", checksums.toString());
+      }
+    }
+    OutputStream output = new FileOutputStream(new File(folder, MANIFEST_FILE_NAME));
+    try {
+      manifest.store(output, "Ivy publish journal entry");
+    } finally {
+      output.close();
+    }
+    if (!folder.renameTo(destination)) {
+      throw new IOException("Could not move journal entry " + folder + " to " + destination);
+    }
+    folder = destination;
+  }
+
+  /**
+   * Deletes this entry and all of its files.
+   */
+  public void delete() {
+    FileUtil.forceDelete(folder);
+  }
+
+  /**
+   * @return the modules in this entry in the order they were published
+   */
+  public List<ModuleRevisionId> getModules() {
+    return modules;
+  }
+
+  /**
+   * Gets the files to publish for a module.
+   * 
+   * @param moduleIndex The index of the module in getModules().
+   * @return The files to publish.
+   */
+  public List<JournalFile> getFiles(int moduleIndex) {
+    return moduleFiles.get(moduleIndex);
+  }
+
+  /**
+   * @return the folder containing this entry's files
+   */
+  public File getFolder() {
+    return folder;
+  }
+
+}
@@ -17,9 +17,15 @@
 package fm.last.ivy.plugins.svnresolver;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.tmatesoft.svn.core.SVNException;
 
@@ -28,6 +34,11 @@ import org.tmatesoft.svn.core.SVNException;
  */
 public class PutOperation {
 
+  /**
+   * Size of buffer used when reading file data just to calculate checksums.
+   */
+  private static final int BUFFER_SIZE = 8192;
+
   /**
    * The file to put.
    */
@@ -58,15 +69,46 @@ public class PutOperation {
    */
   private String fileName;
 
+  /**
+   * The Ivy revision of the module this file is being published for.
+   */
+  private String revision;
+
+  /**
+   * Checksums of the file contents which have been calculated, keyed by Ivy checksum algorithm name.
+   */
+  private Map<String, String> checksums = new HashMap<String, String>();
+
+  /**
+   * Checksum algorithms which should be calculated while the file contents are being streamed.
+   */
+  private Set<String> checksumAlgorithms = new HashSet<String>();
+
+  /**
+   * The stream most recently used to read the file contents, used to pick up checksums once it has been fully read.
+   */
+  private ChecksumInputStream checksumInputStream;
+
+  /**
+   * If this operation puts a checksum file, the operation putting the file the checksum is for.
+   */
+  private PutOperation checksumSource;
+
+  /**
+   * If this operation puts a checksum file, the checksum algorithm.
+   */
+  private String checksumAlgorithm;
+
   /**
    * Constructs a new PutOperation.
    * 
    * @param file The file to be added/updated in svn.
    * @param destination The full svn destination path of the file.
    * @param overwrite Whether any existing file data should be overwritten or not.
+   * @param revision The Ivy revision of the module the file is being published for.
    * @throws IOException If the file data cannot be read from disk or the file paths cannot be determined.
    */
-  public PutOperation(File file, String destination, boolean overwrite) throws IOException {
+  public PutOperation(File file, String destination, boolean overwrite, String revision) throws IOException {
     this.file = file;
     if (file.getName().startsWith("ivytemp") || file.getAbsolutePath().startsWith(System.getProperty("java.io.tmpdir"))) {
       // most likely a checksum generated by ivy, we need to store file in memory as ivy deletes this
@@ -75,6 +117,25 @@ public class PutOperation {
     }
     this.destination = destination;
     this.overwrite = overwrite;
+    this.revision = revision;
+    determinePaths();
+  }
+
+  /**
+   * Constructs a new PutOperation which puts a checksum file for the file put by another operation. The checksum is
+   * calculated while the other operation's file is streamed, so the file only needs to be read once.
+   * 
+   * @param checksumSource The operation putting the file to generate the checksum for.
+   * @param algorithm The checksum algorithm.
+   * @param overwrite Whether any existing file data should be overwritten or not.
+   */
+  public PutOperation(PutOperation checksumSource, String algorithm, boolean overwrite) {
+    this.checksumSource = checksumSource;
+    this.checksumAlgorithm = algorithm;
+    this.destination = checksumSource.destination + "." + algorithm;
+    this.overwrite = overwrite;
+    this.revision = checksumSource.revision;
+    checksumSource.checksumAlgorithms.add(algorithm);
     determinePaths();
   }
 
@@ -185,6 +246,23 @@ public class PutOperation {
     return overwrite;
   }
 
+  /**
+   * @return the length of the file data, 0 for checksum files as these are only generated during the commit
+   */
+  public long getLength() {
+    if (data != null) {
+      return data.length;
+    }
+    return file != null ? file.length() : 0;
+  }
+
+  /**
+   * @return the Ivy revision of the module this file is being published for
+   */
+  public String getRevision() {
+    return revision;
+  }
+
   /**
    * Returns this operations file data as a byte[].
    * 
@@ -192,10 +270,77 @@ public class PutOperation {
    * @throws IOException If an error occurs reading the file data.
    */
   public byte[] getData() throws IOException {
+    if (checksumSource != null) {
+      return checksumSource.getChecksum(checksumAlgorithm).getBytes();
+    }
     if (data == null) {
       loadFileData();
     }
     return data;
   }
 
+  /**
+   * Opens a stream for reading this operation's file data. The data is read from memory if it has been loaded,
+   * otherwise it is streamed from disk. Any checksums registered for this file which haven't been calculated yet are
+   * calculated as the stream is read. The caller is responsible for closing the stream.
+   * 
+   * @return A stream of the file data.
+   * @throws IOException If an error occurs opening the file.
+   */
+  public InputStream getInputStream() throws IOException {
+    InputStream input = null;
+    if (data != null || checksumSource != null) {
+      input = new ByteArrayInputStream(getData());
+    } else {
+      input = new BufferedInputStream(new FileInputStream(file));
+    }
+    Set<String> pendingAlgorithms = new HashSet<String>(checksumAlgorithms);
+    pendingAlgorithms.removeAll(checksums.keySet());
+    if (!pendingAlgorithms.isEmpty()) {
+      checksumInputStream = new ChecksumInputStream(input, pendingAlgorithms);
+      input = checksumInputStream;
+    }
+    return input;
+  }
+
+  /**
+   * Returns a checksum of this operation's file data. If the checksum was registered before the file data was streamed
+   * via getInputStream() it will have been calculated at that point, otherwise it will be calculated now, which
+   * requires an extra read of the file data.
+   * 
+   * @param algorithm The checksum algorithm (e.g. "md5", "sha1").
+   * @return The checksum as a hex string.
+   * @throws IOException If an error occurs reading the file data.
+   */
+  public String getChecksum(String algorithm) throws IOException {
+    if (checksumInputStream != null && checksumInputStream.isComplete()) {
+      checksums.putAll(checksumInputStream.getChecksums());
+      checksumInputStream = null;
+    }
+    if (!checksums.containsKey(algorithm)) {
+      checksumAlgorithms.add(algorithm);
+      InputStream input = getInputStream(); // calculates all pending checksums in one read
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (input.read(buffer) != -1) {
+        }
+      } finally {
+        input.close();
+      }
+      checksums.putAll(checksumInputStream.getChecksums());
+      checksumInputStream = null;
+    }
+    return checksums.get(algorithm);
+  }
+
+  /**
+   * Returns the SHA-1 checksum of this operation's file data.
+   * 
+   * @return The SHA-1 checksum as a hex string.
+   * @throws IOException If an error occurs reading the file data.
+   */
+  public String getSha1() throws IOException {
+    return getChecksum("sha1");
+  }
+
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of read-only replicas of the Ivy repository (e.g. mirrors maintained by svnsync) and chooses which of
+ * them reads should be sent to. Replicas must use the same revision numbers as the primary repository. Reads of
+ * folders which have been published via this router's repository are only sent to replicas which have caught up with
+ * the revision they were committed in, so a publish is always visible to subsequent reads.
+ */
+public class ReadReplicaRouter {
+
+  /**
+   * Time in milliseconds for which a replica is not used after a read from it failed.
+   */
+  static final long UNHEALTHY_PERIOD = 30000;
+
+  /**
+   * Weight given to each new latency sample when calculating a replica's average latency.
+   */
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  /**
+   * Orders replicas by average latency, replicas which haven't been used yet come first so they get measured.
+   */
+  private static final Comparator<Replica> LATENCY_ORDER = new Comparator<Replica>() {
+    public int compare(Replica first, Replica second) {
+      return Double.compare(first.getLatency(), second.getLatency());
+    }
+  };
+
+  /**
+   * The replicas reads can be routed to.
+   */
+  private List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+
+  /**
+   * Revisions that folders were published in, keyed by folder path relative to the repository root.
+   */
+  private Map<String, Long> publishedRevisions = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Adds a replica.
+   *
+   * @param root The URL of the Ivy repository root in the replica.
+   */
+  public void addReplica(String root) {
+    replicas.add(new Replica(root));
+  }
+
+  /**
+   * Returns whether any replicas have been added.
+   *
+   * @return true if there are replicas, false otherwise.
+   */
+  public boolean hasReplicas() {
+    return !replicas.isEmpty();
+  }
+
+  /**
+   * Gets all of the replicas, whether they are healthy or not.
+   *
+   * @return The replicas.
+   */
+  public List<Replica> getReplicas() {
+    return Collections.unmodifiableList(replicas);
+  }
+
+  /**
+   * Gets the replicas which are currently healthy, in order of increasing average latency.
+   *
+   * @return The healthy replicas.
+   */
+  public List<Replica> getHealthyReplicas() {
+    List<Replica> healthy = new ArrayList<Replica>();
+    long now = System.currentTimeMillis();
+    for (Replica replica : replicas) {
+      if (replica.isHealthy(now)) {
+        healthy.add(replica);
+      }
+    }
+    Collections.sort(healthy, LATENCY_ORDER);
+    return healthy;
+  }
+
+  /**
+   * Records that folders have been published.
+   *
+   * @param folders The folder paths, relative to the repository root.
+   * @param revision The revision the folders were committed in.
+   */
+  public void recordPublish(Collection<String> folders, long revision) {
+    for (String folder : folders) {
+      publishedRevisions.put(normalise(folder), revision);
+    }
+  }
+
+  /**
+   * Gets the revision a replica must have reached to serve a read of the passed path.
+   *
+   * @param path The path being read, relative to the repository root.
+   * @param retrieveRevision The revision being read, -1 for HEAD.
+   * @return The minimum revision, -1 if any replica can serve the read.
+   */
+  public long getRequiredRevision(String path, long retrieveRevision) {
+    long required = retrieveRevision;
+    String normalisedPath = normalise(path);
+    for (Entry<String, Long> published : publishedRevisions.entrySet()) {
+      String folder = published.getKey();
+      // reads of the published folder, its contents or any folder containing it (e.g. to list revisions)
+      if (normalisedPath.startsWith(folder) || folder.startsWith(normalisedPath)) {
+        required = Math.max(required, published.getValue());
+      }
+    }
+    return required;
+  }
+
+  /**
+   * Normalises a path so that it doesn't start but does end with a "/".
+   *
+   * @param path The path.
+   * @return The normalised path.
+   */
+  private String normalise(String path) {
+    String normalised = path.startsWith("/") ? path.substring(1) : path;
+    return normalised.endsWith("/") ? normalised : normalised + "/";
+  }
+
+  /**
+   * A replica of the Ivy repository, along with its observed latency and health.
+   */
+  public static class Replica {
+
+    /**
+     * The URL of the Ivy repository root in the replica.
+     */
+    private final String root;
+
+    /**
+     * Average latency of reads in nanoseconds, 0 if there have been no reads yet.
+     */
+    private double latency = 0;
+
+    /**
+     * Time in milliseconds at which the last read failed, 0 if none have failed.
+     */
+    private long failedAt = 0;
+
+    /**
+     * The latest revision the replica is known to have reached, -1 if unknown.
+     */
+    private long youngestRevision = -1;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param root The URL of the Ivy repository root in the replica.
+     */
+    Replica(String root) {
+      this.root = root.endsWith("/") ? root : root + "/";
+    }
+
+    /**
+     * @return The URL of the Ivy repository root in the replica, ending with a "/".
+     */
+    public String getRoot() {
+      return root;
+    }
+
+    /**
+     * @return The average latency of reads in nanoseconds, 0 if there have been no reads yet.
+     */
+    public synchronized double getLatency() {
+      return latency;
+    }
+
+    /**
+     * @return The latest revision the replica is known to have reached, -1 if unknown.
+     */
+    public synchronized long getYoungestRevision() {
+      return youngestRevision;
+    }
+
+    /**
+     * Sets the latest revision the replica has reached.
+     *
+     * @param youngestRevision The revision.
+     */
+    public synchronized void setYoungestRevision(long youngestRevision) {
+      this.youngestRevision = Math.max(this.youngestRevision, youngestRevision);
+    }
+
+    /**
+     * Returns whether the replica can be read from, i.e. no read from it has failed recently.
+     *
+     * @param now The current time in milliseconds.
+     * @return true if the replica is healthy, false otherwise.
+     */
+    synchronized boolean isHealthy(long now) {
+      return now - failedAt >= UNHEALTHY_PERIOD;
+    }
+
+    /**
+     * Records a successful read from the replica.
+     *
+     * @param nanos The time the read took in nanoseconds.
+     */
+    public synchronized void recordSuccess(long nanos) {
+      latency = latency == 0 ? nanos : latency + LATENCY_WEIGHT * (nanos - latency);
+      failedAt = 0;
+    }
+
+    /**
+     * Records a failed read from the replica, it won't be used again until the unhealthy period has passed.
+     */
+    public synchronized void recordFailure() {
+      failedAt = System.currentTimeMillis();
+    }
+
+  }
+
+}
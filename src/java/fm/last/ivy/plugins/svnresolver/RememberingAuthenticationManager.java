@@ -0,0 +1,180 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ivy.util.Message;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.BasicAuthenticationManager;
+import org.tmatesoft.svn.core.auth.SVNAuthentication;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+/**
+ * Authentication manager which remembers which authentication method was accepted for each host and set of
+ * credentials, and offers that method first the next time a repository is created for them. This avoids a failed
+ * authentication attempt (and the handshake that goes with it) every time a new session is opened.
+ */
+public class RememberingAuthenticationManager extends BasicAuthenticationManager {
+
+  /**
+   * The names of the authentication methods which have been accepted, keyed by host and credentials.
+   */
+  private static final Map<String, String> acceptedMethods = new ConcurrentHashMap<String, String>();
+
+  /**
+   * The host and credentials this manager authenticates with.
+   */
+  private final String credentialsKey;
+
+  /**
+   * The names of the authentication methods, keyed by authentication.
+   */
+  private final Map<SVNAuthentication, String> methods = new IdentityHashMap<SVNAuthentication, String>();
+
+  /**
+   * Timeout in milliseconds for opening connections, negative to use SVNKit's default.
+   */
+  private volatile int connectTimeout = -1;
+
+  /**
+   * Timeout in milliseconds for reading from connections, negative to use SVNKit's default.
+   */
+  private volatile int readTimeout = -1;
+
+  /**
+   * Metrics of the repository which has borrowed the session to record authentication handshakes in, may be null.
+   */
+  private volatile RepositoryMetrics metrics;
+
+  /**
+   * The time at which the calling thread's current authentication handshake started, as returned by System.nanoTime().
+   */
+  private final ThreadLocal<Long> authenticationStart = new ThreadLocal<Long>();
+
+  /**
+   * Constructs a new instance.
+   *
+   * @param credentialsKey Key identifying the host and credentials being authenticated with.
+   * @param authentications The authentications to use in order of preference, keyed by authentication method name.
+   *          If a method has previously been accepted for the same key it will be used first.
+   */
+  public RememberingAuthenticationManager(String credentialsKey, Map<String, SVNAuthentication> authentications) {
+    super(order(credentialsKey, authentications));
+    this.credentialsKey = credentialsKey;
+    for (Entry<String, SVNAuthentication> authentication : authentications.entrySet()) {
+      methods.put(authentication.getValue(), authentication.getKey());
+    }
+  }
+
+  /**
+   * Orders the passed authentications so that any method which has previously been accepted comes first.
+   *
+   * @param credentialsKey Key identifying the host and credentials being authenticated with.
+   * @param authentications The authentications in order of preference, keyed by authentication method name.
+   * @return The ordered authentications.
+   */
+  private static SVNAuthentication[] order(String credentialsKey, Map<String, SVNAuthentication> authentications) {
+    List<SVNAuthentication> ordered = new ArrayList<SVNAuthentication>(authentications.values());
+    String acceptedMethod = acceptedMethods.get(credentialsKey);
+    SVNAuthentication accepted = acceptedMethod == null ? null : authentications.get(acceptedMethod);
+    if (accepted != null) {
+      Message.debug("Using previously accepted " + acceptedMethod + " authentication first");
+      ordered.remove(accepted);
+      ordered.add(0, accepted);
+    }
+    return ordered.toArray(new SVNAuthentication[ordered.size()]);
+  }
+
+  /**
+   * Notes the time at which the authentication handshake started.
+   */
+  @Override
+  public SVNAuthentication getFirstAuthentication(String kind, String realm, SVNURL url) throws SVNException {
+    authenticationStart.set(System.nanoTime());
+    return super.getFirstAuthentication(kind, realm, url);
+  }
+
+  /**
+   * Records the method of any authentication which is accepted, and how long the handshake took.
+   */
+  @Override
+  public void acknowledgeAuthentication(boolean accepted, String kind, String realm, SVNErrorMessage errorMessage,
+      SVNAuthentication authentication) {
+    super.acknowledgeAuthentication(accepted, kind, realm, errorMessage, authentication);
+    Long start = authenticationStart.get();
+    if (accepted && start != null) {
+      authenticationStart.remove();
+      RepositoryMetrics currentMetrics = metrics;
+      if (currentMetrics != null) {
+        currentMetrics.record(RepositoryMetrics.Operation.AUTH, start);
+      }
+    }
+    String method = authentication == null ? null : methods.get(authentication);
+    if (accepted && method != null && !method.equals(acceptedMethods.put(credentialsKey, method))) {
+      Message.debug("Remembering " + method + " authentication for " + realm);
+    }
+  }
+
+  /**
+   * Sets the timeouts for connections opened by repositories using this manager. Connections which are already open
+   * keep the timeouts they were opened with.
+   * 
+   * @param connectTimeout Timeout in milliseconds for opening connections, 0 for none, negative for SVNKit's default.
+   * @param readTimeout Timeout in milliseconds for reading from connections, 0 for none, negative for SVNKit's
+   *          default.
+   */
+  public void setTimeouts(int connectTimeout, int readTimeout) {
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Sets the metrics to record authentication handshakes in, which are those of the repository that has borrowed the
+   * session using this manager. Sessions are used by one repository at a time, so the metrics are set when a session is
+   * borrowed and cleared when it's returned.
+   * 
+   * @param metrics The metrics, or null to not record handshakes.
+   */
+  public void setMetrics(RepositoryMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the configured connect timeout, or SVNKit's default if none has been configured.
+   */
+  @Override
+  public int getConnectTimeout(SVNRepository repository) {
+    return connectTimeout >= 0 ? connectTimeout : super.getConnectTimeout(repository);
+  }
+
+  /**
+   * Returns the configured read timeout, or SVNKit's default if none has been configured.
+   */
+  @Override
+  public int getReadTimeout(SVNRepository repository) {
+    return readTimeout >= 0 ? readTimeout : super.getReadTimeout(repository);
+  }
+
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.MessageLogger;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+/**
+ * Performance metrics for a SvnRepository, exposed as a read-only MBean. Counters and histograms are updated without
+ * locking so recording them adds nothing measurable to each request. For each operation the MBean has attributes
+ * named after the operation and statistic, e.g. "checkPathCount" and "checkPathP95Millis". Connection attributes
+ * (e.g. "Reconnects") come from the ConnectionMetricsListener and cover all repositories on the same host, as do
+ * concurrency attributes (e.g. "ConcurrencyLimit"), which come from the server's ConcurrencyLimiter.
+ */
+public class RepositoryMetrics implements DynamicMBean, EndOfRunListener {
+
+  /**
+   * The operations latencies are recorded for.
+   */
+  public enum Operation {
+    CHECK_PATH("checkPath"), INFO("info"), GET_DIR("getDir"), GET_FILE("getFile"), COMMIT("commit"),
+    COPY_DIFF("copyDiff"), AUTH("auth");
+
+    /**
+     * The prefix of the operation's attribute names.
+     */
+    private final String attributeName;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param attributeName The prefix of the operation's attribute names.
+     */
+    private Operation(String attributeName) {
+      this.attributeName = attributeName;
+    }
+
+    /**
+     * @return The prefix of the operation's attribute names.
+     */
+    public String getAttributeName() {
+      return attributeName;
+    }
+
+  }
+
+  /**
+   * The statistics exposed for each operation, used as suffixes of the operation's attribute names.
+   */
+  private static final String[] OPERATION_STATISTICS = { "Count", "MeanMillis", "P50Millis", "P95Millis", "P99Millis",
+      "MaxMillis" };
+
+  /**
+   * Attributes other than operation statistics.
+   */
+  private static final String[] ATTRIBUTES = { "BytesRetrieved", "BytesPublished", "ResourceCacheHits",
+      "ResourceCacheMisses", "ResourceCacheHitRatio", "FolderCacheHits", "FolderCacheMisses", "FolderCacheHitRatio",
+      "SessionsInUse", "IdleSessions", "ActiveTransactions" };
+
+  /**
+   * Attributes about the connections to the host of the repository root, which are shared by all repositories on the
+   * host.
+   */
+  private static final List<String> CONNECTION_ATTRIBUTES = Arrays.asList("ConnectionsOpened", "ConnectionsClosed",
+      "Reconnects", "OpenConnections", "PeakOpenConnections", "ConnectionLifetimeMeanMillis",
+      "ConnectionLifetimeMaxMillis");
+
+  /**
+   * Attributes about the concurrency limiter of the server of the repository root, which is shared by all repositories
+   * on the server.
+   */
+  private static final List<String> CONCURRENCY_ATTRIBUTES = Arrays.asList("ConcurrencyLimit", "ConcurrentRequests",
+      "QueuedRequests");
+
+  /**
+   * Attributes other than operation statistics which are ints, the rest are longs or, if they end with Ratio or Millis,
+   * doubles.
+   */
+  private static final List<String> INT_ATTRIBUTES = Arrays.asList("SessionsInUse", "IdleSessions",
+      "ActiveTransactions", "OpenConnections", "PeakOpenConnections", "ConcurrencyLimit", "ConcurrentRequests",
+      "QueuedRequests");
+
+  /**
+   * Used to give each registered MBean a unique name, as several repositories can share a root.
+   */
+  private static final AtomicInteger nextId = new AtomicInteger();
+
+  /**
+   * Latencies per operation, created up front so the map is only read after construction.
+   */
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+
+  /**
+   * Bytes of file data retrieved.
+   */
+  private final AtomicLong bytesRetrieved = new AtomicLong();
+
+  /**
+   * Bytes of file data published.
+   */
+  private final AtomicLong bytesPublished = new AtomicLong();
+
+  /**
+   * Resource lookups which found an existing resource in the repository's cache.
+   */
+  private final AtomicLong resourceCacheHits = new AtomicLong();
+
+  /**
+   * Resource lookups which had to create a new resource.
+   */
+  private final AtomicLong resourceCacheMisses = new AtomicLong();
+
+  /**
+   * Folder existence checks answered from the cache of folders known to exist.
+   */
+  private final AtomicLong folderCacheHits = new AtomicLong();
+
+  /**
+   * Folder existence checks which had to ask the server.
+   */
+  private final AtomicLong folderCacheMisses = new AtomicLong();
+
+  /**
+   * Sessions currently borrowed from the session pool.
+   */
+  private final AtomicInteger sessionsInUse = new AtomicInteger();
+
+  /**
+   * Publish transactions currently in progress.
+   */
+  private final AtomicInteger activeTransactions = new AtomicInteger();
+
+  /**
+   * The root of the repository the metrics are for, null until set.
+   */
+  private volatile String repositoryRoot;
+
+  /**
+   * The name the MBean is registered under, null if it isn't registered.
+   */
+  private ObjectName objectName;
+
+  /**
+   * Log to check recorded operations against, null if slow operations aren't logged.
+   */
+  private volatile SlowOperationLog slowOperationLog;
+
+  /**
+   * Constructs a new instance.
+   */
+  public RepositoryMetrics() {
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * Registers the MBean with the platform MBean server for the passed repository root, replacing any registration for a
+   * previous root. The MBean is unregistered at the end of the run (see EndOfRunNotifier), so repositories created by
+   * each build in a long running JVM don't pile up. Registration failures are logged, as metrics must never stop Ivy
+   * from working.
+   *
+   * @param repositoryRoot The repository root.
+   */
+  public synchronized void register(String repositoryRoot) {
+    this.repositoryRoot = repositoryRoot;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (objectName != null && server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      objectName = new ObjectName("fm.last.ivy.plugins.svnresolver:type=SvnRepository,root="
+          + ObjectName.quote(repositoryRoot) + ",id=" + nextId.incrementAndGet());
+      server.registerMBean(this, objectName);
+      EndOfRunNotifier.register(this);
+    } catch (JMException e) {
+      Message.warn("Could not register metrics MBean for " + repositoryRoot + ": " + e.getMessage());
+      objectName = null;
+    } catch (SecurityException e) {
+      Message.warn("Could not register metrics MBean for " + repositoryRoot + ": " + e.getMessage());
+      objectName = null;
+    }
+  }
+
+  /**
+   * Unregisters the MBean from the platform MBean server, if it's registered.
+   */
+  public synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      Message.debug("Could not unregister metrics MBean " + objectName + ": " + e.getMessage());
+    } catch (SecurityException e) {
+      Message.debug("Could not unregister metrics MBean " + objectName + ": " + e.getMessage());
+    }
+    objectName = null;
+  }
+
+  /**
+   * Unregisters the MBean at the end of the run it was registered in.
+   *
+   * @param logger The logger of the run.
+   */
+  public void runFinished(MessageLogger logger) {
+    unregister();
+  }
+
+  /**
+   * @return The name the MBean is registered under, null if it isn't registered.
+   */
+  public synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+
+  /**
+   * Records the latency of an operation which started at the passed time and has just finished.
+   *
+   * @param operation The operation.
+   * @param startNanos The time the operation started, as returned by System.nanoTime().
+   */
+  public void record(Operation operation, long startNanos) {
+    record(operation, startNanos, null, -1, null);
+  }
+
+  /**
+   * Records the latency of an operation which started at the passed time and has just finished, logging it if it was
+   * slow.
+   *
+   * @param operation The operation.
+   * @param startNanos The time the operation started, as returned by System.nanoTime().
+   * @param path The path the operation was for, may be null.
+   * @param revision The revision the operation was for, -1 for the latest revision.
+   * @param session The session the operation was performed with, may be null.
+   */
+  public void record(Operation operation, long startNanos, String path, long revision, SVNRepository session) {
+    long elapsed = System.nanoTime() - startNanos;
+    latencies.get(operation).record(elapsed);
+    SlowOperationLog log = slowOperationLog;
+    if (log != null) {
+      log.check(operation.getAttributeName(), elapsed, path, revision, session);
+    }
+  }
+
+  /**
+   * Sets the log to check recorded operations against.
+   *
+   * @param slowOperationLog The log, null to not log slow operations.
+   */
+  public void setSlowOperationLog(SlowOperationLog slowOperationLog) {
+    this.slowOperationLog = slowOperationLog;
+  }
+
+  /**
+   * Gets the latencies recorded for an operation.
+   *
+   * @param operation The operation.
+   * @return The latencies.
+   */
+  public LatencyHistogram getLatencies(Operation operation) {
+    return latencies.get(operation);
+  }
+
+  /**
+   * Records file data transferred.
+   *
+   * @param retrieved true if the data was retrieved, false if it was published.
+   * @param length The number of bytes.
+   */
+  public void addBytes(boolean retrieved, long length) {
+    (retrieved ? bytesRetrieved : bytesPublished).addAndGet(length);
+  }
+
+  /**
+   * Records a lookup in the cache of resources.
+   *
+   * @param hit Whether the resource was found in the cache.
+   */
+  public void resourceCacheLookup(boolean hit) {
+    (hit ? resourceCacheHits : resourceCacheMisses).incrementAndGet();
+  }
+
+  /**
+   * Records a lookup in the cache of folders known to exist.
+   *
+   * @param hit Whether the folder was found in the cache.
+   */
+  public void folderCacheLookup(boolean hit) {
+    (hit ? folderCacheHits : folderCacheMisses).incrementAndGet();
+  }
+
+  /**
+   * Records that a session has been borrowed from, or returned to, the session pool.
+   *
+   * @param delta 1 if a session was borrowed, -1 if it was returned or closed.
+   */
+  public void sessionsInUse(int delta) {
+    sessionsInUse.addAndGet(delta);
+  }
+
+  /**
+   * Records that a publish transaction has been started or finished.
+   *
+   * @param delta 1 if a transaction was started, -1 if it was committed or aborted.
+   */
+  public void activeTransactions(int delta) {
+    activeTransactions.addAndGet(delta);
+  }
+
+  /**
+   * Calculates a hit ratio.
+   *
+   * @param hits The number of hits.
+   * @param misses The number of misses.
+   * @return The ratio of hits to lookups, 0 if there have been no lookups.
+   */
+  private static double ratio(AtomicLong hits, AtomicLong misses) {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  /**
+   * Gets the number of idle sessions in the pool for the repository root.
+   *
+   * @return The number of idle sessions, 0 if the root hasn't been set.
+   */
+  private int getIdleSessions() {
+    String root = repositoryRoot;
+    if (root == null) {
+      return 0;
+    }
+    try {
+      return SVNRepositoryCache.getInstance().getIdleSessionCount(root, SVNURL.parseURIEncoded(root));
+    } catch (SVNException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Gets the statistics for connections to the host of the repository root.
+   *
+   * @return The statistics, null if the root hasn't been set.
+   */
+  private ConnectionMetricsListener.HostConnections getHostConnections() {
+    String root = repositoryRoot;
+    if (root == null) {
+      return null;
+    }
+    try {
+      return ConnectionMetricsListener.getInstance().getHostConnections(SVNURL.parseURIEncoded(root));
+    } catch (SVNException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the current value of an attribute about connections to the host of the repository root.
+   *
+   * @param attribute The attribute name.
+   * @return The value, or null if the attribute isn't about connections.
+   */
+  private Object getConnectionAttribute(String attribute) {
+    if (!CONNECTION_ATTRIBUTES.contains(attribute)) {
+      return null;
+    }
+    ConnectionMetricsListener.HostConnections connections = getHostConnections();
+    if (connections == null) {
+      connections = new ConnectionMetricsListener.HostConnections(); // all 0
+    }
+    if ("ConnectionsOpened".equals(attribute)) {
+      return connections.getOpened();
+    } else if ("ConnectionsClosed".equals(attribute)) {
+      return connections.getClosed();
+    } else if ("Reconnects".equals(attribute)) {
+      return connections.getReconnects();
+    } else if ("OpenConnections".equals(attribute)) {
+      return connections.getOpen();
+    } else if ("PeakOpenConnections".equals(attribute)) {
+      return connections.getPeakOpen();
+    } else if ("ConnectionLifetimeMeanMillis".equals(attribute)) {
+      return connections.getLifetimes().getMeanMillis();
+    } else if ("ConnectionLifetimeMaxMillis".equals(attribute)) {
+      return connections.getLifetimes().getMaxMillis();
+    }
+    return null;
+  }
+
+  /**
+   * Gets the current value of an attribute about the concurrency limiter of the server of the repository root.
+   *
+   * @param attribute The attribute name.
+   * @return The value, 0 if concurrency isn't limited, or null if the attribute isn't about concurrency.
+   */
+  private Object getConcurrencyAttribute(String attribute) {
+    if (!CONCURRENCY_ATTRIBUTES.contains(attribute)) {
+      return null;
+    }
+    ConcurrencyLimiter limiter = null;
+    String root = repositoryRoot;
+    if (root != null) {
+      try {
+        limiter = ConcurrencyLimiter.getExistingInstance(ConcurrencyLimiter.getKey(SVNURL.parseURIEncoded(root)));
+      } catch (SVNException e) {
+        // no limiter for an invalid root
+      }
+    }
+    if (limiter == null) {
+      return 0;
+    } else if ("ConcurrencyLimit".equals(attribute)) {
+      return limiter.getLimit();
+    } else if ("ConcurrentRequests".equals(attribute)) {
+      return limiter.getInFlight();
+    }
+    return limiter.getQueueDepth();
+  }
+
+  /**
+   * Gets the current value of an attribute.
+   */
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    if ("BytesRetrieved".equals(attribute)) {
+      return bytesRetrieved.get();
+    } else if ("BytesPublished".equals(attribute)) {
+      return bytesPublished.get();
+    } else if ("ResourceCacheHits".equals(attribute)) {
+      return resourceCacheHits.get();
+    } else if ("ResourceCacheMisses".equals(attribute)) {
+      return resourceCacheMisses.get();
+    } else if ("ResourceCacheHitRatio".equals(attribute)) {
+      return ratio(resourceCacheHits, resourceCacheMisses);
+    } else if ("FolderCacheHits".equals(attribute)) {
+      return folderCacheHits.get();
+    } else if ("FolderCacheMisses".equals(attribute)) {
+      return folderCacheMisses.get();
+    } else if ("FolderCacheHitRatio".equals(attribute)) {
+      return ratio(folderCacheHits, folderCacheMisses);
+    } else if ("SessionsInUse".equals(attribute)) {
+      return sessionsInUse.get();
+    } else if ("IdleSessions".equals(attribute)) {
+      return getIdleSessions();
+    } else if ("ActiveTransactions".equals(attribute)) {
+      return activeTransactions.get();
+    }
+    Object connectionValue = getConnectionAttribute(attribute);
+    if (connectionValue != null) {
+      return connectionValue;
+    }
+    Object concurrencyValue = getConcurrencyAttribute(attribute);
+    if (concurrencyValue != null) {
+      return concurrencyValue;
+    }
+    for (Operation operation : Operation.values()) {
+      if (attribute.startsWith(operation.getAttributeName())) {
+        LatencyHistogram histogram = latencies.get(operation);
+        String statistic = attribute.substring(operation.getAttributeName().length());
+        if ("Count".equals(statistic)) {
+          return histogram.getCount();
+        } else if ("MeanMillis".equals(statistic)) {
+          return histogram.getMeanMillis();
+        } else if ("P50Millis".equals(statistic)) {
+          return histogram.getPercentileMillis(0.5);
+        } else if ("P95Millis".equals(statistic)) {
+          return histogram.getPercentileMillis(0.95);
+        } else if ("P99Millis".equals(statistic)) {
+          return histogram.getPercentileMillis(0.99);
+        } else if ("MaxMillis".equals(statistic)) {
+          return histogram.getMaxMillis();
+        }
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  /**
+   * Gets the current values of several attributes, unknown attributes are left out.
+   */
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // left out of the list, as required by DynamicMBean
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Describes the attributes, which are all read only.
+   */
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    for (Operation operation : Operation.values()) {
+      for (String statistic : OPERATION_STATISTICS) {
+        String type = "Count".equals(statistic) ? "long" : "double";
+        attributes.add(new MBeanAttributeInfo(operation.getAttributeName() + statistic, type, statistic + " of "
+            + operation.getAttributeName() + " operations", true, false, false));
+      }
+    }
+    List<String> otherAttributes = new ArrayList<String>(Arrays.asList(ATTRIBUTES));
+    otherAttributes.addAll(CONNECTION_ATTRIBUTES);
+    otherAttributes.addAll(CONCURRENCY_ATTRIBUTES);
+    for (String attribute : otherAttributes) {
+      String type = attribute.endsWith("Ratio") || attribute.endsWith("Millis") ? "double" : INT_ATTRIBUTES
+          .contains(attribute) ? "int" : "long";
+      attributes.add(new MBeanAttributeInfo(attribute, type, attribute, true, false, false));
+    }
+    return new MBeanInfo(getClass().getName(), "IvySvn repository performance metrics for " + repositoryRoot,
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+  }
+
+  /**
+   * Always fails, the attributes are read only.
+   */
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+  }
+
+  /**
+   * Sets nothing, the attributes are read only.
+   */
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList(); // metrics are read only
+  }
+
+  /**
+   * Always fails, there are no operations.
+   */
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+}
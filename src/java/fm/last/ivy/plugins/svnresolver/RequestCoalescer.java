@@ -0,0 +1,245 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.ivy.util.Message;
+import org.tmatesoft.svn.core.SVNException;
+
+/**
+ * Coalesces identical requests made concurrently by different threads (or resolvers sharing a JVM), so that only the
+ * first caller (the leader) makes the request and any callers arriving while it is in progress (followers) wait for
+ * and share its result instead of making the same request again. Requests are identified by a key which must include
+ * everything that affects the result, e.g. the operation, URL, revision and user.
+ */
+public class RequestCoalescer {
+
+  /**
+   * The instance shared by all repositories.
+   */
+  private static final RequestCoalescer instance = new RequestCoalescer();
+
+  /**
+   * Requests currently in progress, keyed by request key.
+   */
+  private final Map<String, Call<?>> calls = new HashMap<String, Call<?>>();
+
+  /**
+   * Constructs a new instance, use getInstance() to get the instance shared by all repositories.
+   */
+  RequestCoalescer() {
+  }
+
+  /**
+   * Gets the instance shared by all repositories.
+   *
+   * @return The instance.
+   */
+  public static RequestCoalescer getInstance() {
+    return instance;
+  }
+
+  /**
+   * Makes a request, or waits for the result of an identical request already in progress.
+   *
+   * @param <T> The type of the request's result.
+   * @param key Key identifying the request.
+   * @param request The request.
+   * @return The request's result, or a follower's share of it.
+   * @throws SVNException If an error occurs making the request.
+   * @throws IOException If an error occurs making the request or sharing its result.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T execute(String key, Request<T> request) throws SVNException, IOException {
+    Call<T> call;
+    boolean leader = false;
+    synchronized (calls) {
+      call = (Call<T>) calls.get(key);
+      if (call == null) {
+        call = new Call<T>();
+        calls.put(key, call);
+        leader = true;
+      } else {
+        call.followers++;
+      }
+    }
+    if (leader) {
+      return lead(key, call, request);
+    }
+    Message.debug("Waiting for identical request in progress: " + key);
+    return follow(call, request);
+  }
+
+  /**
+   * Makes a request as its leader, then waits for any followers to take their share of the result so the result stays
+   * valid (e.g. a retrieved file isn't moved) while they do.
+   *
+   * @param <T> The type of the request's result.
+   * @param key Key identifying the request.
+   * @param call The call for the request.
+   * @param request The request.
+   * @return The request's result.
+   * @throws SVNException If an error occurs making the request.
+   * @throws IOException If an error occurs making the request.
+   */
+  private <T> T lead(String key, Call<T> call, Request<T> request) throws SVNException, IOException {
+    T result = null;
+    Throwable error = null;
+    try {
+      result = request.execute();
+    } catch (Throwable t) {
+      error = t;
+    }
+    synchronized (calls) {
+      calls.remove(key); // later callers make a new request
+    }
+    synchronized (call) {
+      call.result = result;
+      call.error = error;
+      call.complete = true;
+      call.notifyAll();
+      boolean interrupted = false;
+      while (call.followers > 0) {
+        try {
+          call.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    rethrow(error);
+    return result;
+  }
+
+  /**
+   * Waits for a request made by a leader to complete and takes a share of its result.
+   *
+   * @param <T> The type of the request's result.
+   * @param call The call for the request.
+   * @param request The follower's own request, used to share the leader's result.
+   * @return The follower's share of the result.
+   * @throws SVNException If an error occurred making the request.
+   * @throws IOException If an error occurred making the request or sharing its result.
+   */
+  private <T> T follow(Call<T> call, Request<T> request) throws SVNException, IOException {
+    try {
+      synchronized (call) {
+        while (!call.complete) {
+          try {
+            call.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new IOException("Interrupted waiting for identical request").initCause(e);
+          }
+        }
+      }
+      rethrow(call.error);
+      return request.share(call.result);
+    } finally {
+      synchronized (call) {
+        call.followers--;
+        call.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Rethrows an error thrown by a request.
+   *
+   * @param error The error, may be null.
+   * @throws SVNException If the error is an SVNException.
+   * @throws IOException If the error is an IOException.
+   */
+  private void rethrow(Throwable error) throws SVNException, IOException {
+    if (error instanceof SVNException) {
+      throw (SVNException) error;
+    } else if (error instanceof IOException) {
+      throw (IOException) error;
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    }
+  }
+
+  /**
+   * A request which can be coalesced with identical requests.
+   *
+   * @param <T> The type of the request's result.
+   */
+  public abstract static class Request<T> {
+
+    /**
+     * Makes the request.
+     *
+     * @return The result.
+     * @throws SVNException If an error occurs making the request.
+     * @throws IOException If an error occurs making the request.
+     */
+    public abstract T execute() throws SVNException, IOException;
+
+    /**
+     * Takes a follower's share of the result of an identical request made by a leader. The leader waits until this
+     * returns, so the result can be used as is. By default the result is returned as is, requests with mutable results
+     * or side effects (e.g. writing a file) should copy them.
+     *
+     * @param result The leader's result.
+     * @return The follower's result.
+     * @throws IOException If an error occurs sharing the result.
+     */
+    public T share(T result) throws IOException {
+      return result;
+    }
+
+  }
+
+  /**
+   * A request in progress.
+   *
+   * @param <T> The type of the request's result.
+   */
+  private static class Call<T> {
+
+    /**
+     * The number of followers waiting for or taking their share of the result.
+     */
+    private int followers = 0;
+
+    /**
+     * Whether the request has completed.
+     */
+    private boolean complete = false;
+
+    /**
+     * The request's result.
+     */
+    private T result;
+
+    /**
+     * The error thrown by the request, null if it succeeded.
+     */
+    private Throwable error;
+
+  }
+
+}
@@ -17,7 +17,9 @@
 package fm.last.ivy.plugins.svnresolver;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.tmatesoft.svn.core.SVNException;
@@ -25,9 +27,11 @@ import org.tmatesoft.svn.core.SVNURL;
 import org.tmatesoft.svn.core.io.SVNRepository;
 
 /**
- * Simple cache of SVNRepository instances stored against their host and protocol. Used by ivy-svn so that the
+ * Pool of SVNRepository instances (sessions) stored against their host and protocol. Used by ivy-svn so that the
  * authentication mechanism only needs to be setup once per set of operations (retrieve/publish) instead of per file
- * within an operation.
+ * within an operation. Sessions are borrowed for exclusive use by a single thread, e.g. for performing a read or a
+ * commit, and returned to the pool for later re-use. Sessions are pooled separately for each Ivy repository root, so
+ * repositories sharded across several roots don't share sessions.
  */
 public class SVNRepositoryCache {
 
@@ -37,9 +41,20 @@ public class SVNRepositoryCache {
   private static SVNRepositoryCache instance = new SVNRepositoryCache();
 
   /**
-   * Cache of SVNRepository instances where the key is protocol:host.
+   * The default maximum number of idle sessions to keep in the pool per protocol:host.
    */
-  private Map<String, SVNRepository> repositoryCache = new HashMap<String, SVNRepository>();
+  public static final int DEFAULT_MAX_IDLE_SESSIONS = 8;
+
+  /**
+   * The maximum number of idle sessions to keep in the pool per protocol:host.
+   */
+  private int maxIdleSessions = DEFAULT_MAX_IDLE_SESSIONS;
+
+  /**
+   * Pool of idle SVNRepository instances which aren't in use by anything, where the key is the Ivy repository root and
+   * protocol:host.
+   */
+  private Map<String, List<SVNRepository>> sessionPool = new HashMap<String, List<SVNRepository>>();
 
   /**
    * Private constructor to enfore singleton pattern.
@@ -57,11 +72,11 @@ public class SVNRepositoryCache {
   }
 
   /**
-   * Gets a repository instance for the passed URL. The same instance will be returned for the same protocol + host
-   * combination. If the repository cannot be found in the cache a new one will be created, the passed parameters
-   * determine the authentication mechanism which will be used for this. The returned repository will have its location
-   * set to the passed url.
+   * Borrows a repository instance for the passed URL from the pool, creating a new one if no idle instance is
+   * available. The returned repository is for the exclusive use of the caller until it is returned to the pool via
+   * releaseRepository(). The returned repository will have its location set to the passed url.
    * 
+   * @param ivyRepositoryRoot The root of the Ivy repository the URL belongs to.
    * @param url A SVNURL object with at the very least the protocol and host set.
    * @param userName Subversion user name.
    * @param userPassword Subversion password.
@@ -74,18 +89,89 @@ public class SVNRepositoryCache {
    * @return A repository for the passed url.
    * @throws SVNException If an error occurs creating the repository.
    */
-  public synchronized SVNRepository getRepository(SVNURL url, String userName, String userPassword, File keyFile,
-      String sshPassphrase, int portNumber, File certFile, String sslPassphrase, boolean storageAllowed)
+  public SVNRepository borrowRepository(String ivyRepositoryRoot, SVNURL url, String userName, String userPassword,
+      File keyFile, String sshPassphrase, int portNumber, File certFile, String sslPassphrase, boolean storageAllowed)
     throws SVNException {
-    String key = url.getProtocol() + ":" + url.getHost();
-    SVNRepository repository = repositoryCache.get(key);
-    if (repository == null) {
+    SVNRepository repository = null;
+    synchronized (this) {
+      List<SVNRepository> idleSessions = sessionPool.get(getKey(ivyRepositoryRoot, url));
+      if (idleSessions != null && !idleSessions.isEmpty()) {
+        repository = idleSessions.remove(idleSessions.size() - 1);
+      }
+    }
+    if (repository == null) { // create outside of lock so other threads don't have to wait for this
       repository = SvnUtils.createRepository(url, userName, userPassword, keyFile, sshPassphrase, portNumber, certFile,
           sslPassphrase, storageAllowed);
-      repositoryCache.put(key, repository);
     }
     repository.setLocation(url, false);
     return repository;
   }
 
+  /**
+   * Returns a previously borrowed repository to the pool. If the pool already holds the maximum number of idle sessions
+   * for the repository's host the repository's session will be closed instead.
+   * 
+   * @param ivyRepositoryRoot The root of the Ivy repository the repository was borrowed for.
+   * @param repository The repository to return, can be null in which case nothing is done.
+   */
+  public void releaseRepository(String ivyRepositoryRoot, SVNRepository repository) {
+    if (repository == null) {
+      return;
+    }
+    synchronized (this) {
+      String key = getKey(ivyRepositoryRoot, repository.getLocation());
+      List<SVNRepository> idleSessions = sessionPool.get(key);
+      if (idleSessions == null) {
+        idleSessions = new ArrayList<SVNRepository>();
+        sessionPool.put(key, idleSessions);
+      }
+      if (idleSessions.size() < maxIdleSessions) {
+        idleSessions.add(repository);
+        return;
+      }
+    }
+    repository.closeSession();
+  }
+
+  /**
+   * Gets the number of idle sessions in the pool for the passed URL.
+   * 
+   * @param ivyRepositoryRoot The root of the Ivy repository the URL belongs to.
+   * @param url The URL.
+   * @return The number of idle sessions.
+   */
+  public synchronized int getIdleSessionCount(String ivyRepositoryRoot, SVNURL url) {
+    List<SVNRepository> idleSessions = sessionPool.get(getKey(ivyRepositoryRoot, url));
+    return idleSessions == null ? 0 : idleSessions.size();
+  }
+
+  /**
+   * Gets the maximum number of idle sessions to keep in the pool per protocol:host.
+   * 
+   * @return The maximum number of idle sessions.
+   */
+  public synchronized int getMaxIdleSessions() {
+    return maxIdleSessions;
+  }
+
+  /**
+   * Sets the maximum number of idle sessions to keep in the pool per protocol:host.
+   * 
+   * @param maxIdleSessions The maximum number of idle sessions.
+   */
+  public synchronized void setMaxIdleSessions(int maxIdleSessions) {
+    this.maxIdleSessions = maxIdleSessions;
+  }
+
+  /**
+   * Gets the key used to cache repositories for the passed URL.
+   * 
+   * @param ivyRepositoryRoot The root of the Ivy repository the URL belongs to.
+   * @param url The URL.
+   * @return The cache key.
+   */
+  static String getKey(String ivyRepositoryRoot, SVNURL url) {
+    return ivyRepositoryRoot + " " + url.getProtocol() + ":" + url.getHost();
+  }
+
 }
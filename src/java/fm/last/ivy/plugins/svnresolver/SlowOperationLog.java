@@ -0,0 +1,250 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.MessageLogger;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+/**
+ * Logs operations which take longer than a threshold for their type, with enough detail (path, revision, server and
+ * session) to track down why, and keeps the slowest of them for a summary which is logged at the end of each run (see
+ * EndOfRunNotifier), after which the next run starts a new summary. Thresholds are set per operation type, e.g.
+ * "checkPath=500,getFile=10000,*=2000" where "*" is the threshold for types not listed, operations of types without a
+ * threshold aren't logged.
+ */
+public class SlowOperationLog implements EndOfRunListener {
+
+  /**
+   * The number of slowest operations kept for the summary.
+   */
+  static final int SUMMARY_SIZE = 20;
+
+  /**
+   * The key of the threshold for operation types without their own threshold.
+   */
+  private static final String DEFAULT_THRESHOLD = "*";
+
+  /**
+   * Thresholds in milliseconds, keyed by operation type.
+   */
+  private volatile Map<String, Long> thresholds = Collections.emptyMap();
+
+  /**
+   * The slowest operations logged in the current run, fastest first, at most SUMMARY_SIZE of them.
+   */
+  private final PriorityQueue<SlowOperation> slowest = new PriorityQueue<SlowOperation>();
+
+  /**
+   * The number of operations logged in the current run.
+   */
+  private long slowCount = 0;
+
+  /**
+   * Sets the thresholds above which operations are logged, replacing any set previously. The summary is logged at the
+   * end of the current run, and of any later runs, once thresholds have been set.
+   *
+   * @param thresholdSpec Comma separated list of thresholds in milliseconds in the form type=threshold, where type is
+   *          an operation type (e.g. "checkPath") or "*" for all types without their own threshold.
+   */
+  public void setThresholds(String thresholdSpec) {
+    Map<String, Long> parsed = new HashMap<String, Long>();
+    for (String threshold : thresholdSpec.split(",")) {
+      if (threshold.trim().length() > 0) {
+        int index = threshold.indexOf('=');
+        if (index < 0) {
+          throw new IllegalArgumentException("Invalid threshold '" + threshold.trim()
+              + "', expected type=milliseconds");
+        }
+        long millis = Long.parseLong(threshold.substring(index + 1).trim());
+        if (millis < 0) {
+          throw new IllegalArgumentException("Threshold cannot be negative: " + threshold.trim());
+        }
+        parsed.put(threshold.substring(0, index).trim(), millis);
+      }
+    }
+    thresholds = parsed;
+    EndOfRunNotifier.register(this);
+  }
+
+  /**
+   * Gets the threshold for an operation type.
+   *
+   * @param type The operation type.
+   * @return The threshold in milliseconds, -1 if operations of the type aren't logged.
+   */
+  public long getThreshold(String type) {
+    Map<String, Long> currentThresholds = thresholds;
+    Long threshold = currentThresholds.get(type);
+    if (threshold == null) {
+      threshold = currentThresholds.get(DEFAULT_THRESHOLD);
+    }
+    return threshold == null ? -1 : threshold;
+  }
+
+  /**
+   * Logs an operation which has just finished if it took longer than the threshold for its type.
+   *
+   * @param type The operation type.
+   * @param elapsedNanos The time the operation took in nanoseconds.
+   * @param path The path the operation was for, may be null.
+   * @param revision The revision the operation was for, -1 for the latest revision.
+   * @param session The session the operation was performed with, may be null.
+   */
+  public void check(String type, long elapsedNanos, String path, long revision, SVNRepository session) {
+    long threshold = getThreshold(type);
+    long elapsedMillis = elapsedNanos / 1000000;
+    if (threshold < 0 || elapsedMillis < threshold) {
+      return;
+    }
+    String server = null;
+    String sessionId = null;
+    if (session != null) {
+      server = ConnectionMetricsListener.getHostKey(session.getLocation());
+      sessionId = Integer.toHexString(System.identityHashCode(session));
+    }
+    SlowOperation operation = new SlowOperation(type, elapsedMillis, path, revision, server, sessionId);
+    Message.warn("Slow operation, " + operation + " (threshold " + threshold + "ms)");
+    synchronized (slowest) {
+      slowCount++;
+      slowest.add(operation);
+      if (slowest.size() > SUMMARY_SIZE) {
+        slowest.poll(); // drop the fastest
+      }
+    }
+  }
+
+  /**
+   * Gets the slowest operations logged in the current run.
+   *
+   * @return Descriptions of the operations, slowest first.
+   */
+  public List<String> getSlowest() {
+    List<SlowOperation> operations;
+    synchronized (slowest) {
+      operations = new ArrayList<SlowOperation>(slowest);
+    }
+    Collections.sort(operations, Collections.reverseOrder());
+    List<String> descriptions = new ArrayList<String>();
+    for (SlowOperation operation : operations) {
+      descriptions.add(operation.toString());
+    }
+    return descriptions;
+  }
+
+  /**
+   * Logs a summary of the slowest operations if any operations have been logged in the run, and starts a new summary
+   * for the next run.
+   * 
+   * @param logger The logger of the run.
+   */
+  public void runFinished(MessageLogger logger) {
+    List<SlowOperation> operations;
+    long count;
+    synchronized (slowest) {
+      operations = new ArrayList<SlowOperation>(slowest);
+      count = slowCount;
+      slowest.clear();
+      slowCount = 0;
+    }
+    if (count == 0) {
+      return;
+    }
+    Collections.sort(operations, Collections.reverseOrder());
+    StringBuilder summary = new StringBuilder();
+    summary.append(count).append(" slow Subversion operations, slowest ").append(operations.size()).append(":");
+    for (SlowOperation operation : operations) {
+      summary.append("\n\t").append(operation);
+    }
+    logger.warn(summary.toString());
+  }
+
+  /**
+   * An operation which took longer than its threshold, ordered by the time it took.
+   */
+  private static class SlowOperation implements Comparable<SlowOperation> {
+
+    /**
+     * The operation type.
+     */
+    private final String type;
+
+    /**
+     * The time the operation took in milliseconds.
+     */
+    private final long elapsedMillis;
+
+    /**
+     * The path the operation was for, may be null.
+     */
+    private final String path;
+
+    /**
+     * The revision the operation was for, -1 for the latest revision.
+     */
+    private final long revision;
+
+    /**
+     * The server the operation was performed on, may be null.
+     */
+    private final String server;
+
+    /**
+     * Id of the session the operation was performed with, may be null.
+     */
+    private final String sessionId;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param type The operation type.
+     * @param elapsedMillis The time the operation took in milliseconds.
+     * @param path The path the operation was for, may be null.
+     * @param revision The revision the operation was for, -1 for the latest revision.
+     * @param server The server the operation was performed on, may be null.
+     * @param sessionId Id of the session the operation was performed with, may be null.
+     */
+    private SlowOperation(String type, long elapsedMillis, String path, long revision, String server,
+        String sessionId) {
+      this.type = type;
+      this.elapsedMillis = elapsedMillis;
+      this.path = path;
+      this.revision = revision;
+      this.server = server;
+      this.sessionId = sessionId;
+    }
+
+    public int compareTo(SlowOperation other) {
+      return elapsedMillis < other.elapsedMillis ? -1 : elapsedMillis == other.elapsedMillis ? 0 : 1;
+    }
+
+    @Override
+    public String toString() {
+      return type + " took " + elapsedMillis + "ms [path=" + path + ", revision=" + (revision < 0 ? "HEAD" : revision)
+          + ", server=" + server + ", session=" + sessionId + "]";
+    }
+
+  }
+
+}
@@ -21,20 +21,34 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.apache.ivy.plugins.repository.TransferEvent;
+import org.apache.ivy.util.ChecksumHelper;
 import org.apache.ivy.util.Message;
 import org.tmatesoft.svn.core.SVNDirEntry;
+import org.tmatesoft.svn.core.SVNErrorCode;
 import org.tmatesoft.svn.core.SVNErrorMessage;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNProperties;
+import org.tmatesoft.svn.core.SVNProperty;
 import org.tmatesoft.svn.core.SVNURL;
 import org.tmatesoft.svn.core.io.ISVNEditor;
 import org.tmatesoft.svn.core.io.SVNRepository;
 import org.tmatesoft.svn.core.io.diff.SVNDeltaGenerator;
+import org.tmatesoft.svn.core.io.diff.SVNDiffInstruction;
+import org.tmatesoft.svn.core.io.diff.SVNDiffWindow;
 
 /**
  * Data access object that performs needed "CRUD" operations in Subversion.
@@ -48,6 +62,62 @@ public class SvnDao {
 
   private SVNURL initialLocation;
   
+  /**
+   * Delta compression setting which always calculates deltas.
+   */
+  public static final String DELTA_COMPRESSION_TRUE = "true";
+
+  /**
+   * Delta compression setting which never calculates deltas and sends file data as is.
+   */
+  public static final String DELTA_COMPRESSION_FALSE = "false";
+
+  /**
+   * Delta compression setting which calculates deltas unless the file is already compressed.
+   */
+  public static final String DELTA_COMPRESSION_AUTO = "auto";
+
+  /**
+   * Default maximum size of the windows file data is split into when it is sent to Subversion (same as SVNKit).
+   */
+  public static final int DEFAULT_DELTA_WINDOW_SIZE = 100 * 1024;
+
+  /**
+   * File extensions of formats which are already compressed, so attempting to compress them further is a waste of CPU.
+   */
+  private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList("jar", "war", "ear",
+      "zip", "gz", "tgz", "bz2", "xz", "7z"));
+
+  /**
+   * Maximum size of the windows file data is split into when it is sent to Subversion.
+   */
+  private int deltaWindowSize = DEFAULT_DELTA_WINDOW_SIZE;
+
+  /**
+   * Whether file data should be delta compressed before being sent to Subversion.
+   */
+  private String deltaCompression = DELTA_COMPRESSION_TRUE;
+
+  /**
+   * Listener to notify of file transfer progress, may be null.
+   */
+  private TransferProgressListener transferProgressListener;
+
+  /**
+   * Limits the rate at which file data is retrieved, may be null.
+   */
+  private BandwidthLimiter getBandwidthLimiter;
+
+  /**
+   * Limits the rate at which file data is sent, may be null.
+   */
+  private BandwidthLimiter putBandwidthLimiter;
+
+  /**
+   * Metrics to record operations in, may be null.
+   */
+  private RepositoryMetrics metrics;
+
   /**
    * A "cache" of folders known to exist in svn, so we don't have to hit repository to check every time.
    */
@@ -81,6 +151,24 @@ public class SvnDao {
    */
   public boolean putFile(ISVNEditor editor, byte[] data, String destinationFolder, String fileName, boolean overwrite)
     throws SVNException {
+    return putFile(editor, new ByteArrayInputStream(data), destinationFolder, fileName, overwrite);
+  }
+
+  /**
+   * Puts a file into Subversion, does update or add depending on whether file already exists or not. Folder containing
+   * file *must* already exist. The file data is streamed to the editor so it doesn't need to be held in memory.
+   * 
+   * @param editor An initialised commit editor.
+   * @param data Stream of the file data, this is not closed by this method.
+   * @param destinationFolder Destination folder in svn.
+   * @param fileName File name.
+   * @param overwrite Whether existing file should be overwritten or not.
+   * @return true if File was updated or added, false if it was ignored (i.e. it already exists and overwrite was
+   *         false).
+   * @throws SVNException If an error occurs putting the file into Subversion.
+   */
+  public boolean putFile(ISVNEditor editor, InputStream data, String destinationFolder, String fileName,
+      boolean overwrite) throws SVNException {
     String filePath = destinationFolder + "/" + fileName;
     if (fileExists(filePath, -1)) { // updating existing file
       if (overwrite) {
@@ -94,10 +182,259 @@ public class SvnDao {
       Message.debug("Adding file " + filePath);
       editor.addFile(filePath, null, -1);
     }
+    sendFile(editor, filePath, data);
+    return true;
+  }
+
+  /**
+   * Replaces the contents of a file which exists in the current commit, but not necessarily in the repository yet
+   * (e.g. a file in a folder which has been copied as part of the commit).
+   * 
+   * @param editor An initialised commit editor.
+   * @param filePath The file path.
+   * @param data The new file data.
+   * @throws SVNException If an error occurs replacing the file.
+   */
+  public void replaceFile(ISVNEditor editor, String filePath, byte[] data) throws SVNException {
+    Message.debug("Replacing file " + filePath);
+    editor.openFile(filePath, -1);
+    sendFile(editor, filePath, new ByteArrayInputStream(data));
+  }
+
+  /**
+   * Sends the data for a file which has been added or opened and closes it.
+   * 
+   * @param editor An initialised commit editor.
+   * @param filePath The file path.
+   * @param data Stream of the file data.
+   * @throws SVNException If an error occurs sending the file data.
+   */
+  private void sendFile(ISVNEditor editor, String filePath, InputStream data) throws SVNException {
     editor.applyTextDelta(filePath, null);
-    SVNDeltaGenerator deltaGenerator = new SVNDeltaGenerator();
-    String checksum = deltaGenerator.sendDelta(filePath, new ByteArrayInputStream(data), editor, true);
+    data = OperationDeadline.wrap(data);
+    if (putBandwidthLimiter != null) {
+      data = putBandwidthLimiter.wrap(data);
+    }
+    if (transferProgressListener != null) { // data is read a window at a time as it is sent
+      String url = initialLocation.appendPath(filePath, false).toString();
+      data = new TransferProgress(url, TransferEvent.REQUEST_PUT, transferProgressListener).wrap(data);
+    }
+    String checksum = null;
+    if (isDeltaCompressed(filePath)) {
+      SVNDeltaGenerator deltaGenerator = new SVNDeltaGenerator(deltaWindowSize);
+      checksum = deltaGenerator.sendDelta(filePath, data, editor, true);
+    } else {
+      checksum = sendFullText(editor, filePath, data);
+    }
     editor.closeFile(filePath, checksum);
+  }
+
+  /**
+   * Determines whether the data for the passed file should be delta compressed before being sent to Subversion.
+   * 
+   * @param fileName The file name or path.
+   * @return true if the data should be delta compressed, false otherwise.
+   */
+  private boolean isDeltaCompressed(String fileName) {
+    if (DELTA_COMPRESSION_AUTO.equals(deltaCompression)) {
+      int extensionIndex = fileName.lastIndexOf('.');
+      return extensionIndex < 0
+          || !COMPRESSED_EXTENSIONS.contains(fileName.substring(extensionIndex + 1).toLowerCase());
+    }
+    return !DELTA_COMPRESSION_FALSE.equals(deltaCompression);
+  }
+
+  /**
+   * Sends file data to the editor as is, without trying to find any matches within the data to compress it. Each
+   * window consists of a single instruction to insert the window's data.
+   * 
+   * @param editor An initialised commit editor, with a text delta already applied for the file.
+   * @param filePath The file path.
+   * @param data Stream of the file data.
+   * @return The MD5 checksum of the file data.
+   * @throws SVNException If an error occurs sending or reading the file data.
+   */
+  private String sendFullText(ISVNEditor editor, String filePath, InputStream data) throws SVNException {
+    MessageDigest digest = null;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new SVNException(SVNErrorMessage.create(SVNErrorCode.IO_ERROR, e.getMessage()), e);
+    }
+    byte[] buffer = new byte[deltaWindowSize];
+    try {
+      boolean windowSent = false;
+      int length = 0;
+      while ((length = readWindow(data, buffer)) > 0) {
+        digest.update(buffer, 0, length);
+        ByteBuffer windowData = ByteBuffer.allocate(length + 16); // allow space for instruction
+        new SVNDiffInstruction(SVNDiffInstruction.COPY_FROM_NEW_DATA, length, 0).writeTo(windowData);
+        int instructionsLength = windowData.position();
+        windowData.put(buffer, 0, length);
+        windowData.flip();
+        SVNDiffWindow window = new SVNDiffWindow(0, 0, length, instructionsLength, length);
+        window.setData(windowData);
+        editor.textDeltaChunk(filePath, window).close();
+        windowSent = true;
+      }
+      if (!windowSent) { // empty file
+        editor.textDeltaChunk(filePath, SVNDiffWindow.EMPTY).close();
+      }
+    } catch (IOException e) {
+      throw new SVNException(SVNErrorMessage.create(SVNErrorCode.IO_ERROR, e.getMessage()), e);
+    }
+    editor.textDeltaEnd(filePath);
+    return ChecksumHelper.byteArrayToHexString(digest.digest());
+  }
+
+  /**
+   * Reads data into the passed buffer until it is full or there is no more data.
+   * 
+   * @param data The stream to read.
+   * @param buffer The buffer to read into.
+   * @return The number of bytes read.
+   * @throws IOException If an error occurs reading the data.
+   */
+  private int readWindow(InputStream data, byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      int count = data.read(buffer, total, buffer.length - total);
+      if (count < 0) {
+        break;
+      }
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * Sets the maximum size of the windows file data is split into when it is sent to Subversion. Larger windows can
+   * find more matches when delta compressing but use more memory.
+   * 
+   * @param deltaWindowSize The window size in bytes.
+   */
+  public void setDeltaWindowSize(int deltaWindowSize) {
+    this.deltaWindowSize = deltaWindowSize;
+  }
+
+  /**
+   * Gets the MD5 checksum Subversion has recorded for a file's contents.
+   * 
+   * @param filePath Path to the file, relative to the initial location.
+   * @param revision Revision of the file, -1 for HEAD.
+   * @return The MD5 checksum as a hex string, or null if the file doesn't exist.
+   * @throws SVNException If an error occurs reading the file's properties.
+   */
+  public String getFileChecksum(String filePath, long revision) throws SVNException {
+    if (!fileExists(filePath, revision)) {
+      return null;
+    }
+    SVNProperties properties = new SVNProperties();
+    long start = System.nanoTime();
+    FlightRecorderEvents.Event event = beginRpc(RepositoryMetrics.Operation.GET_FILE, filePath);
+    readRepository.getFile(filePath, revision, properties, null);
+    record(RepositoryMetrics.Operation.GET_FILE, start, event.setRevision(revision), filePath, revision);
+    return properties.getStringValue(SVNProperty.CHECKSUM);
+  }
+
+  /**
+   * Clears the cache of folders known to exist, so they are checked in the repository again, for use when the
+   * repository may have been changed by someone else.
+   */
+  public void clearFolderCache() {
+    existingFolderPaths.clear();
+  }
+
+  /**
+   * Sets the listener to notify as file data is transferred.
+   * 
+   * @param transferProgressListener The listener, or null to not track progress.
+   */
+  public void setTransferProgressListener(TransferProgressListener transferProgressListener) {
+    this.transferProgressListener = transferProgressListener;
+  }
+
+  /**
+   * Sets the limiters for the rate at which file data is transferred.
+   * 
+   * @param getBandwidthLimiter Limiter for retrieving file data, or null for no limit.
+   * @param putBandwidthLimiter Limiter for sending file data, or null for no limit.
+   */
+  public void setBandwidthLimiters(BandwidthLimiter getBandwidthLimiter, BandwidthLimiter putBandwidthLimiter) {
+    this.getBandwidthLimiter = getBandwidthLimiter;
+    this.putBandwidthLimiter = putBandwidthLimiter;
+  }
+
+  /**
+   * Sets the metrics to record operations in.
+   * 
+   * @param metrics The metrics, or null to not record operations.
+   */
+  public void setMetrics(RepositoryMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Begins a flight recorder event for an RPC which is about to be made.
+   * 
+   * @param operation The RPC.
+   * @param path The path the RPC is for.
+   * @return The event, which must be passed to record() once the RPC has finished.
+   */
+  private FlightRecorderEvents.Event beginRpc(RepositoryMetrics.Operation operation, String path) {
+    return FlightRecorderEvents.begin(FlightRecorderEvents.Type.RPC, operation.getAttributeName(), path);
+  }
+
+  /**
+   * Records the latency of an operation which has just finished, if metrics are being recorded, and commits its flight
+   * recorder event.
+   * 
+   * @param operation The operation.
+   * @param start The time the operation started, as returned by System.nanoTime().
+   * @param event The operation's flight recorder event.
+   * @param path The path the operation was for.
+   * @param revision The revision the operation was for.
+   */
+  private void record(RepositoryMetrics.Operation operation, long start, FlightRecorderEvents.Event event,
+      String path, long revision) {
+    event.commit();
+    if (metrics != null) {
+      metrics.record(operation, start, path, revision, readRepository);
+    }
+  }
+
+  /**
+   * Sets whether file data should be delta compressed before being sent to Subversion, one of
+   * {@link #DELTA_COMPRESSION_TRUE}, {@link #DELTA_COMPRESSION_FALSE} or {@link #DELTA_COMPRESSION_AUTO}.
+   * 
+   * @param deltaCompression The delta compression setting.
+   */
+  public void setDeltaCompression(String deltaCompression) {
+    this.deltaCompression = deltaCompression;
+  }
+
+  /**
+   * Adds a file to Subversion as a copy of an existing file, so no file data needs to be sent. Folder containing file
+   * *must* already exist. Only new files can be added this way, existing files are left for the caller to update via
+   * putFile().
+   * 
+   * @param editor An initialised commit editor.
+   * @param copyFromPath Path of the existing file to copy from.
+   * @param copyFromRevision Revision of the existing file to copy from.
+   * @param destinationFolder Destination folder in svn.
+   * @param fileName File name.
+   * @return true if the file was added as a copy, false if it already exists.
+   * @throws SVNException If an error occurs copying the file.
+   */
+  public boolean copyFile(ISVNEditor editor, String copyFromPath, long copyFromRevision, String destinationFolder,
+      String fileName) throws SVNException {
+    String filePath = destinationFolder + "/" + fileName;
+    if (fileExists(filePath, -1)) {
+      return false;
+    }
+    Message.debug("Adding file " + filePath + " as copy of " + copyFromPath + "@" + copyFromRevision);
+    editor.addFile(filePath, copyFromPath, copyFromRevision);
+    editor.closeFile(filePath, null);
     return true;
   }
 
@@ -157,7 +494,10 @@ public class SvnDao {
     List<String> contents = new ArrayList<String>();
     if (folderExists(folderPath, revision, false)) {
       List<SVNDirEntry> entries = new ArrayList<SVNDirEntry>();
+      long start = System.nanoTime();
+      FlightRecorderEvents.Event event = beginRpc(RepositoryMetrics.Operation.GET_DIR, folderPath);
       readRepository.getDir(folderPath, revision, false, entries);
+      record(RepositoryMetrics.Operation.GET_DIR, start, event.setRevision(revision), folderPath, revision);
       for (SVNDirEntry entry : entries) {
         contents.add(entry.getRelativePath());
       }
@@ -175,11 +515,22 @@ public class SvnDao {
    * @throws SVNException If an error occurs determining whether the folder exists.
    */
   public boolean folderExists(String folderPath, long revision, boolean useCache) throws SVNException {
-    if (useCache && existingFolderPaths.contains(folderPath)) { // first check our cache if this path is known to exist
+    boolean cached = useCache && existingFolderPaths.contains(folderPath);
+    if (useCache) {
+      if (metrics != null) {
+        metrics.folderCacheLookup(cached);
+      }
+      FlightRecorderEvents.lookup("folder", folderPath, cached);
+    }
+    if (cached) { // first check our cache if this path is known to exist
       return true;
     } else { // not previously cached, so check against repository
+      OperationDeadline.check();
       readRepository.setLocation(initialLocation, true);
+      long start = System.nanoTime();
+      FlightRecorderEvents.Event event = beginRpc(RepositoryMetrics.Operation.CHECK_PATH, folderPath);
       SVNNodeKind nodeKind = readRepository.checkPath(folderPath.toString(), revision);
+      record(RepositoryMetrics.Operation.CHECK_PATH, start, event.setRevision(revision), folderPath, revision);
       if (SVNNodeKind.DIR == nodeKind) {
         if (useCache) {
           existingFolderPaths.add(folderPath);
@@ -199,8 +550,12 @@ public class SvnDao {
    * @throws SVNException If an error occurs determining whether the file exists.
    */
   public boolean fileExists(String path, long revision) throws SVNException {
+    OperationDeadline.check();
     readRepository.setLocation(initialLocation, true);
+    long start = System.nanoTime();
+    FlightRecorderEvents.Event event = beginRpc(RepositoryMetrics.Operation.CHECK_PATH, path);
     SVNNodeKind kind = readRepository.checkPath(path, revision);
+    record(RepositoryMetrics.Operation.CHECK_PATH, start, event.setRevision(revision), path, revision);
     if (kind == SVNNodeKind.FILE) {
       return true;
     }
@@ -217,22 +572,70 @@ public class SvnDao {
    * @throws IOException If an error occurs writing the file contents to disk.
    */
   public void getFile(SVNURL sourceURL, File destination, long revision) throws SVNException, IOException {
+    getFile(sourceURL, destination, revision, null);
+  }
+
+  /**
+   * Gets a file from the repository, updating the passed digest with the file contents as they are written to disk.
+   * 
+   * @param sourceURL The full path to the file, reachable via the read repository.
+   * @param destination The destination file.
+   * @param revision The subversion revision.
+   * @param digest Digest to update with the file contents (can be null).
+   * @return The revision of the file that was retrieved.
+   * @throws SVNException If an error occurs retrieving the file from Subversion.
+   * @throws IOException If an error occurs writing the file contents to disk.
+   */
+  public long getFile(SVNURL sourceURL, File destination, long revision, MessageDigest digest) throws SVNException,
+    IOException {
+    OperationDeadline.check();
     readRepository.setLocation(sourceURL, false);
+    long start = System.nanoTime();
+    FlightRecorderEvents.Event event = beginRpc(RepositoryMetrics.Operation.CHECK_PATH, sourceURL.toString());
     SVNNodeKind nodeKind = readRepository.checkPath("", revision);
+    record(RepositoryMetrics.Operation.CHECK_PATH, start, event.setRevision(revision), sourceURL.toString(),
+        revision);
     SVNErrorMessage error = SvnUtils.checkNodeIsFile(nodeKind, sourceURL);
     if (error != null) {
       Message.error("Error retrieving" + sourceURL + " [revision=" + revision + "]");
       throw new IOException(error.getMessage());
     }
-    BufferedOutputStream output = null;
+    OutputStream output = null;
+    long retrievedRevision;
     try {
       output = new BufferedOutputStream(new FileOutputStream(destination));
-      readRepository.getFile("", revision, null, output);
+      if (digest != null) {
+        output = new DigestOutputStream(output, digest);
+      }
+      if (getBandwidthLimiter != null) {
+        output = getBandwidthLimiter.wrap(output);
+      }
+      output = OperationDeadline.wrap(output);
+      if (transferProgressListener != null) {
+        output = new TransferProgress(sourceURL.toString(), TransferEvent.REQUEST_GET, transferProgressListener)
+            .wrap(output);
+      }
+      start = System.nanoTime();
+      event = beginRpc(RepositoryMetrics.Operation.GET_FILE, sourceURL.toString());
+      retrievedRevision = readRepository.getFile("", revision, null, output);
     } finally {
       if (output != null) {
         output.close();
       }
     }
+    record(RepositoryMetrics.Operation.GET_FILE, start, event.setRevision(retrievedRevision).setBytes(
+        destination.length()), sourceURL.toString(), retrievedRevision);
+    return retrievedRevision;
+  }
+
+  /**
+   * Gets the repository used by this DAO for read operations. This should only be used for managing the lifecycle of
+   * the repository (e.g. closing its session), not for performing any operations on it.
+   * 
+   * @return The read repository.
+   */
+  public SVNRepository getRepository() {
+    return readRepository;
   }
 
 }
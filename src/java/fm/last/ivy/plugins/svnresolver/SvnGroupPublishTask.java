@@ -0,0 +1,103 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.ivy.ant.IvyTask;
+import org.apache.ivy.plugins.resolver.DependencyResolver;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+
+/**
+ * Ant task which publishes all modules published by its nested tasks (usually ivy:publish) as a single Subversion
+ * commit. Overwrite and cleanup rules are still applied per module, but either all of the modules are published or none
+ * of them are. Example usage:
+ *
+ * <pre>
+ * &lt;taskdef name="svngrouppublish" classname="fm.last.ivy.plugins.svnresolver.SvnGroupPublishTask"/&gt;
+ * &lt;svngrouppublish resolver="ivysvn"&gt;
+ *   &lt;ivy:publish resolver="ivysvn" ... /&gt;
+ *   &lt;ivy:publish resolver="ivysvn" ... /&gt;
+ * &lt;/svngrouppublish&gt;
+ * </pre>
+ */
+public class SvnGroupPublishTask extends IvyTask implements TaskContainer {
+
+  /**
+   * The name of the svn resolver that the nested tasks publish to.
+   */
+  private String resolver;
+
+  /**
+   * The nested tasks.
+   */
+  private List<Task> tasks = new ArrayList<Task>();
+
+  /**
+   * Set the name of the svn resolver that the nested tasks publish to.
+   *
+   * @param resolver The resolver name.
+   */
+  public void setResolver(String resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Adds a nested task.
+   *
+   * @param task The task to add.
+   */
+  public void addTask(Task task) {
+    tasks.add(task);
+  }
+
+  @Override
+  public void doExecute() throws BuildException {
+    if (resolver == null) {
+      throw new BuildException("The 'resolver' attribute is required");
+    }
+    DependencyResolver dependencyResolver = getSettings().getResolver(resolver);
+    if (!(dependencyResolver instanceof SvnResolver)) {
+      throw new BuildException("Resolver '" + resolver + "' is not an svn resolver");
+    }
+    SvnResolver svnResolver = (SvnResolver) dependencyResolver;
+    boolean committed = false;
+    try {
+      svnResolver.beginGroupPublishTransaction();
+      for (Task task : tasks) {
+        task.perform();
+      }
+      svnResolver.commitGroupPublishTransaction();
+      committed = true;
+    } catch (IOException e) {
+      throw new BuildException("Error performing group publish to '" + resolver + "'", e);
+    } finally {
+      if (!committed) {
+        try {
+          svnResolver.abortGroupPublishTransaction();
+        } catch (IOException e) {
+          log("Error aborting group publish to '" + resolver + "': " + e.getMessage());
+        }
+      }
+    }
+  }
+
+}
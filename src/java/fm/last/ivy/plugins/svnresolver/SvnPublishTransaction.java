@@ -18,8 +18,12 @@ package fm.last.ivy.plugins.svnresolver;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,6 +37,7 @@ import org.tmatesoft.svn.core.SVNErrorMessage;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNURL;
 import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNLocationEntry;
 import org.tmatesoft.svn.core.io.SVNRepository;
 
 /**
@@ -42,6 +47,34 @@ import org.tmatesoft.svn.core.io.SVNRepository;
  */
 public class SvnPublishTransaction {
 
+  /**
+   * Default maximum number of times a commit which conflicts with a concurrent commit, or loses its connection to the
+   * server, will be attempted.
+   */
+  public static final int DEFAULT_MAX_COMMIT_ATTEMPTS = 3;
+
+  /**
+   * Time in milliseconds to wait before the first retry of a failed commit, doubled for each further retry.
+   */
+  private static final long RETRY_DELAY = 200;
+
+  /**
+   * Error codes which indicate a commit failed because a concurrent commit changed the same paths.
+   */
+  private static final Set<SVNErrorCode> CONFLICT_ERROR_CODES = new HashSet<SVNErrorCode>(Arrays.asList(
+      SVNErrorCode.FS_CONFLICT, SVNErrorCode.FS_TXN_OUT_OF_DATE, SVNErrorCode.FS_OUT_OF_DATE,
+      SVNErrorCode.RA_OUT_OF_DATE, SVNErrorCode.WC_NOT_UP_TO_DATE, SVNErrorCode.FS_ALREADY_EXISTS,
+      SVNErrorCode.RA_DAV_ALREADY_EXISTS));
+
+  /**
+   * Error codes which indicate a commit failed because of a problem communicating with the server (e.g. a dropped
+   * connection), which may not happen again.
+   */
+  private static final Set<SVNErrorCode> CONNECTION_ERROR_CODES = new HashSet<SVNErrorCode>(Arrays.asList(
+      SVNErrorCode.RA_SVN_IO_ERROR, SVNErrorCode.RA_SVN_CONNECTION_CLOSED, SVNErrorCode.RA_SVN_MALFORMED_DATA,
+      SVNErrorCode.RA_DAV_REQUEST_FAILED, SVNErrorCode.RA_DAV_SOCK_INIT, SVNErrorCode.RA_DAV_CREATING_REQUEST,
+      SVNErrorCode.RA_DAV_MALFORMED_DATA));
+
   /**
    * Data access object for accessing subversion. Can be used to check for file existence and perform other operations
    * without affecting commit editor (required as SVNKit doesn't allow many operations once commit editor is opened for
@@ -59,6 +92,23 @@ public class SvnPublishTransaction {
    */
   private DirectoryTree publishTree = new DirectoryTree("", null);
 
+  /**
+   * All put operations added to this transaction in the order they were added, including any which were ignored when
+   * scheduled, so the tree of operations can be rebuilt if the commit has to be retried.
+   */
+  private List<PutOperation> putOperations = new ArrayList<PutOperation>();
+
+  /**
+   * Destination folders of binary diff copies which replace any existing folder, i.e. which were published with
+   * overwrite set.
+   */
+  private Set<String> replaceableFolders = new HashSet<String>();
+
+  /**
+   * The Ivy modules being published in this transaction.
+   */
+  private List<ModuleRevisionId> moduleRevisionIds = new ArrayList<ModuleRevisionId>();
+
   /**
    * Svn commit message.
    */
@@ -80,7 +130,7 @@ public class SvnPublishTransaction {
   private boolean binaryDiff = true;
 
   /**
-   * The Ivy module revision string.
+   * The Ivy module revision string of the module currently having put operations added.
    */
   private String revision;
 
@@ -99,6 +149,50 @@ public class SvnPublishTransaction {
    */
   private SVNURL ivyRepositoryRootURL = null;
 
+  /**
+   * Index of content already in the repository, used to add files as copies instead of uploading them (null if content
+   * deduplication is disabled).
+   */
+  private ContentIndex contentIndex = null;
+
+  /**
+   * Metrics to record operations in, may be null.
+   */
+  private RepositoryMetrics metrics = null;
+
+  /**
+   * Files put during the current commit, where the key is the file path and the value is the SHA-1 checksum of its
+   * content. Only populated if content deduplication is enabled.
+   */
+  private Map<String, String> committedContent = new HashMap<String, String>();
+
+  /**
+   * Maximum number of times a commit which conflicts with a concurrent commit, or loses its connection to the server,
+   * will be attempted.
+   */
+  private int maxCommitAttempts = DEFAULT_MAX_COMMIT_ATTEMPTS;
+
+  /**
+   * Size in bytes from which files are staged in commits of their own when publishing via binary diff, 0 to disable.
+   */
+  private long stagingThreshold = 0;
+
+  /**
+   * Whether an earlier attempt at committing this transaction failed, in which case files may already have been
+   * committed by it.
+   */
+  private boolean retrying = false;
+
+  /**
+   * Put operations which have been scheduled, keyed by destination path, used to look up the file a checksum is for.
+   */
+  private Map<String, PutOperation> scheduledOperations = new HashMap<String, PutOperation>();
+
+  /**
+   * The revision of the last commit made by this transaction, -1 if nothing has been committed.
+   */
+  private long committedRevision = -1;
+
   /**
    * Constructs a new instance of this class.
    * 
@@ -111,12 +205,29 @@ public class SvnPublishTransaction {
   public SvnPublishTransaction(SvnDao svnDAO, ModuleRevisionId mrid, SVNRepository commitRepository,
       SVNURL ivyRepositoryRootURL) throws SVNException {
     this.svnDAO = svnDAO;
-    this.revision = mrid.getRevision();
     setCommitRepository(commitRepository);
     this.ivyRepositoryRootURL = ivyRepositoryRootURL;
-    StringBuilder comment = new StringBuilder();
-    comment.append("Ivy publishing ").append(mrid.getOrganisation()).append("#");
-    comment.append(mrid.getName()).append(";").append(mrid.getRevision());
+    addModule(mrid);
+  }
+
+  /**
+   * Adds a module to this transaction, all subsequent put operations will be for this module until another module is
+   * added. This allows multiple modules to be published as part of a single commit.
+   * 
+   * @param mrid The ivy Module Revision ID.
+   */
+  public void addModule(ModuleRevisionId mrid) {
+    this.revision = mrid.getRevision();
+    moduleRevisionIds.add(mrid);
+    StringBuilder comment = new StringBuilder("Ivy publishing ");
+    for (int i = 0; i < moduleRevisionIds.size(); i++) {
+      ModuleRevisionId moduleRevisionId = moduleRevisionIds.get(i);
+      if (i > 0) {
+        comment.append(", ");
+      }
+      comment.append(moduleRevisionId.getOrganisation()).append("#");
+      comment.append(moduleRevisionId.getName()).append(";").append(moduleRevisionId.getRevision());
+    }
     this.commitMessage = comment.toString();
   }
 
@@ -129,16 +240,67 @@ public class SvnPublishTransaction {
    * @throws IOException If the file data cannot be read from disk or the file paths cannot be determined.
    */
   public void addPutOperation(File source, String destinationPath, boolean overwrite) throws SVNException, IOException {
-    PutOperation operation = new PutOperation(source, destinationPath, overwrite);
+    PutOperation operation = new PutOperation(source, destinationPath, overwrite, revision);
+    if (schedule(operation)) {
+      scheduledOperations.put(destinationPath, operation);
+    }
+  }
 
+  /**
+   * Adds an operation representing a checksum file "put" to the transaction. The checksum is calculated while the file
+   * it is for is streamed into Subversion, so that file must already have been added to this transaction.
+   * 
+   * @param destinationPath The full svn path to the file the checksum is for.
+   * @param algorithm The checksum algorithm (e.g. "md5", "sha1").
+   * @param overwrite Whether an overwrite should be performed if the checksum file already exists.
+   * @return true if the checksum operation was added, false if the file it is for has not been added.
+   * @throws SVNException If an error occurs determining the file paths.
+   */
+  public boolean addChecksumOperation(String destinationPath, String algorithm, boolean overwrite)
+    throws SVNException {
+    PutOperation source = scheduledOperations.get(destinationPath);
+    if (source == null) {
+      return false;
+    }
+    schedule(new PutOperation(source, algorithm, overwrite));
+    return true;
+  }
+
+  /**
+   * Adds a put operation to the tree of operations to be committed.
+   * 
+   * @param operation The put operation.
+   * @return true if the operation was scheduled, false if it was ignored.
+   * @throws SVNException If an error occurs checking whether the destination already exists.
+   */
+  private boolean schedule(PutOperation operation) throws SVNException {
+    FlightRecorderEvents.Event event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.PUBLISH_PHASE, "plan",
+        operation.getFilePath());
+    TraceRecorder.Span span = TraceRecorder.current().beginChild("plan", operation.getFilePath());
+    try {
+      putOperations.add(operation);
+      return scheduleInTree(operation);
+    } finally {
+      span.end();
+      event.setBytes(operation.getLength()).commit();
+    }
+  }
+
+  /**
+   * Adds a put operation to the tree of operations to be committed, see schedule().
+   * 
+   * @param operation The put operation.
+   * @return true if the operation was scheduled, false if it was ignored.
+   * @throws SVNException If an error occurs checking whether the destination already exists.
+   */
+  private boolean scheduleInTree(PutOperation operation) throws SVNException {
     String destinationFolderPath = operation.getFolderPath();
     if (binaryDiff) { // publishing to intermediate binary diff location, override values set above
       if (!operation.isOverwrite() && svnDAO.folderExists(operation.getFolderPath(), -1, true)) {
         Message.info("Overwrite set to false, ignoring " + operation.getFilePath());
-        return;
+        return false;
       }
       destinationFolderPath = operation.determineBinaryDiffFolderPath(revision, binaryDiffFolderName);
-      overwrite = true; // force overwrite for binary diff
     }
 
     if (destinationFolderPath.startsWith("/")) {
@@ -152,6 +314,7 @@ public class SvnPublishTransaction {
       pathIndex++;
     }
     currentTree.addPutOperation(operation); // add the put operation to the deepest level of the tree
+    return true;
   }
 
   /**
@@ -161,22 +324,175 @@ public class SvnPublishTransaction {
    * @throws IOException If an error occurs reading any file data.
    */
   public void commit() throws SVNException, IOException {
+    if (binaryDiff && stagingThreshold > 0) {
+      TraceRecorder.Span span = TraceRecorder.current().beginChild("stageLargeFiles", ivyRepositoryRootURL.toString());
+      try {
+        stageLargeFiles(publishTree);
+      } finally {
+        span.end();
+      }
+    }
+    Map<String, String> foldersToCopy = null;
+    for (int attempt = 1; foldersToCopy == null; attempt++) {
+      try {
+        foldersToCopy = commitPutOperations();
+      } catch (SVNException e) {
+        retryOrRethrow(e, attempt);
+        retrying = true;
+        replan();
+      }
+    }
+    for (int attempt = 1; !foldersToCopy.isEmpty(); attempt++) {
+      TraceRecorder.Span span = TraceRecorder.current().beginChild("copyDiff", ivyRepositoryRootURL.toString());
+      try {
+        copyDiff(foldersToCopy, attempt > 1);
+        break;
+      } catch (SVNException e) {
+        retryOrRethrow(e, attempt);
+        svnDAO.clearFolderCache(); // folders may have been added by the failed commit or the conflicting one
+      } finally {
+        span.end();
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the tree of operations to commit against the current state of the repository, after a commit failed
+   * because a concurrent commit changed the same paths, or because the connection was lost (possibly after the commit
+   * went through). Folders and files are then added or updated depending on what is now in the repository.
+   * 
+   * @throws SVNException If an error occurs checking whether destinations exist.
+   */
+  private void replan() throws SVNException {
+    svnDAO.clearFolderCache(); // folders may have been added or deleted by the conflicting commit
+    committedContent.clear();
+    publishTree = new DirectoryTree("", null);
+    for (PutOperation operation : putOperations) {
+      scheduleInTree(operation);
+    }
+  }
+
+  /**
+   * Commits all scheduled put operations, deleting any existing folders which are to be replaced by binary diff copies.
+   * 
+   * @return Map of folders which need to be copied in the binary diff commit, where key is destination and value is
+   *         source.
+   * @throws SVNException If an error occurs committing the put operations.
+   * @throws IOException If an error occurs reading any file data.
+   */
+  private Map<String, String> commitPutOperations() throws SVNException, IOException {
+    OperationDeadline.check();
     // reset the repository to the ivy repository root and tell it to connect if necessary
     commitRepository.setLocation(ivyRepositoryRootURL, true);
     commitEditor = commitRepository.getCommitEditor(commitMessage, null);
     commitStarted = true;
     commitEditor.openRoot(-1);
-    int putFileCount = commitTree(publishTree);
+    FlightRecorderEvents.Event event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.PUBLISH_PHASE,
+        "commitTree", ivyRepositoryRootURL.toString());
+    TraceRecorder.Span span = TraceRecorder.current().beginChild("commitTree", ivyRepositoryRootURL.toString());
+    int putFileCount;
+    try {
+      putFileCount = commitTree(publishTree);
+    } finally {
+      span.end();
+      event.commit();
+    }
     if (putFileCount == 0) {
       commitEditor.abortEdit();
       Message.info("Nothing to commit");
-    } else {
-      Map<String, String> foldersToCopy = prepareBinaryDiff(publishTree); // prepare binary diff in existing
-      // transaction
-      commitEditor.closeDir(); // close root
-      SVNCommitInfo info = commitEditor.closeEdit();
-      Message.info("Commit finished " + info);
-      copyDiff(foldersToCopy);
+      return new HashMap<String, String>();
+    }
+    event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.PUBLISH_PHASE, "prepareBinaryDiff",
+        ivyRepositoryRootURL.toString());
+    span = TraceRecorder.current().beginChild("prepareBinaryDiff", ivyRepositoryRootURL.toString());
+    Map<String, String> foldersToCopy;
+    try {
+      foldersToCopy = prepareBinaryDiff(publishTree); // prepare binary diff in existing transaction
+    } finally {
+      span.end();
+      event.commit();
+    }
+    commitEditor.closeDir(); // close root
+    SVNCommitInfo info = commitEditor.closeEdit();
+    Message.info("Commit finished " + info);
+    committedRevision = info.getNewRevision();
+    indexCommittedContent(committedRevision);
+    return foldersToCopy;
+  }
+
+  /**
+   * Determines whether a failed commit should be retried, if it should this aborts the failed commit and waits before
+   * returning, otherwise the passed exception is rethrown. Only commits which failed because a concurrent commit
+   * changed the same paths, or because of a problem communicating with the server, are retried, with the changes being
+   * re-planned against the new state of the repository.
+   * 
+   * @param e The exception the commit failed with.
+   * @param attempt The number of the attempt which failed.
+   * @throws SVNException The passed exception, if the commit should not be retried.
+   */
+  private void retryOrRethrow(SVNException e, int attempt) throws SVNException {
+    boolean connectionError = isRetryableConnectionError(e.getErrorMessage());
+    if (attempt >= maxCommitAttempts || !(connectionError || hasErrorCode(e.getErrorMessage(), CONFLICT_ERROR_CODES))) {
+      throw e;
+    }
+    // exponential backoff with some randomness so competing publishers don't retry in lock step
+    long delay = RETRY_DELAY * (1L << (attempt - 1));
+    delay += (long) (Math.random() * delay);
+    if (delay >= OperationDeadline.getRemaining()) { // retry couldn't finish in time
+      throw e;
+    }
+    Message.warn("Commit attempt " + attempt + (connectionError ? " lost its connection to the server"
+        : " conflicted with another commit") + ", retrying in " + delay + "ms: " + e.getMessage());
+    abortEditQuietly();
+    if (connectionError) { // reconnect rather than re-use connections which may be broken
+      commitRepository.closeSession();
+      svnDAO.getRepository().closeSession();
+    }
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw e;
+    }
+  }
+
+  /**
+   * Determines whether an error was caused by a problem communicating with the server which may not happen again.
+   * 
+   * @param error The error.
+   * @return true if the error, or any error it was caused by, is a connection error.
+   */
+  static boolean isRetryableConnectionError(SVNErrorMessage error) {
+    return hasErrorCode(error, CONNECTION_ERROR_CODES);
+  }
+
+  /**
+   * Determines whether an error, or any error it was caused by, has one of the passed error codes.
+   * 
+   * @param error The error.
+   * @param errorCodes The error codes.
+   * @return true if the error or any error it was caused by has one of the error codes, false otherwise.
+   */
+  private static boolean hasErrorCode(SVNErrorMessage error, Set<SVNErrorCode> errorCodes) {
+    while (error != null) {
+      if (errorCodes.contains(error.getErrorCode())) {
+        return true;
+      }
+      error = error.getChildErrorMessage();
+    }
+    return false;
+  }
+
+  /**
+   * Aborts the current commit editor, ignoring any errors as the commit has already failed.
+   */
+  private void abortEditQuietly() {
+    try {
+      if (commitEditor != null) {
+        commitEditor.abortEdit();
+      }
+    } catch (SVNException e) {
+      Message.debug("Error aborting failed commit: " + e.getMessage());
     }
   }
 
@@ -227,12 +543,16 @@ public class SvnPublishTransaction {
           Message.info("Overwrite set to false, ignoring " + operation.getFilePath());
           continue;
         }
-        destinationFolderPath = operation.determineBinaryDiffFolderPath(revision, binaryDiffFolderName);
+        destinationFolderPath = operation.determineBinaryDiffFolderPath(operation.getRevision(),
+            binaryDiffFolderName);
         overwrite = true; // force overwrite for binary diff
       }
       // destinationFolderPath and overwrite will be set according to whether binary diff or not
-      if (svnDAO.putFile(commitEditor, operation.getData(), destinationFolderPath, operation.getFileName(), overwrite)) {
+      if (copyFile(operation, destinationFolderPath) || putFile(operation, destinationFolderPath, overwrite)) {
         putFileCount++;
+        if (contentIndex != null) {
+          committedContent.put(destinationFolderPath + "/" + operation.getFileName(), operation.getSha1());
+        }
       }
 
       Set<String> files = putFiles.get(destinationFolderPath);
@@ -251,6 +571,162 @@ public class SvnPublishTransaction {
     return putFileCount;
   }
 
+  /**
+   * Puts the file for the passed operation, streaming the file data to the commit editor. Any checksums registered for
+   * the file are calculated while it is streamed.
+   * 
+   * @param operation The put operation.
+   * @param destinationFolderPath The folder to put the file in.
+   * @param overwrite Whether an existing file should be overwritten.
+   * @return true if the file was put, false if it was ignored.
+   * @throws SVNException If an error occurs putting the file.
+   * @throws IOException If an error occurs reading the file data.
+   */
+  private boolean putFile(PutOperation operation, String destinationFolderPath, boolean overwrite)
+    throws SVNException, IOException {
+    if (overwrite && mayBeCommitted(operation) && isCommitted(operation, destinationFolderPath)) {
+      Message.info(destinationFolderPath + "/" + operation.getFileName()
+          + " already committed with the same content, not sending it again");
+      return true;
+    }
+    InputStream data = operation.getInputStream();
+    try {
+      return svnDAO.putFile(commitEditor, data, destinationFolderPath, operation.getFileName(), overwrite);
+    } finally {
+      data.close();
+    }
+  }
+
+  /**
+   * Determines whether the file for the passed operation may already have been committed, i.e. whether it is worth
+   * checking for before sending it. This is only the case when an earlier attempt at this commit failed or the file was
+   * staged, as checking means reading the local file an extra time to calculate its checksum.
+   * 
+   * @param operation The put operation.
+   * @return true if the file may already have been committed, false otherwise.
+   */
+  private boolean mayBeCommitted(PutOperation operation) {
+    return retrying || (binaryDiff && stagingThreshold > 0 && operation.getLength() >= stagingThreshold);
+  }
+
+  /**
+   * Determines whether the file for the passed operation has already been committed to the passed folder with the
+   * same content, e.g. by an earlier attempt at this publish which failed part way through.
+   * 
+   * @param operation The put operation.
+   * @param destinationFolderPath The folder the file is being put in.
+   * @return true if the file exists with the same content, false otherwise.
+   * @throws SVNException If an error occurs reading the existing file's checksum.
+   * @throws IOException If an error occurs reading the file data.
+   */
+  private boolean isCommitted(PutOperation operation, String destinationFolderPath) throws SVNException,
+    IOException {
+    String committedChecksum = svnDAO.getFileChecksum(destinationFolderPath + "/" + operation.getFileName(), -1);
+    return committedChecksum != null && committedChecksum.equals(operation.getChecksum("md5"));
+  }
+
+  /**
+   * Commits each file which is at least stagingThreshold bytes to the binary diff folder in a commit of its own,
+   * before the rest of the transaction is committed. If the connection fails while sending a large file, only that
+   * file needs to be sent again when the publish is retried, as files which were already staged are skipped.
+   * 
+   * @param tree Tree containing PutOperations to stage.
+   * @throws SVNException If an error occurs committing a file.
+   * @throws IOException If an error occurs reading any file data.
+   */
+  private void stageLargeFiles(DirectoryTree tree) throws SVNException, IOException {
+    for (DirectoryTree subDir : tree.getSubDirectoryTrees()) {
+      stageLargeFiles(subDir);
+    }
+    for (PutOperation operation : tree.getPutOperations()) {
+      if (operation.getLength() >= stagingThreshold) {
+        for (int attempt = 1;; attempt++) {
+          try {
+            stageFile(operation);
+            break;
+          } catch (SVNException e) {
+            retryOrRethrow(e, attempt);
+            svnDAO.clearFolderCache(); // folders may have been added by the failed commit or the conflicting one
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Commits the file for the passed operation to the binary diff folder.
+   * 
+   * @param operation The put operation.
+   * @throws SVNException If an error occurs committing the file.
+   * @throws IOException If an error occurs reading the file data.
+   */
+  private void stageFile(PutOperation operation) throws SVNException, IOException {
+    String folderPath = operation.determineBinaryDiffFolderPath(operation.getRevision(), binaryDiffFolderName);
+    if (folderPath.startsWith("/")) {
+      folderPath = folderPath.substring(1);
+    }
+    if (isCommitted(operation, folderPath)) {
+      Message.info(folderPath + "/" + operation.getFileName() + " already staged");
+      return;
+    }
+    Message.info("Staging " + operation.getFileName() + " (" + operation.getLength() + " bytes) in " + folderPath);
+    commitRepository.setLocation(ivyRepositoryRootURL, true);
+    commitEditor = commitRepository.getCommitEditor("Staging " + operation.getFileName() + " for " + commitMessage,
+        null);
+    commitStarted = true;
+    commitEditor.openRoot(-1);
+    // SVNKit side effect of creating a folder is to change to this folder
+    if (!svnDAO.createFolders(commitEditor, folderPath, -1)) {
+      commitEditor.openDir(folderPath, -1);
+    }
+    putFile(operation, folderPath, true);
+    commitEditor.closeDir(); // close root
+    SVNCommitInfo info = commitEditor.closeEdit();
+    Message.info("Staging finished : " + info);
+    committedRevision = info.getNewRevision();
+  }
+
+  /**
+   * Adds the file for the passed operation as a server-side copy of identical content which already exists in the
+   * repository, if there is any.
+   * 
+   * @param operation The put operation.
+   * @param destinationFolderPath The folder to add the file to.
+   * @return true if the file was added as a copy, false if it needs to be put.
+   * @throws SVNException If an error occurs adding the copy.
+   * @throws IOException If an error occurs reading the file data.
+   */
+  private boolean copyFile(PutOperation operation, String destinationFolderPath) throws SVNException, IOException {
+    if (contentIndex == null) {
+      return false;
+    }
+    SVNLocationEntry copySource = contentIndex.find(operation.getSha1());
+    if (copySource == null) {
+      return false;
+    }
+    boolean copied = svnDAO.copyFile(commitEditor, copySource.getPath(), copySource.getRevision(),
+        destinationFolderPath, operation.getFileName());
+    if (copied) {
+      Message.info("Content of " + operation.getFileName() + " already in repository, copied from "
+          + copySource.getPath() + "@" + copySource.getRevision());
+    }
+    return copied;
+  }
+
+  /**
+   * Adds the content of all files put in the last commit to the content index.
+   * 
+   * @param committedRevision The revision the files were committed in.
+   */
+  private void indexCommittedContent(long committedRevision) {
+    if (contentIndex != null) {
+      for (Entry<String, String> entry : committedContent.entrySet()) {
+        contentIndex.add(entry.getValue(), entry.getKey(), committedRevision);
+      }
+    }
+    committedContent.clear();
+  }
+
   /**
    * Deletes any files in the publish folder which are not part of this transaction's set of files to publish.
    * 
@@ -281,6 +757,7 @@ public class SvnPublishTransaction {
    */
   private Map<String, String> prepareBinaryDiff(DirectoryTree tree) throws SVNException {
     Map<String, String> binaryDiffs = new HashMap<String, String>();
+    replaceableFolders.clear();
     if (binaryDiff) {
       Set<String> processedFolders = new HashSet<String>();
       prepareBinaryDiff(tree, binaryDiffs, processedFolders);
@@ -305,8 +782,12 @@ public class SvnPublishTransaction {
     for (PutOperation operation : tree.getPutOperations()) {
       String currentFolder = operation.getFolderPath();
       if (!processedFolders.contains(currentFolder)) { // we haven't dealt with this folder yet
-        String binaryDiffFolderPath = operation.determineBinaryDiffFolderPath(revision, binaryDiffFolderName);
+        String binaryDiffFolderPath = operation.determineBinaryDiffFolderPath(operation.getRevision(),
+            binaryDiffFolderName);
         binaryDiffs.put(currentFolder, binaryDiffFolderPath); // schedule this to be processed later
+        if (operation.isOverwrite()) {
+          replaceableFolders.add(currentFolder);
+        }
         if (svnDAO.folderExists(currentFolder, -1, true)) {
           if (operation.isOverwrite()) {
             // delete old release, we will copy over to release folder again in binary diff commit later
@@ -326,35 +807,73 @@ public class SvnPublishTransaction {
    * Performs any necessary binary diff copy operations as contained in the passed Map.
    * 
    * @param foldersToCopy Map of folders to copy where key is destination and value is source.
+   * @param replan Whether to check for destination folders created since the copies were planned (i.e. by a concurrent
+   *          commit which made an earlier attempt fail), which are replaced if published with overwrite set and left
+   *          alone otherwise.
    * @throws SVNException If an error occurs copying one or more folders.
    */
-  private void copyDiff(Map<String, String> foldersToCopy) throws SVNException {
+  private void copyDiff(Map<String, String> foldersToCopy, boolean replan) throws SVNException {
+    Set<String> replacedFolders = new HashSet<String>();
+    if (replan) {
+      foldersToCopy = new HashMap<String, String>(foldersToCopy);
+      for (Iterator<String> destinations = foldersToCopy.keySet().iterator(); destinations.hasNext();) {
+        String destination = destinations.next();
+        if (svnDAO.folderExists(destination, -1, false)) {
+          if (replaceableFolders.contains(destination)) {
+            replacedFolders.add(destination);
+          } else {
+            Message.info("Overwrite set to false, ignoring copy to " + destination);
+            destinations.remove();
+          }
+        }
+      }
+    }
     if (foldersToCopy.size() > 0) {
-      long rev = commitRepository.getLatestRevision(); // copying dirs requires valid revision
-      commitEditor = commitRepository.getCommitEditor(commitMessage, null);
-      commitEditor.openRoot(-1);
-      String currentFolder = null;
-      for (Entry<String, String> entry : foldersToCopy.entrySet()) {
-        String source = entry.getValue();
-        String destination = entry.getKey();
-        Message.info("Copying from " + source + " to " + destination);
-        int index = destination.lastIndexOf("/");
-        if (index > 0) { // addDir can't handle creating sub folders so we have to do it
-          String subFolderPath = destination.substring(0, index);
-          // SVNKit side effect of creating a folder is to change to this folder
-          boolean subFolderCreated = svnDAO.createFolders(commitEditor, subFolderPath, rev);
-          if (!subFolderCreated) { // if we didn't create a folder, we manually need to change to it
-            if (!subFolderPath.equals(currentFolder)) { // but only change to it if we haven't already
-              commitEditor.openDir(subFolderPath, rev);
+      OperationDeadline.check();
+      long start = System.nanoTime();
+      FlightRecorderEvents.Event event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.PUBLISH_PHASE,
+          "copyDiff", ivyRepositoryRootURL.toString());
+      SVNCommitInfo info;
+      try {
+        long rev = commitRepository.getLatestRevision(); // copying dirs requires valid revision
+        commitEditor = commitRepository.getCommitEditor(commitMessage, null);
+        commitEditor.openRoot(-1);
+        String currentFolder = null;
+        for (Entry<String, String> entry : foldersToCopy.entrySet()) {
+          String source = entry.getValue();
+          String destination = entry.getKey();
+          Message.info("Copying from " + source + " to " + destination);
+          int index = destination.lastIndexOf("/");
+          if (index > 0) { // addDir can't handle creating sub folders so we have to do it
+            String subFolderPath = destination.substring(0, index);
+            // SVNKit side effect of creating a folder is to change to this folder
+            boolean subFolderCreated = svnDAO.createFolders(commitEditor, subFolderPath, rev);
+            if (!subFolderCreated) { // if we didn't create a folder, we manually need to change to it
+              if (!subFolderPath.equals(currentFolder)) { // but only change to it if we haven't already
+                commitEditor.openDir(subFolderPath, rev);
+              }
             }
+            currentFolder = subFolderPath;
+          }
+          if (replacedFolders.contains(destination)) { // created by a concurrent commit since the copy was planned
+            Message.info("Binary diff deleting " + destination);
+            commitEditor.deleteEntry(destination, rev);
           }
-          currentFolder = subFolderPath;
+          commitEditor.addDir(entry.getKey(), entry.getValue(), rev);
+          commitEditor.closeDir();
         }
-        commitEditor.addDir(entry.getKey(), entry.getValue(), rev);
-        commitEditor.closeDir();
+        commitEditor.closeDir(); // close root
+        info = commitEditor.closeEdit();
+        event.setRevision(info.getNewRevision());
+      } finally {
+        event.commit();
+      }
+      if (metrics != null) {
+        metrics.record(RepositoryMetrics.Operation.COPY_DIFF, start, ivyRepositoryRootURL.toString(), info
+            .getNewRevision(), commitRepository);
       }
-      commitEditor.closeDir(); // close root
-      Message.info("Binary diff finished : " + commitEditor.closeEdit());
+      Message.info("Binary diff finished : " + info);
+      committedRevision = info.getNewRevision();
     }
   }
 
@@ -380,6 +899,32 @@ public class SvnPublishTransaction {
     }
   }
 
+  /**
+   * Gets the revision of the last commit made by this transaction. Once the transaction has been committed all of the
+   * published files are visible in this revision.
+   * 
+   * @return The revision, -1 if nothing has been committed.
+   */
+  public long getCommittedRevision() {
+    return committedRevision;
+  }
+
+  /**
+   * Gets the folders that files have been published to by this transaction, including any binary diff folders.
+   * 
+   * @return The folder paths, relative to the repository root.
+   */
+  public Set<String> getPublishedFolders() {
+    Set<String> folders = new HashSet<String>();
+    for (PutOperation operation : scheduledOperations.values()) {
+      folders.add(operation.getFolderPath());
+      if (binaryDiff) {
+        folders.add(operation.determineBinaryDiffFolderPath(operation.getRevision(), binaryDiffFolderName));
+      }
+    }
+    return folders;
+  }
+
   /**
    * Returns whether a commit operation has been started or not.
    * 
@@ -416,6 +961,62 @@ public class SvnPublishTransaction {
     this.cleanupPublishFolder = cleanupPublishFolder;
   }
 
+  /**
+   * Sets the maximum number of times a commit which conflicts with a concurrent commit, or loses its connection to the
+   * server, will be attempted.
+   * 
+   * @param maxCommitAttempts The maximum number of attempts, 1 disables retrying.
+   */
+  public void setMaxCommitAttempts(int maxCommitAttempts) {
+    this.maxCommitAttempts = maxCommitAttempts;
+  }
+
+  /**
+   * Sets the size from which files are staged in the binary diff folder in commits of their own, so a publish which
+   * fails part way through doesn't need to send them again when it is retried.
+   * 
+   * @param stagingThreshold The size in bytes, 0 to disable staging.
+   */
+  public void setStagingThreshold(long stagingThreshold) {
+    this.stagingThreshold = stagingThreshold;
+  }
+
+  /**
+   * Sets the index to use for adding files with content already in the repository as copies instead of uploading them.
+   * 
+   * @param contentIndex The content index, or null to disable content deduplication.
+   */
+  public void setContentIndex(ContentIndex contentIndex) {
+    this.contentIndex = contentIndex;
+  }
+
+  /**
+   * Sets the metrics to record operations in.
+   * 
+   * @param metrics The metrics, or null to not record operations.
+   */
+  public void setMetrics(RepositoryMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Gets the repository used for performing commit operations.
+   * 
+   * @return The repository used for commits.
+   */
+  public SVNRepository getCommitRepository() {
+    return commitRepository;
+  }
+
+  /**
+   * Gets the subversion DAO used for read operations.
+   * 
+   * @return The subversion DAO.
+   */
+  public SvnDao getSvnDAO() {
+    return svnDAO;
+  }
+
   /**
    * Set the repository to use for performing commit operations.
    * 
@@ -20,10 +20,26 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
@@ -31,14 +47,22 @@ import org.apache.ivy.core.module.id.ModuleRevisionId;
 import org.apache.ivy.plugins.repository.AbstractRepository;
 import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.repository.TransferEvent;
+import org.apache.ivy.plugins.repository.TransferListener;
+import org.apache.ivy.util.ChecksumHelper;
+import org.apache.ivy.util.FileUtil;
 import org.apache.ivy.util.Message;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNCommitInfo;
 import org.tmatesoft.svn.core.SVNDirEntry;
+import org.tmatesoft.svn.core.SVNErrorCode;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNNodeKind;
 import org.tmatesoft.svn.core.SVNURL;
 import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
 import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
 import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
+import org.tmatesoft.svn.core.internal.io.svn.SVNSSHSession;
+import org.tmatesoft.svn.core.io.ISVNEditor;
 import org.tmatesoft.svn.core.io.SVNRepository;
 
 /**
@@ -91,7 +115,7 @@ public class SvnRepository extends AbstractRepository {
    */
   private boolean storageAllowed = false;
 
-  private Map<String, Resource> resourcesCache = new HashMap<String, Resource>();
+  private Map<String, Resource> resourcesCache = new ConcurrentHashMap<String, Resource>();
 
   /**
    * The path to the root of the Ivy repository within subversion.
@@ -99,9 +123,9 @@ public class SvnRepository extends AbstractRepository {
   private String repositoryRoot;
 
   /**
-   * The svn transaction for putting files.
+   * The svn transaction for putting files, per publishing thread.
    */
-  private SvnPublishTransaction publishTransaction;
+  private ThreadLocal<SvnPublishTransaction> publishTransaction = new ThreadLocal<SvnPublishTransaction>();
 
   /**
    * Whether to perform binary diffs or not.
@@ -113,15 +137,27 @@ public class SvnRepository extends AbstractRepository {
    */
   protected static final String DEFAULT_BINARY_DIFF_FOLDER_NAME = "LATEST";
 
+  /**
+   * Extensions of files which are retrieved with the priority of metadata requests rather than as bulk transfers, as
+   * resolves need them (descriptors and their checksums) to find further dependencies.
+   */
+  private static final String[] METADATA_EXTENSIONS = { ".xml", ".pom", ".properties", ".md5", ".sha1" };
+
   /**
    * The folder name for binary diffs.
    */
   private String binaryDiffFolderName = DEFAULT_BINARY_DIFF_FOLDER_NAME;
 
   /**
-   * The revision id of the module being published.
+   * The revision id of the module being published, per publishing thread.
+   */
+  private ThreadLocal<ModuleRevisionId> moduleRevisionId = new ThreadLocal<ModuleRevisionId>();
+
+  /**
+   * Whether a group publish is in progress, in which case the publish transactions of multiple modules are combined
+   * into a single commit, per publishing thread.
    */
-  private ModuleRevisionId moduleRevisionId;
+  private ThreadLocal<Boolean> groupPublish = new ThreadLocal<Boolean>();
 
   /**
    * The SVN revision value to use when retrieving artifacts.
@@ -133,6 +169,174 @@ public class SvnRepository extends AbstractRepository {
    */
   private Boolean cleanupPublishFolder = null;
 
+  /**
+   * Whether to add published files whose content already exists in the repository as copies instead of uploading them.
+   */
+  private boolean contentDeduplication = false;
+
+  /**
+   * Publisher which commits journaled publishes in the background, null if publishes are committed synchronously.
+   */
+  private AsyncPublisher asyncPublisher = null;
+
+  /**
+   * Journal used for publishing in the background, null if publishes are committed synchronously.
+   */
+  private PublishJournal publishJournal = null;
+
+  /**
+   * The journal entry recording the current publish when publishing in the background, per publishing thread.
+   */
+  private ThreadLocal<PublishJournalEntry> journalEntry = new ThreadLocal<PublishJournalEntry>();
+
+  /**
+   * Maximum number of times a publish which conflicts with a concurrent publish, or loses its connection to the server,
+   * will be attempted.
+   */
+  private int maxCommitAttempts = SvnPublishTransaction.DEFAULT_MAX_COMMIT_ATTEMPTS;
+
+  /**
+   * Size in bytes from which files are staged in commits of their own when publishing via binary diff, 0 to disable.
+   */
+  private long stagingThreshold = 0;
+
+  /**
+   * Maximum size of the windows file data is split into when it is sent to Subversion.
+   */
+  private int deltaWindowSize = SvnDao.DEFAULT_DELTA_WINDOW_SIZE;
+
+  /**
+   * Whether file data should be delta compressed before being sent to Subversion (true, false or auto).
+   */
+  private String deltaCompression = SvnDao.DELTA_COMPRESSION_TRUE;
+
+  /**
+   * Routes reads to replicas of the repository, if any have been configured.
+   */
+  private ReadReplicaRouter readReplicaRouter = new ReadReplicaRouter();
+
+  /**
+   * The URLs of the Ivy repository root in the read-only replicas of each shard, keyed by the shard's path prefix.
+   */
+  private Map<String, List<String>> shardReplicaRoots = new ConcurrentHashMap<String, List<String>>();
+
+  /**
+   * Roots of the repositories that parts of the Ivy repository are sharded across, keyed by path prefix (e.g. an
+   * organisation). Paths which don't match any prefix are stored under the repository root.
+   */
+  private Map<String, String> shardRoots = new ConcurrentHashMap<String, String>();
+
+  /**
+   * The repositories used for each shard, keyed by path prefix, created the first time a shard is used.
+   */
+  private Map<String, SvnRepository> shards = new HashMap<String, SvnRepository>();
+
+  /**
+   * The shards the calling thread has started publish transactions in, along with the module each transaction was last
+   * started for.
+   */
+  private ThreadLocal<Map<SvnRepository, ModuleRevisionId>> shardTransactions =
+      new ThreadLocal<Map<SvnRepository, ModuleRevisionId>>();
+
+  /**
+   * Commits the transactions of several shards in parallel, null until first needed.
+   */
+  private ExecutorService shardCommitExecutor = null;
+
+  /**
+   * Number of sessions to open in the background before they are first needed, 0 to disable.
+   */
+  private int prewarmSessions = 0;
+
+  /**
+   * Maximum number of concurrent requests to each server, 0 for no limit.
+   */
+  private int maxConcurrentRequests = 0;
+
+  /**
+   * Whether the number of concurrent requests to each server is adapted to its latency and errors.
+   */
+  private boolean adaptiveConcurrency = true;
+
+  /**
+   * Limits the rate at which file data is retrieved, shared with any shards.
+   */
+  private BandwidthLimiter getBandwidthLimiter = new BandwidthLimiter();
+
+  /**
+   * Limits the rate at which file data is published, shared with any shards.
+   */
+  private BandwidthLimiter putBandwidthLimiter = new BandwidthLimiter();
+
+  /**
+   * Timeout in milliseconds for opening connections, negative to use SVNKit's default.
+   */
+  private int connectTimeout = -1;
+
+  /**
+   * Timeout in milliseconds for reading from connections, negative to use SVNKit's default.
+   */
+  private int readTimeout = -1;
+
+  /**
+   * Time in milliseconds each retrieve, listing or resource lookup, and each publish (from the start of its transaction
+   * to its commit), may take in total, 0 for no limit.
+   */
+  private long operationTimeout = 0;
+
+  /**
+   * Maximum number of resources and listings to remember for use if a later lookup runs out of time.
+   */
+  static final int MAX_KNOWN_RESULTS = 10000;
+
+  /**
+   * The last resources successfully resolved, keyed by request key, used if a later lookup runs out of time. Only the
+   * most recently used MAX_KNOWN_RESULTS are kept.
+   */
+  private Map<String, SvnResource> knownResources = SvnUtils.createLruMap(MAX_KNOWN_RESULTS);
+
+  /**
+   * The last listings successfully retrieved, keyed by request key, used if a later listing runs out of time. Only the
+   * most recently used MAX_KNOWN_RESULTS are kept.
+   */
+  private Map<String, List<String>> knownLists = SvnUtils.createLruMap(MAX_KNOWN_RESULTS);
+
+  /**
+   * Whether sessions have already been opened in the background.
+   */
+  private boolean prewarmStarted = false;
+
+  /**
+   * Performance metrics for this repository, exposed via JMX once the repository root has been set. Shared with any
+   * shards.
+   */
+  private RepositoryMetrics metrics = new RepositoryMetrics();
+
+  /**
+   * Records the operations performed by this repository as a trace, null if tracing is disabled.
+   */
+  private TraceRecorder traceRecorder = null;
+
+  /**
+   * Log of operations which took longer than their threshold, null if slow operations aren't logged.
+   */
+  private SlowOperationLog slowOperationLog = null;
+
+  /**
+   * Listener which fires progress events for file data transferred by this repository.
+   */
+  private final TransferProgressListener transferProgressListener = new TransferProgressListener() {
+    public void transferProgress(String url, int requestType, long length, long totalLength, long bytesPerSecond) {
+      metrics.addBytes(requestType == TransferEvent.REQUEST_GET, length);
+      try {
+        fireTransferEvent(new SvnTransferEvent(SvnRepository.this, getResource(getResourcePath(url)), length,
+            totalLength, requestType, bytesPerSecond));
+      } catch (IOException e) { // never thrown by getResource()
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
   /**
    * Initialises repository to accept requests for svn protocol.
    */
@@ -170,36 +374,200 @@ public class SvnRepository extends AbstractRepository {
   }
 
   /**
-   * Gets a repository referencing the passed URL, with authentication setup based on the values currently set in this
-   * object.
+   * Borrows a repository referencing the passed URL from the session pool for exclusive use by the calling thread. The
+   * repository must be returned via returnRepository() when no longer needed. Sessions are never shared between
+   * threads, as moving a session to another location and using it isn't atomic.
    * 
    * @param url Subversion repository URL.
-   * @param cache Whether to cache repository reference.
    * @return An initialised repository object.
    * @throws SVNException If the URL or authentication credentials are invalid.
    */
-  private SVNRepository getRepository(SVNURL url, boolean cache) throws SVNException {
-    SVNRepository repository = null;
-    if (cache) {
-      repository = SVNRepositoryCache.getInstance().getRepository(url, userName, userPassword, keyFile, sshPassphrase,
-          portNumber, certFile, sslPassphrase, storageAllowed);
+  private SVNRepository borrowRepository(SVNURL url) throws SVNException {
+    FlightRecorderEvents.Event event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.SESSION_CHECKOUT,
+        "borrow", url.toString());
+    try {
+      SVNRepository repository = configureSession(SVNRepositoryCache.getInstance().borrowRepository(
+          getRepositoryRoot(), url, userName, userPassword, keyFile, sshPassphrase, portNumber, certFile, sslPassphrase,
+          storageAllowed));
+      metrics.sessionsInUse(1);
+      return repository;
+    } finally {
+      event.commit();
+    }
+  }
+
+  /**
+   * Returns a repository borrowed via borrowRepository() to the session pool, or closes it.
+   * 
+   * @param session The borrowed repository.
+   * @param reuse Whether the session can be returned to the pool for re-use, or should be closed (e.g. because it could
+   *          be in an inconsistent state).
+   */
+  private void returnRepository(SVNRepository session, boolean reuse) {
+    metrics.sessionsInUse(-1);
+    if (session != null && session.getAuthenticationManager() instanceof RememberingAuthenticationManager) {
+      // an idle session mustn't record into, or keep alive, the metrics of a repository which is no longer using it
+      ((RememberingAuthenticationManager) session.getAuthenticationManager()).setMetrics(null);
+    }
+    if (reuse) {
+      SVNRepositoryCache.getInstance().releaseRepository(getRepositoryRoot(), session);
     } else {
-      repository = SvnUtils.createRepository(url, userName, userPassword, keyFile, sshPassphrase, portNumber, certFile,
-          sslPassphrase, storageAllowed);
-      repository.setLocation(url, false);
+      session.closeSession();
+    }
+  }
+
+  /**
+   * Applies the configured timeouts to a session and makes SVNKit cancel its operations once the calling thread's
+   * operation deadline has passed.
+   * 
+   * @param repository The session's repository.
+   * @return The passed repository.
+   */
+  private SVNRepository configureSession(SVNRepository repository) {
+    if (repository.getAuthenticationManager() instanceof RememberingAuthenticationManager) {
+      RememberingAuthenticationManager authenticationManager = (RememberingAuthenticationManager) repository
+          .getAuthenticationManager();
+      authenticationManager.setTimeouts(connectTimeout, readTimeout);
+      authenticationManager.setMetrics(metrics);
     }
+    repository.setCanceller(OperationDeadline.CANCELLER);
     return repository;
   }
 
   /**
-   * Starts a publish transaction.
+   * Starts opening and authenticating the configured number of sessions to the repository root in a background thread,
+   * so that the first real request finds a connected session instead of waiting for the connection to be set up. The
+   * sessions are returned to the pool, so no more are opened than the pool keeps idle. The roots of any shards are
+   * prewarmed the same way. Only has an effect the first time it is called after prewarming has been enabled and the
+   * repository root set.
+   */
+  public synchronized void prewarm() {
+    if (prewarmSessions <= 0 || repositoryRoot == null || prewarmStarted) {
+      return;
+    }
+    prewarmStarted = true;
+    for (String shardPrefix : shardRoots.keySet()) {
+      getShardForPrefix(shardPrefix).prewarm();
+    }
+    Thread thread = new Thread("ivysvn-prewarm") {
+      @Override
+      public void run() {
+        List<SVNRepository> sessions = new ArrayList<SVNRepository>();
+        try {
+          SVNURL repositoryRootURL = SVNURL.parseURIEncoded(getRepositoryRoot());
+          long start = System.currentTimeMillis();
+          // only pooled sessions are opened, the shared session may be in use by another thread
+          for (int i = 0; i < prewarmSessions; i++) {
+            SVNRepository session = borrowRepository(repositoryRootURL);
+            sessions.add(session);
+            session.testConnection();
+          }
+          Message.verbose("Opened " + prewarmSessions + " sessions to " + getRepositoryRoot() + " in "
+              + (System.currentTimeMillis() - start) + "ms");
+        } catch (SVNException e) {
+          Message.warn("Error opening sessions to " + getRepositoryRoot() + " in advance: " + e.getMessage());
+        } finally {
+          for (SVNRepository session : sessions) {
+            returnRepository(session, true);
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Releases the sessions used by the passed transaction and removes the transaction from the calling thread.
+   * 
+   * @param transaction The transaction.
+   * @param reuse Whether the sessions can be returned to the pool for re-use, or should be closed (e.g. because the
+   *          transaction failed and they could be in an inconsistent state).
+   */
+  private void releaseSessions(SvnPublishTransaction transaction, boolean reuse) {
+    publishTransaction.remove();
+    metrics.activeTransactions(-1);
+    SVNRepository[] sessions = { transaction.getCommitRepository(), transaction.getSvnDAO().getRepository() };
+    for (SVNRepository session : sessions) {
+      returnRepository(session, reuse);
+    }
+  }
+
+  /**
+   * Starts a publish transaction. Publish transactions are scoped to the calling thread so different modules can be
+   * published by different threads at the same time.
    * 
    * @param mrid The SVN commit message to use for this publish transaction.
+   * @throws IOException If publishing in the background and the publish cannot be recorded in the journal.
+   */
+  public void beginPublishTransaction(ModuleRevisionId mrid) throws IOException {
+    if (isAsyncPublish()) {
+      asyncPublisher.start();
+      PublishJournalEntry entry = journalEntry.get();
+      if (entry == null) {
+        entry = publishJournal.createEntry();
+        journalEntry.set(entry);
+      }
+      Message.debug("Recording publish of " + mrid + " in journal " + entry.getFolder());
+      entry.beginModule(mrid);
+    } else if (isGroupPublish()) {
+      Message.debug("Adding " + mrid + " to group transaction...");
+      if (publishTransaction.get() != null) {
+        publishTransaction.get().addModule(mrid);
+      }
+    } else {
+      ensureNoPublishTransaction();
+      Message.debug("Starting transaction " + mrid + "...");
+      OperationDeadline.start(operationTimeout);
+    }
+    moduleRevisionId.set(mrid);
+  }
+
+  /**
+   * Starts a group publish transaction. All modules published by the calling thread until the group is committed or
+   * aborted will be published as part of a single commit, with each module's publish transaction becoming part of the
+   * group.
    */
-  public void beginPublishTransaction(ModuleRevisionId mrid) {
+  public void beginGroupPublishTransaction() {
     ensureNoPublishTransaction();
-    Message.debug("Starting transaction " + mrid + "...");
-    this.moduleRevisionId = mrid;
+    if (isGroupPublish()) {
+      throw new IllegalStateException("Previous group transaction is still active");
+    }
+    Message.debug("Starting group transaction...");
+    groupPublish.set(Boolean.TRUE);
+    if (!isAsyncPublish()) { // publishes which are only recorded in the journal get a deadline when committed
+      OperationDeadline.start(operationTimeout);
+    }
+  }
+
+  /**
+   * Commits the previously started group publish transaction.
+   * 
+   * @throws IOException If an error occurs committing the group transaction.
+   */
+  public void commitGroupPublishTransaction() throws IOException {
+    ensureGroupPublishTransaction();
+    groupPublish.remove();
+    if (publishTransaction.get() == null && journalEntry.get() == null && shardTransactions.get() == null) {
+      Message.info("No modules published in group transaction, nothing to commit");
+      OperationDeadline.end();
+      return;
+    }
+    commitPublishTransaction();
+  }
+
+  /**
+   * Aborts the previously started group publish transaction, none of the modules in the group will be published.
+   * 
+   * @throws IOException If an error occurs aborting the group transaction.
+   */
+  public void abortGroupPublishTransaction() throws IOException {
+    if (!isGroupPublish()) {
+      Message.info("Group transaction not active, nothing to abort");
+      return;
+    }
+    groupPublish.remove();
+    abortPublishTransaction(); // discards any put operations which were scheduled for the group
   }
 
   /**
@@ -208,176 +576,1190 @@ public class SvnRepository extends AbstractRepository {
    * @throws IOException If an error occurs committing the transaction.
    */
   public void commitPublishTransaction() throws IOException {
-    ensurePublishTransaction();
-    Message.debug("Committing transaction...");
+    TraceRecorder.Span span = trace("commit", getRepositoryRoot());
+    try {
+      commitPublishTransactionTraced();
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Commits the previously started publish transaction, see commitPublishTransaction().
+   * 
+   * @throws IOException If an error occurs committing the transaction.
+   */
+  private void commitPublishTransactionTraced() throws IOException {
+    if (isGroupPublish()) {
+      Message.debug("Deferring commit of " + moduleRevisionId.get() + " until group transaction is committed");
+      return;
+    }
+    if (isAsyncPublish()) {
+      PublishJournalEntry entry = journalEntry.get();
+      if (entry == null) {
+        throw new IllegalStateException("Transaction not initialised");
+      }
+      journalEntry.remove();
+      OperationDeadline.end(); // the deadline applies when the publish is committed in the background
+      publishJournal.complete(entry);
+      Message.info("Publish of " + entry.getModules() + " will be committed in the background");
+      asyncPublisher.submit(entry);
+      return;
+    }
+    try {
+      Map<SvnRepository, ModuleRevisionId> startedShards = shardTransactions.get();
+      if (startedShards != null) {
+        shardTransactions.remove();
+        Map<SvnRepository, SvnPublishTransaction> transactions = new HashMap<SvnRepository, SvnPublishTransaction>();
+        if (publishTransaction.get() != null) {
+          transactions.put(this, detachPublishTransaction());
+        }
+        for (SvnRepository shard : startedShards.keySet()) {
+          transactions.put(shard, shard.detachPublishTransaction());
+        }
+        commitInParallel(transactions);
+        return;
+      }
+      ensurePublishTransaction();
+      Message.debug("Committing transaction...");
+      commit(publishTransaction.get());
+    } finally {
+      OperationDeadline.end();
+    }
+  }
+
+  /**
+   * Commits a publish transaction and releases its sessions. If the commit fails the transaction is left in place so
+   * it can be aborted.
+   * 
+   * @param transaction The transaction.
+   * @throws IOException If an error occurs committing the transaction.
+   */
+  private void commit(SvnPublishTransaction transaction) throws IOException {
+    long start = System.nanoTime();
+    try {
+      ConcurrencyLimiter limiter = getConcurrencyLimiter(getRepositoryRoot());
+      if (limiter == null) {
+        transaction.commit();
+      } else {
+        acquire(limiter, true);
+        boolean failed = true;
+        try {
+          transaction.commit();
+          failed = false;
+        } catch (SVNException e) {
+          failed = isCommunicationError(e);
+          throw e;
+        } finally {
+          limiter.release("commit", -1, failed, true); // commit time depends on the amount of data published
+        }
+      }
+      metrics.record(RepositoryMetrics.Operation.COMMIT, start, getRepositoryRoot(), transaction
+          .getCommittedRevision(), transaction.getCommitRepository());
+      if (transaction.getCommittedRevision() >= 0) {
+        readReplicaRouter.recordPublish(transaction.getPublishedFolders(), transaction.getCommittedRevision());
+      }
+      releaseSessions(transaction, true);
+    } catch (SVNException e) {
+      throw (IOException) new IOException().initCause(e);
+    }
+  }
+
+  /**
+   * Commits a publish transaction which has been detached from the thread that started it, aborting it if the commit
+   * fails.
+   * 
+   * @param transaction The transaction.
+   * @throws IOException If an error occurs committing the transaction.
+   */
+  private void commitDetached(SvnPublishTransaction transaction) throws IOException {
+    try {
+      commit(transaction);
+    } catch (IOException e) {
+      if (transaction.commitStarted()) {
+        try {
+          transaction.abort();
+        } catch (SVNException abortException) {
+          Message.debug("Error aborting transaction: " + abortException.getMessage());
+        }
+      }
+      releaseSessions(transaction, false);
+      throw e;
+    }
+  }
+
+  /**
+   * Commits the publish transactions of several shards in parallel. Each shard is committed separately, so if one
+   * commit fails the others may still succeed.
+   * 
+   * @param transactions The transactions to commit, keyed by the repository of the shard they belong to.
+   * @throws IOException If an error occurs committing any of the transactions.
+   */
+  private void commitInParallel(Map<SvnRepository, SvnPublishTransaction> transactions) throws IOException {
+    Message.debug("Committing transactions in " + transactions.size() + " shards...");
+    ExecutorService executor = getShardCommitExecutor();
+    final Long deadline = OperationDeadline.get(); // the commits share the publish's deadline
+    final TraceRecorder.Span parentSpan = TraceRecorder.current();
+    Map<String, Future<Object>> results = new HashMap<String, Future<Object>>();
+    for (final Entry<SvnRepository, SvnPublishTransaction> entry : transactions.entrySet()) {
+      results.put(entry.getKey().getRepositoryRoot(), executor.submit(new Callable<Object>() {
+        public Object call() throws IOException {
+          OperationDeadline.set(deadline, operationTimeout);
+          TraceRecorder.Span span = parentSpan.beginChild("commitShard", entry.getKey().getRepositoryRoot());
+          try {
+            entry.getKey().commitDetached(entry.getValue());
+          } finally {
+            span.end();
+            OperationDeadline.end();
+          }
+          return null;
+        }
+      }));
+    }
+    IOException failure = null;
+    for (Entry<String, Future<Object>> result : results.entrySet()) {
+      try {
+        result.getValue().get();
+      } catch (ExecutionException e) {
+        Message.error("Error committing to " + result.getKey() + ": " + e.getCause());
+        if (failure == null) {
+          failure = (IOException) new IOException("Error committing to " + result.getKey()).initCause(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        throw (IOException) new IOException("Interrupted while committing to " + result.getKey()).initCause(e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Gets the executor which commits the transactions of several shards in parallel, creating it if necessary. It has a
+   * thread for this repository and each shard, which are shared by all publishing threads.
+   * 
+   * @return The executor.
+   */
+  private synchronized ExecutorService getShardCommitExecutor() {
+    if (shardCommitExecutor == null) {
+      shardCommitExecutor = Executors.newFixedThreadPool(shardRoots.size() + 1, new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ivysvn-shard-commit-" + threadCount.incrementAndGet());
+          thread.setDaemon(true); // idle threads mustn't keep the JVM running
+          return thread;
+        }
+      });
+    }
+    return shardCommitExecutor;
+  }
+
+  /**
+   * Removes the calling thread's publish transaction from it, so the transaction can be committed by another thread.
+   * 
+   * @return The transaction.
+   */
+  private SvnPublishTransaction detachPublishTransaction() {
+    SvnPublishTransaction transaction = publishTransaction.get();
+    publishTransaction.remove();
+    moduleRevisionId.remove();
+    groupPublish.remove();
+    return transaction;
+  }
+
+  /**
+   * Aborts a previously started publish transaction.
+   * 
+   * @throws IOException If an error occurs aborting the publish transaction.
+   */
+  public void abortPublishTransaction() throws IOException {
+    if (isGroupPublish()) { // one module failing means the group can't be committed atomically
+      Message.info("Aborting group transaction due to failed publish of " + moduleRevisionId.get());
+      abortGroupPublishTransaction();
+      return;
+    }
+    OperationDeadline.end();
+    if (isAsyncPublish()) {
+      PublishJournalEntry entry = journalEntry.get();
+      if (entry != null) {
+        journalEntry.remove();
+        entry.delete();
+      }
+      return;
+    }
+    Map<SvnRepository, ModuleRevisionId> startedShards = shardTransactions.get();
+    if (startedShards != null) {
+      shardTransactions.remove();
+      for (SvnRepository shard : startedShards.keySet()) {
+        shard.groupPublish.remove();
+        shard.abortPublishTransaction();
+      }
+    }
+    SvnPublishTransaction transaction = publishTransaction.get();
+    if (transaction == null) {
+      Message.info("Transaction not created, nothing to abort");
+      return;
+    }
+    if (!transaction.commitStarted()) {
+      Message.info("Commit transaction not started, nothing to abort");
+      releaseSessions(transaction, true);
+      return;
+    }
+    Message.info("Aborting transaction");
     try {
-      publishTransaction.commit();
-      publishTransaction = null;
+      transaction.abort();
     } catch (SVNException e) {
       throw (IOException) new IOException().initCause(e);
+    } finally {
+      releaseSessions(transaction, false);
+    }
+  }
+
+  /**
+   * Determines whether the calling thread has started a group publish transaction.
+   * 
+   * @return true if a group transaction is active, false otherwise.
+   */
+  private boolean isGroupPublish() {
+    return Boolean.TRUE.equals(groupPublish.get());
+  }
+
+  /**
+   * Determines whether publishes made by the calling thread should be recorded in the journal and committed in the
+   * background. The background thread itself commits synchronously.
+   * 
+   * @return true if publishing in the background, false otherwise.
+   */
+  private boolean isAsyncPublish() {
+    return asyncPublisher != null && !asyncPublisher.isWorkerThread();
+  }
+
+  /**
+   * Ensures that a transaction has been created.
+   * 
+   * @throws IllegalStateException If a transaction has not been created.
+   */
+  private void ensurePublishTransaction() {
+    if (publishTransaction.get() == null) {
+      throw new IllegalStateException("Transaction not initialised");
+    }
+  }
+
+  /**
+   * Ensures that a group transaction has been started.
+   * 
+   * @throws IllegalStateException If a group transaction has not been started.
+   */
+  private void ensureGroupPublishTransaction() {
+    if (!isGroupPublish()) {
+      throw new IllegalStateException("Group transaction not initialised");
+    }
+  }
+
+  /**
+   * Ensures that no transaction is lingering around.
+   * 
+   * @throws IllegalStateException If a transaction is still active.
+   */
+  private void ensureNoPublishTransaction() {
+    if (publishTransaction.get() != null) {
+      throw new IllegalStateException("Previous transaction is still active");
+    }
+  }
+
+  /**
+   * Gets the repository of the shard the passed path belongs to.
+   * 
+   * @param path The path, either relative to the repository root or a full URL.
+   * @return The shard's repository, or null if the path belongs under the repository root.
+   */
+  private SvnRepository getShard(String path) {
+    if (shardRoots.isEmpty()) {
+      return null;
+    }
+    String shardPrefix = null;
+    if (path.startsWith(getRepositoryRoot())) {
+      path = path.substring(getRepositoryRoot().length());
+    } else {
+      for (Entry<String, String> shardRoot : shardRoots.entrySet()) {
+        if (path.startsWith(shardRoot.getValue())) { // full URL of a resource in a shard
+          shardPrefix = shardRoot.getKey();
+        }
+      }
+    }
+    if (shardPrefix == null) {
+      String normalisedPath = normalisePath(path);
+      for (String prefix : shardRoots.keySet()) { // longest matching prefix wins
+        if (normalisedPath.startsWith(prefix) && (shardPrefix == null || prefix.length() > shardPrefix.length())) {
+          shardPrefix = prefix;
+        }
+      }
+      if (shardPrefix == null) {
+        return null;
+      }
+    }
+    return getShardForPrefix(shardPrefix);
+  }
+
+  /**
+   * Gets the repository of the shard with the passed path prefix, creating it if necessary.
+   * 
+   * @param shardPrefix The shard's path prefix.
+   * @return The shard's repository.
+   */
+  private SvnRepository getShardForPrefix(String shardPrefix) {
+    synchronized (shards) {
+      SvnRepository shard = shards.get(shardPrefix);
+      if (shard == null) {
+        shard = createShard(shardPrefix);
+        shards.put(shardPrefix, shard);
+      }
+      return shard;
+    }
+  }
+
+  /**
+   * Gets the repository the passed path belongs to, which is either a shard's repository or this repository.
+   * 
+   * @param path The path relative to the repository root.
+   * @return The repository.
+   */
+  private SvnRepository getShardOrSelf(String path) {
+    SvnRepository shard = getShard(path);
+    return shard == null ? this : shard;
+  }
+
+  /**
+   * Normalises a path so that it doesn't start but does end with a "/".
+   * 
+   * @param path The path.
+   * @return The normalised path.
+   */
+  private static String normalisePath(String path) {
+    String normalised = path.startsWith("/") ? path.substring(1) : path;
+    return normalised.length() == 0 || normalised.endsWith("/") ? normalised : normalised + "/";
+  }
+
+  /**
+   * Creates the repository for a shard, configured the same way as this repository. The shard has its own sessions,
+   * caches, read replicas and publish transactions, but shares this repository's metrics and background publisher, so
+   * publishes to the shard are recorded in the same journal.
+   * 
+   * @param shardPrefix The shard's path prefix.
+   * @return The shard's repository.
+   */
+  private SvnRepository createShard(String shardPrefix) {
+    SvnRepository shard = new SvnRepository();
+    shard.setName(getName());
+    shard.repositoryRoot = shardRoots.get(shardPrefix); // not via setRepositoryRoot(), the metrics are registered
+    shard.metrics = metrics;
+    shard.userName = userName;
+    shard.userPassword = userPassword;
+    shard.keyFile = keyFile;
+    shard.sshPassphrase = sshPassphrase;
+    shard.sslPassphrase = sslPassphrase;
+    shard.portNumber = portNumber;
+    shard.certFile = certFile;
+    shard.storageAllowed = storageAllowed;
+    shard.binaryDiff = binaryDiff;
+    shard.binaryDiffFolderName = binaryDiffFolderName;
+    shard.svnRetrieveRevision = svnRetrieveRevision;
+    shard.cleanupPublishFolder = cleanupPublishFolder;
+    shard.contentDeduplication = contentDeduplication;
+    shard.maxCommitAttempts = maxCommitAttempts;
+    shard.stagingThreshold = stagingThreshold;
+    shard.deltaWindowSize = deltaWindowSize;
+    shard.deltaCompression = deltaCompression;
+    shard.maxConcurrentRequests = maxConcurrentRequests;
+    shard.adaptiveConcurrency = adaptiveConcurrency;
+    shard.getBandwidthLimiter = getBandwidthLimiter;
+    shard.putBandwidthLimiter = putBandwidthLimiter;
+    shard.connectTimeout = connectTimeout;
+    shard.readTimeout = readTimeout;
+    shard.operationTimeout = operationTimeout;
+    shard.prewarmSessions = prewarmSessions;
+    shard.asyncPublisher = asyncPublisher;
+    shard.publishJournal = publishJournal;
+    shard.traceRecorder = traceRecorder;
+    shard.slowOperationLog = slowOperationLog;
+    List<String> replicaRoots = shardReplicaRoots.get(shardPrefix);
+    if (replicaRoots != null) {
+      for (String replicaRoot : replicaRoots) {
+        shard.addReadReplica(replicaRoot);
+      }
+    }
+    shard.addTransferListener(new TransferListener() { // pass the shard's events on to this repository's listeners
+      public void transferProgress(TransferEvent event) {
+        fireTransferEvent(event);
+      }
+    });
+    return shard;
+  }
+
+  /**
+   * Ensures that the calling thread's current publish transaction has been started in the passed shard.
+   * 
+   * @param shard The shard's repository.
+   * @throws IOException If an error occurs starting the transaction.
+   */
+  private void beginShardTransaction(SvnRepository shard) throws IOException {
+    Map<SvnRepository, ModuleRevisionId> startedShards = shardTransactions.get();
+    if (startedShards == null) {
+      startedShards = new HashMap<SvnRepository, ModuleRevisionId>();
+      shardTransactions.set(startedShards);
+    }
+    ModuleRevisionId mrid = moduleRevisionId.get();
+    ModuleRevisionId startedMrid = startedShards.get(shard);
+    Long deadline = OperationDeadline.get(); // the shard's transaction is part of this publish, so shares its deadline
+    if (startedMrid == null) {
+      if (isGroupPublish()) {
+        shard.beginGroupPublishTransaction();
+      }
+      shard.beginPublishTransaction(mrid);
+    } else if (!startedMrid.equals(mrid)) { // next module of a group publish
+      shard.beginPublishTransaction(mrid);
+    }
+    OperationDeadline.set(deadline, operationTimeout);
+    startedShards.put(shard, mrid);
+  }
+
+  /**
+   * Handles a request to add/update a file to/in the repository.
+   * 
+   * @param source The source file.
+   * @param destination The location of the file in the repository.
+   * @param overwrite Whether to overwite the file if it already exists.
+   * @throws IOException If an error occurs putting a file (invalid path, invalid login credentials etc.)
+   */
+  public void put(File source, String destination, boolean overwrite) throws IOException {
+    TraceRecorder.Span span = trace("put", destination);
+    try {
+      putTraced(source, destination, overwrite);
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Handles a request to add/update a file to/in the repository, see put().
+   * 
+   * @param source The source file.
+   * @param destination The location of the file in the repository.
+   * @param overwrite Whether to overwite the file if it already exists.
+   * @throws IOException If an error occurs putting a file (invalid path, invalid login credentials etc.)
+   */
+  private void putTraced(File source, String destination, boolean overwrite) throws IOException {
+    if (isAsyncPublish()) {
+      PublishJournalEntry entry = journalEntry.get();
+      if (entry == null) {
+        throw new IllegalStateException("Transaction not initialised");
+      }
+      Message.info("Recording publish to " + getRepositoryRoot() + destination + " in journal");
+      entry.addFile(source, destination, overwrite);
+      return;
+    }
+    SvnRepository shard = getShard(destination);
+    if (shard != null) {
+      beginShardTransaction(shard);
+      shard.put(source, destination, overwrite);
+      return;
+    }
+    fireTransferInitiated(getResource(destination), TransferEvent.REQUEST_PUT);
+    Message.debug("Scheduling publish from " + source.getAbsolutePath() + " to " + getRepositoryRoot() + destination);
+    Message.info("Scheduling publish to " + getRepositoryRoot() + destination);
+    try {
+      SVNURL destinationURL = SVNURL.parseURIEncoded(getRepositoryRoot() + destination);
+      SvnPublishTransaction transaction = publishTransaction.get();
+      if (transaction == null) { // haven't initialised transaction on a previous put
+
+        // first get a repository which transaction can use for various file checks
+        SVNURL repositoryRootURL = SVNURL.parseURIEncoded(getRepositoryRoot());
+        SVNRepository ancillaryRepository = borrowRepository(repositoryRootURL);
+        SvnDao svnDAO = new SvnDao(ancillaryRepository);
+        svnDAO.setDeltaWindowSize(deltaWindowSize);
+        svnDAO.setDeltaCompression(deltaCompression);
+        svnDAO.setTransferProgressListener(transferProgressListener);
+        svnDAO.setBandwidthLimiters(getBandwidthLimiter, putBandwidthLimiter);
+        svnDAO.setMetrics(metrics);
+
+        // now get another repository which transaction will use to do actual commits
+        SVNRepository commitRepository = borrowRepository(destinationURL);
+
+        transaction = new SvnPublishTransaction(svnDAO, moduleRevisionId.get(), commitRepository, repositoryRootURL);
+        transaction.setBinaryDiff(binaryDiff);
+        transaction.setBinaryDiffFolderName(binaryDiffFolderName);
+        transaction.setCleanupPublishFolder(cleanupPublishFolder);
+        transaction.setMaxCommitAttempts(maxCommitAttempts);
+        transaction.setStagingThreshold(stagingThreshold);
+        transaction.setMetrics(metrics);
+        if (contentDeduplication) {
+          transaction.setContentIndex(ContentIndex.getInstance(getRepositoryRoot()));
+        }
+        publishTransaction.set(transaction);
+        metrics.activeTransactions(1);
+      }
+      // add all info needed to put the file to the transaction
+      transaction.addPutOperation(source, destination, overwrite);
+    } catch (SVNException e) {
+      throw (IOException) new IOException().initCause(e);
+    }
+  }
+
+  /**
+   * Handles a request to add/update a checksum file for a file previously put during the current publish transaction.
+   * The checksum is calculated while the file is streamed into the repository, so the file is only read once.
+   * 
+   * @param destination The location in the repository of the file the checksum is for.
+   * @param algorithm The checksum algorithm (e.g. "md5", "sha1").
+   * @param overwrite Whether to overwite the checksum file if it already exists.
+   * @return true if the checksum will be published, false if the file it is for is not part of the current transaction
+   *         (the checksum file then needs to be put in the normal way).
+   * @throws IOException If an error occurs scheduling the checksum file.
+   */
+  public boolean putChecksum(String destination, String algorithm, boolean overwrite) throws IOException {
+    if (isAsyncPublish()) {
+      return journalEntry.get() != null && journalEntry.get().addChecksum(destination, algorithm);
+    }
+    SvnRepository shard = getShard(destination);
+    if (shard != null) {
+      return shard.putChecksum(destination, algorithm, overwrite);
+    }
+    SvnPublishTransaction transaction = publishTransaction.get();
+    if (transaction == null) {
+      return false;
+    }
+    try {
+      if (!transaction.addChecksumOperation(destination, algorithm, overwrite)) {
+        return false;
+      }
+    } catch (SVNException e) {
+      throw (IOException) new IOException().initCause(e);
+    }
+    String checksumDestination = destination + "." + algorithm;
+    fireTransferInitiated(getResource(checksumDestination), TransferEvent.REQUEST_PUT);
+    Message.info("Scheduling publish to " + getRepositoryRoot() + checksumDestination);
+    return true;
+  }
+
+  /**
+   * Promotes a module revision by copying its folders or files to new locations on the server in a single commit, so
+   * no artifacts need to be transferred. Folders are copied as a whole when the file names in them stay the same,
+   * files are copied individually when they are renamed (e.g. because their names contain the revision). Copied files
+   * can be given new contents as part of the same commit, which is used to update the module's ivy file (and its
+   * checksums) with its new status.
+   * 
+   * @param folders The folders to copy, where key is the source and value is the destination, relative to the
+   *          repository root.
+   * @param files The files to copy, where key is the source and value is the destination, relative to the repository
+   *          root.
+   * @param replacedFiles New contents for copied files, where key is the destination file path relative to the
+   *          repository root.
+   * @param message The commit message.
+   * @throws IOException If a source folder or file doesn't exist, a destination folder or file already exists or an
+   *           error occurs performing the commit.
+   */
+  public void promote(Map<String, String> folders, Map<String, String> files, Map<String, byte[]> replacedFiles,
+      String message) throws IOException {
+    TraceRecorder.Span span = trace("promote", folders.isEmpty() ? files.values().toString() : folders.values()
+        .toString());
+    try {
+      promoteTraced(folders, files, replacedFiles, message);
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Promotes folders and files by copying them in a single commit, see promote().
+   * 
+   * @param folders The folders to copy, where key is the source and value is the destination.
+   * @param files The files to copy, where key is the source and value is the destination.
+   * @param replacedFiles New contents for copied files, keyed by destination file path.
+   * @param message The commit message.
+   * @throws IOException If the folders or files cannot be promoted.
+   */
+  private void promoteTraced(Map<String, String> folders, Map<String, String> files,
+      Map<String, byte[]> replacedFiles, String message) throws IOException {
+    if (!shardRoots.isEmpty()) { // copies can only be made within a single repository
+      Map<String, String> copies = new HashMap<String, String>(folders);
+      copies.putAll(files);
+      Set<SvnRepository> promotionShards = new HashSet<SvnRepository>();
+      for (Entry<String, String> copy : copies.entrySet()) {
+        promotionShards.add(getShardOrSelf(copy.getKey()));
+        promotionShards.add(getShardOrSelf(copy.getValue()));
+      }
+      if (promotionShards.size() > 1) {
+        throw new IOException("Cannot promote " + copies.keySet() + " to " + copies.values()
+            + " as they are in different shards");
+      }
+      SvnRepository shard = promotionShards.iterator().next();
+      if (shard != this) {
+        shard.promote(folders, files, replacedFiles, message);
+        return;
+      }
+    }
+    SVNRepository ancillaryRepository = null;
+    SVNRepository commitRepository = null;
+    boolean committed = false;
+    try {
+      SVNURL repositoryRootURL = SVNURL.parseURIEncoded(getRepositoryRoot());
+      ancillaryRepository = borrowRepository(repositoryRootURL);
+      commitRepository = borrowRepository(repositoryRootURL);
+      commitRepository.setLocation(repositoryRootURL, true);
+      SvnDao svnDAO = new SvnDao(ancillaryRepository);
+      svnDAO.setMetrics(metrics);
+      for (Entry<String, String> folder : folders.entrySet()) {
+        if (!svnDAO.folderExists(folder.getKey(), -1, false)) {
+          throw new IOException("Cannot promote, " + getRepositoryRoot() + folder.getKey() + " does not exist");
+        }
+        if (svnDAO.folderExists(folder.getValue(), -1, false)) {
+          throw new IOException("Cannot promote, " + getRepositoryRoot() + folder.getValue() + " already exists");
+        }
+      }
+      Map<String, Map<String, String>> filesByFolder = new TreeMap<String, Map<String, String>>();
+      for (Entry<String, String> file : files.entrySet()) {
+        if (!svnDAO.fileExists(file.getKey(), -1)) {
+          throw new IOException("Cannot promote, " + getRepositoryRoot() + file.getKey() + " does not exist");
+        }
+        if (svnDAO.fileExists(file.getValue(), -1)) {
+          throw new IOException("Cannot promote, " + getRepositoryRoot() + file.getValue() + " already exists");
+        }
+        String folder = file.getValue().substring(0, Math.max(0, file.getValue().lastIndexOf("/")));
+        if (!filesByFolder.containsKey(folder)) {
+          filesByFolder.put(folder, new TreeMap<String, String>());
+        }
+        filesByFolder.get(folder).put(file.getValue(), file.getKey());
+      }
+      long revision = commitRepository.getLatestRevision(); // copying dirs requires valid revision
+      ISVNEditor editor = commitRepository.getCommitEditor(message, null);
+      try {
+        editor.openRoot(-1);
+        for (Entry<String, String> folder : folders.entrySet()) {
+          String destination = folder.getValue();
+          Message.info("Promoting " + folder.getKey() + " to " + destination);
+          int index = destination.lastIndexOf("/");
+          if (index > 0) { // addDir can't handle creating sub folders so we have to do it
+            String parentFolder = destination.substring(0, index);
+            // SVNKit side effect of creating a folder is to change to this folder
+            if (!svnDAO.createFolders(editor, parentFolder, revision)) {
+              editor.openDir(parentFolder, revision);
+            }
+          }
+          editor.addDir(destination, folder.getKey(), revision);
+          for (Entry<String, byte[]> file : replacedFiles.entrySet()) {
+            if (file.getKey().startsWith(destination + "/")) {
+              svnDAO.replaceFile(editor, file.getKey(), file.getValue());
+            }
+          }
+          editor.closeDir();
+        }
+        for (Entry<String, Map<String, String>> folder : filesByFolder.entrySet()) {
+          if (folder.getKey().length() > 0 && !svnDAO.createFolders(editor, folder.getKey(), revision)) {
+            editor.openDir(folder.getKey(), revision);
+          }
+          for (Entry<String, String> file : folder.getValue().entrySet()) {
+            String destination = file.getKey();
+            Message.info("Promoting " + file.getValue() + " to " + destination);
+            byte[] data = replacedFiles.get(destination);
+            if (data == null) {
+              editor.addFile(destination, file.getValue(), revision);
+              editor.closeFile(destination, null);
+            } else {
+              svnDAO.putFile(editor, data, folder.getKey(), destination.substring(destination.lastIndexOf("/") + 1),
+                  false);
+            }
+          }
+          if (folder.getKey().length() > 0) {
+            editor.closeDir();
+          }
+        }
+        editor.closeDir(); // close root
+        SVNCommitInfo info = editor.closeEdit();
+        Message.info("Promotion finished : " + info);
+        committed = true;
+        Set<String> promotedFolders = new HashSet<String>(folders.values());
+        promotedFolders.addAll(filesByFolder.keySet());
+        readReplicaRouter.recordPublish(promotedFolders, info.getNewRevision());
+      } finally {
+        if (!committed) {
+          editor.abortEdit();
+        }
+      }
+    } catch (SVNException e) {
+      throw (IOException) new IOException().initCause(e);
+    } finally {
+      for (SVNRepository session : new SVNRepository[] { ancillaryRepository, commitRepository }) {
+        if (session != null) {
+          returnRepository(session, committed); // if not committed the session may be in an invalid state
+        }
+      }
+    }
+  }
+
+  /**
+   * Handles a request to retrieve a file from the repository.
+   * 
+   * @param source Path to the resource to retrieve, including the repository root.
+   * @param destination The location where the file should be retrieved to.
+   * @throws IOException If an error occurs retrieving the file.
+   */
+  public void get(String source, File destination) throws IOException {
+    TraceRecorder.Span span = trace("get", source);
+    try {
+      getTraced(source, destination);
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Handles a request to retrieve a file from the repository, see get().
+   * 
+   * @param source Path to the resource to retrieve, including the repository root.
+   * @param destination The location where the file should be retrieved to.
+   * @throws IOException If an error occurs retrieving the file.
+   */
+  private void getTraced(String source, File destination) throws IOException {
+    SvnRepository shard = getShard(source);
+    if (shard != null) {
+      shard.get(source, destination);
+      return;
+    }
+    fireTransferInitiated(getResource(source), TransferEvent.REQUEST_GET);
+    String repositorySource = source;
+    if (!source.startsWith(repositoryRoot)) {
+      repositorySource = getRepositoryRoot() + source;
+    }
+    Message.debug("Getting file for user " + userName + " from " + repositorySource + " [revision="
+        + svnRetrieveRevision + "] to " + destination.getAbsolutePath());
+    boolean deadlineStarted = OperationDeadline.startIfNone(operationTimeout);
+    try {
+      Resource resource = getResource(source);
+      fireTransferInitiated(resource, TransferEvent.REQUEST_GET);
+
+      final String path = repositorySource.substring(getRepositoryRoot().length());
+      final File target = destination;
+      RequestCoalescer.getInstance().execute(getRequestKey("get", repositorySource),
+          new RequestCoalescer.Request<File>() {
+            public File execute() throws SVNException, IOException {
+              read("get", path, true, new ReadAction<Object>() {
+                public Object read(String root) throws SVNException, IOException {
+                  SVNURL url = SVNURL.parseURIEncoded(root + path);
+                  SVNRepository repository = borrowRepository(url);
+                  boolean reuse = false;
+                  try {
+                    SvnDao svnDAO = new SvnDao(repository);
+                    svnDAO.setTransferProgressListener(transferProgressListener);
+                    svnDAO.setBandwidthLimiters(getBandwidthLimiter, putBandwidthLimiter);
+                    svnDAO.setMetrics(metrics);
+                    if (contentDeduplication) { // record retrieved content so publishing the same content can copy it
+                      MessageDigest digest = createSha1Digest();
+                      long revision = svnDAO.getFile(url, target, svnRetrieveRevision, digest);
+                      ContentIndex.getInstance(getRepositoryRoot()).add(
+                          ChecksumHelper.byteArrayToHexString(digest.digest()), path, revision);
+                    } else {
+                      svnDAO.getFile(url, target, svnRetrieveRevision);
+                    }
+                    reuse = true;
+                    return null;
+                  } finally {
+                    returnRepository(repository, reuse); // a failed read may leave the session mid-response
+                  }
+                }
+              });
+              return target;
+            }
+
+            @Override
+            public File share(File retrieved) throws IOException {
+              if (!retrieved.getCanonicalFile().equals(target.getCanonicalFile())) {
+                FileUtil.copy(retrieved, target, null);
+              }
+              return target;
+            }
+          });
+
+      fireTransferCompleted(destination.length());
+    } catch (SVNException e) {
+      Message.error("Error retrieving" + repositorySource + " [revision=" + svnRetrieveRevision + "]");
+      throw (IOException) new IOException().initCause(e);
+    } finally {
+      if (deadlineStarted) {
+        OperationDeadline.end();
+      }
+    }
+  }
+
+  /**
+   * Creates a digest for calculating SHA-1 checksums.
+   * 
+   * @return A SHA-1 digest.
+   * @throws IOException If SHA-1 is not supported.
+   */
+  private MessageDigest createSha1Digest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw (IOException) new IOException("SHA-1 not supported").initCause(e);
+    }
+  }
+
+  /**
+   * Gets a SvnResource.
+   * 
+   * @param source Path to the resource in Subversion, relative to the repository root.
+   * @return The resource.
+   * @throws IOException Never thrown, just here to satisfy interface.
+   */
+  public Resource getResource(String source) throws IOException {
+    SvnRepository shard = getShard(source);
+    if (shard != null) {
+      return shard.getResource(source);
+    }
+    String repositorySource = getRepositoryRoot() + source;
+    Resource resource = (Resource) resourcesCache.get(repositorySource);
+    metrics.resourceCacheLookup(resource != null);
+    FlightRecorderEvents.lookup("resource", repositorySource, resource != null);
+    if (resource == null) {
+      resource = new SvnResource(this, repositorySource);
+      resourcesCache.put(repositorySource, resource);
+    }
+    return resource;
+  }
+
+  /**
+   * Gets the path, relative to the repository root, of a URL in this repository or one of its read replicas. This is
+   * the form of path passed to get() and put(), so progress events refer to the same resources as the other transfer
+   * events.
+   * 
+   * @param url The URI encoded URL.
+   * @return The path relative to the repository root, or the URL if it isn't in the repository or its replicas.
+   */
+  String getResourcePath(String url) {
+    try {
+      String path = SVNURL.parseURIEncoded(url).getPath();
+      List<String> roots = new ArrayList<String>();
+      roots.add(getRepositoryRoot());
+      for (ReadReplicaRouter.Replica replica : readReplicaRouter.getReplicas()) {
+        roots.add(replica.getRoot());
+      }
+      for (String root : roots) {
+        String rootPath = SVNURL.parseURIEncoded(root).getPath();
+        if (root.endsWith("/")) { // stripped when parsed, but relative paths don't start with one
+          rootPath += "/";
+        }
+        if (path.startsWith(rootPath)) {
+          return path.substring(rootPath.length());
+        }
+      }
+    } catch (SVNException e) {
+      Message.debug("Could not parse transferred URL " + url + ": " + e.getMessage());
+    }
+    return url;
+  }
+
+  /**
+   * Fetch the needed file information for a given file (size, last modification time) and report it back in a
+   * SvnResource.
+   * 
+   * @param repositorySource Full path to resource in subversion (including host, protocol etc.)
+   * @return SvnResource filled with the needed informations
+   */
+  protected SvnResource resolveResource(String repositorySource) {
+    TraceRecorder.Span span = trace("resolveResource", repositorySource);
+    try {
+      return resolveResourceTraced(repositorySource);
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Fetches the file information for a given file, see resolveResource().
+   * 
+   * @param repositorySource Full path to resource in subversion (including host, protocol etc.)
+   * @return SvnResource filled with the needed informations
+   */
+  private SvnResource resolveResourceTraced(final String repositorySource) {
+    Message.debug("Resolving resource for " + repositorySource + " [revision=" + svnRetrieveRevision + "]");
+    SvnResource result = null;
+    String requestKey = getRequestKey("info", repositorySource);
+    boolean deadlineStarted = OperationDeadline.startIfNone(operationTimeout);
+    try {
+      final String path = repositorySource.startsWith(getRepositoryRoot()) ? repositorySource
+          .substring(getRepositoryRoot().length()) : null;
+      SVNDirEntry entry = RequestCoalescer.getInstance().execute(requestKey,
+          new RequestCoalescer.Request<SVNDirEntry>() {
+            public SVNDirEntry execute() throws SVNException, IOException {
+              return read("resolveResource", path, false, new ReadAction<SVNDirEntry>() {
+                public SVNDirEntry read(String root) throws SVNException {
+                  SVNURL url = SVNURL.parseURIEncoded(path == null ? repositorySource : root + path);
+                  SVNRepository repository = borrowRepository(url);
+                  boolean reuse = false;
+                  try {
+                    SVNDirEntry entry = null;
+                    long start = System.nanoTime();
+                    FlightRecorderEvents.Event event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.RPC,
+                        "checkPath", url.toString());
+                    SVNNodeKind nodeKind = repository.checkPath("", svnRetrieveRevision);
+                    event.setRevision(svnRetrieveRevision).commit();
+                    metrics.record(RepositoryMetrics.Operation.CHECK_PATH, start, url.toString(),
+                        svnRetrieveRevision, repository);
+                    if (nodeKind != SVNNodeKind.NONE) {
+                      start = System.nanoTime();
+                      event = FlightRecorderEvents.begin(FlightRecorderEvents.Type.RPC, "info", url.toString());
+                      entry = repository.info("", svnRetrieveRevision);
+                      event.setRevision(svnRetrieveRevision).setBytes(entry == null ? 0 : entry.getSize()).commit();
+                      metrics.record(RepositoryMetrics.Operation.INFO, start, url.toString(), svnRetrieveRevision,
+                          repository);
+                    }
+                    reuse = true;
+                    return entry;
+                  } finally {
+                    returnRepository(repository, reuse);
+                  }
+                }
+              });
+            }
+          });
+      if (entry == null) {
+        // log this on debug, NOT error, see http://code.google.com/p/ivysvn/issues/detail?id=21
+        Message.debug("No resource found at " + repositorySource + ", returning default resource");
+        result = new SvnResource();
+      } else {
+        Message.debug("Resource found at " + repositorySource + ", returning resolved resource");
+        result = new SvnResource(this, repositorySource, true, entry.getDate().getTime(), entry.getSize());
+      }
+      knownResources.put(requestKey, result);
+    } catch (IOException e) {
+      Message.error("Error resolving resource " + repositorySource + ", " + e.getMessage());
+      result = new SvnResource();
+    } catch (SVNException e) {
+      result = knownResources.get(requestKey);
+      if (result != null && isTimeout(e)) {
+        Message.warn("Timed out resolving resource " + repositorySource + ", using previous result: "
+            + e.getMessage());
+      } else {
+        Message.error("Error resolving resource " + repositorySource + ", " + e.getMessage());
+        Message.debug("Exception is: " + getStackTrace(e)); // useful for debugging network issues
+        result = new SvnResource();
+      }
+    } finally {
+      if (deadlineStarted) {
+        OperationDeadline.end();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the key identifying a read request for coalescing with identical requests.
+   * 
+   * @param operation The operation being performed.
+   * @param url The full URL being read.
+   * @return The key.
+   */
+  private String getRequestKey(String operation, String url) {
+    return operation + " " + userName + " " + url + "@" + svnRetrieveRevision;
+  }
+
+  /**
+   * A read from the repository which can be performed against the primary repository or any of its replicas.
+   * 
+   * @param <T> The type of the read's result.
+   */
+  private interface ReadAction<T> {
+
+    /**
+     * Performs the read.
+     * 
+     * @param root The URL of the Ivy repository root to read from, ending with a "/".
+     * @return The result of the read.
+     * @throws SVNException If an error occurs reading from Subversion.
+     * @throws IOException If an error occurs writing any data that was read.
+     */
+    T read(String root) throws SVNException, IOException;
+
+  }
+
+  /**
+   * Performs a read against the lowest latency healthy replica which has caught up with any publishes of the path by
+   * this repository. If there is no such replica or the read from the replica fails, the read is performed against the
+   * primary repository instead.
+   * 
+   * @param <T> The type of the read's result.
+   * @param type The type of read (e.g. "list").
+   * @param path The path being read, relative to the repository root, or null if it can only be read from the primary.
+   * @param transfersData Whether the read transfers file data, so its latency depends on the amount of data.
+   * @param action The read.
+   * @return The result of the read.
+   * @throws SVNException If an error occurs reading from the primary repository.
+   * @throws IOException If an error occurs writing any data that was read.
+   */
+  private <T> T read(String type, String path, boolean transfersData, ReadAction<T> action) throws SVNException,
+      IOException {
+    if (path != null && readReplicaRouter.hasReplicas()) {
+      long requiredRevision = readReplicaRouter.getRequiredRevision(path, svnRetrieveRevision);
+      for (ReadReplicaRouter.Replica replica : readReplicaRouter.getHealthyReplicas()) {
+        long start = System.nanoTime();
+        try {
+          if (requiredRevision >= 0 && replica.getYoungestRevision() < requiredRevision) {
+            replica.setYoungestRevision(getLatestRevision(SVNURL.parseURIEncoded(replica.getRoot())));
+            if (replica.getYoungestRevision() < requiredRevision) {
+              Message.debug("Replica " + replica.getRoot() + " hasn't reached revision " + requiredRevision);
+              continue;
+            }
+          }
+          T result = limitConcurrency(type, replica.getRoot(), path, transfersData, action);
+          replica.recordSuccess(System.nanoTime() - start);
+          Message.debug("Read " + path + " from replica " + replica.getRoot());
+          return result;
+        } catch (SVNException e) {
+          replica.recordFailure();
+          Message.warn("Error reading " + path + " from replica " + replica.getRoot() + ", excluding it for "
+              + ReadReplicaRouter.UNHEALTHY_PERIOD + "ms: " + e.getMessage());
+        }
+      }
     }
+    return limitConcurrency(type, getRepositoryRoot(), path, transfersData, action);
   }
 
   /**
-   * Aborts a previously started publish transaction.
+   * Gets the latest revision of the repository at the passed URL.
    * 
-   * @throws IOException If an error occurs aborting the publish transaction.
+   * @param url The repository URL.
+   * @return The latest revision.
+   * @throws SVNException If an error occurs getting the revision.
    */
-  public void abortPublishTransaction() throws IOException {
-    if (publishTransaction == null) {
-      Message.info("Transaction not created, nothing to abort");
-      return;
-    }
-    if (!publishTransaction.commitStarted()) {
-      Message.info("Commit transaction not started, nothing to abort");
-      return;
-    }
-    Message.info("Aborting transaction");
+  private long getLatestRevision(SVNURL url) throws SVNException {
+    SVNRepository repository = borrowRepository(url);
+    boolean reuse = false;
     try {
-      publishTransaction.abort();
-      publishTransaction = null;
-    } catch (SVNException e) {
-      throw (IOException) new IOException().initCause(e);
+      long revision = repository.getLatestRevision();
+      reuse = true;
+      return revision;
+    } finally {
+      returnRepository(repository, reuse);
     }
   }
 
   /**
-   * Ensures that a transaction has been created.
+   * Performs a read once the concurrency limiter for the server being read from allows it. Reads which transfer file
+   * data are limited as bulk requests, unless the file is metadata.
    * 
-   * @throws IllegalStateException If a transaction has not been created.
+   * @param <T> The type of the read's result.
+   * @param type The type of read (e.g. "list").
+   * @param root The URL of the Ivy repository root to read from.
+   * @param path The path being read, relative to the repository root, may be null.
+   * @param transfersData Whether the read transfers file data, so its latency shouldn't be used to adapt the limit.
+   * @param action The read.
+   * @return The result of the read.
+   * @throws SVNException If an error occurs reading from Subversion.
+   * @throws IOException If an error occurs writing any data that was read, or if interrupted while waiting.
    */
-  private void ensurePublishTransaction() {
-    if (publishTransaction == null) {
-      throw new IllegalStateException("Transaction not initialised");
+  private <T> T limitConcurrency(String type, String root, String path, boolean transfersData,
+      ReadAction<T> action) throws SVNException, IOException {
+    OperationDeadline.check();
+    ConcurrencyLimiter limiter = getConcurrencyLimiter(root);
+    if (limiter == null) {
+      return action.read(root);
+    }
+    boolean bulk = transfersData && !isMetadata(path);
+    acquire(limiter, bulk);
+    OperationDeadline.check(); // may have waited for the limiter until after the deadline
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      T result = action.read(root);
+      failed = false;
+      return result;
+    } catch (SVNException e) {
+      failed = isCommunicationError(e);
+      throw e;
+    } finally {
+      limiter.release(type, transfersData ? -1 : System.nanoTime() - start, failed, bulk);
     }
   }
 
   /**
-   * Ensures that no transaction is lingering around.
+   * Determines whether the passed file is metadata which resolves depend on, as opposed to an artifact.
    * 
-   * @throws IllegalStateException If a transaction is still active.
+   * @param path The file path, may be null.
+   * @return true if the file is metadata, false otherwise.
    */
-  private void ensureNoPublishTransaction() {
-    if (publishTransaction != null) {
-      throw new IllegalStateException("Previous transaction is still active");
+  private boolean isMetadata(String path) {
+    if (path != null) {
+      String lowerCasePath = path.toLowerCase();
+      for (String extension : METADATA_EXTENSIONS) {
+        if (lowerCasePath.endsWith(extension)) {
+          return true;
+        }
+      }
     }
+    return false;
   }
 
   /**
-   * Handles a request to add/update a file to/in the repository.
+   * Gets the concurrency limiter for the server a URL belongs to.
    * 
-   * @param source The source file.
-   * @param destination The location of the file in the repository.
-   * @param overwrite Whether to overwite the file if it already exists.
-   * @throws IOException If an error occurs putting a file (invalid path, invalid login credentials etc.)
+   * @param url The URL.
+   * @return The limiter, or null if concurrency isn't limited.
+   * @throws SVNException If the URL is invalid.
    */
-  public void put(File source, String destination, boolean overwrite) throws IOException {
-    fireTransferInitiated(getResource(destination), TransferEvent.REQUEST_PUT);
-    Message.debug("Scheduling publish from " + source.getAbsolutePath() + " to " + getRepositoryRoot() + destination);
-    Message.info("Scheduling publish to " + getRepositoryRoot() + destination);
-    try {
-      SVNURL destinationURL = SVNURL.parseURIEncoded(getRepositoryRoot() + destination);
-      if (publishTransaction == null) { // haven't initialised transaction on a previous put
-
-        // first create a repository which transaction can use for various file checks
-        SVNURL repositoryRootURL = SVNURL.parseURIEncoded(getRepositoryRoot());
-        SVNRepository ancillaryRepository = getRepository(repositoryRootURL, false);
-        SvnDao svnDAO = new SvnDao(ancillaryRepository);
-
-        // now create another repository which transaction will use to do actual commits
-        SVNRepository commitRepository = getRepository(destinationURL, false);
-
-        publishTransaction = new SvnPublishTransaction(svnDAO, moduleRevisionId, commitRepository, repositoryRootURL);
-        publishTransaction.setBinaryDiff(binaryDiff);
-        publishTransaction.setBinaryDiffFolderName(binaryDiffFolderName);
-        publishTransaction.setCleanupPublishFolder(cleanupPublishFolder);
-      }
-      // add all info needed to put the file to the transaction
-      publishTransaction.addPutOperation(source, destination, overwrite);
-    } catch (SVNException e) {
-      throw (IOException) new IOException().initCause(e);
+  private ConcurrencyLimiter getConcurrencyLimiter(String url) throws SVNException {
+    if (maxConcurrentRequests <= 0) {
+      return null;
     }
+    return ConcurrencyLimiter.getInstance(ConcurrencyLimiter.getKey(SVNURL.parseURIEncoded(url)),
+        maxConcurrentRequests, adaptiveConcurrency);
   }
 
   /**
-   * Handles a request to retrieve a file from the repository.
+   * Waits until the passed limiter allows a request to be made.
    * 
-   * @param source Path to the resource to retrieve, including the repository root.
-   * @param destination The location where the file should be retrieved to.
-   * @throws IOException If an error occurs retrieving the file.
+   * @param limiter The limiter.
+   * @param bulk Whether the request is a bulk request, as opposed to a metadata request.
+   * @throws SVNCancelException If the calling thread's operation deadline passes while waiting.
+   * @throws IOException If interrupted while waiting.
    */
-  public void get(String source, File destination) throws IOException {
-    fireTransferInitiated(getResource(source), TransferEvent.REQUEST_GET);
-    String repositorySource = source;
-    if (!source.startsWith(repositoryRoot)) {
-      repositorySource = getRepositoryRoot() + source;
-    }
-    Message.debug("Getting file for user " + userName + " from " + repositorySource + " [revision="
-        + svnRetrieveRevision + "] to " + destination.getAbsolutePath());
+  private void acquire(ConcurrencyLimiter limiter, boolean bulk) throws SVNCancelException, IOException {
     try {
-      SVNURL url = SVNURL.parseURIEncoded(repositorySource);
-      SVNRepository repository = getRepository(url, true);
-      repository.setLocation(url, false);
-
-      Resource resource = getResource(source);
-      fireTransferInitiated(resource, TransferEvent.REQUEST_GET);
-
-      SvnDao svnDAO = new SvnDao(repository);
-      svnDAO.getFile(url, destination, svnRetrieveRevision);
-
-      fireTransferCompleted(destination.length());
-    } catch (SVNException e) {
-      Message.error("Error retrieving" + repositorySource + " [revision=" + svnRetrieveRevision + "]");
-      throw (IOException) new IOException().initCause(e);
+      limiter.acquire(bulk);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new IOException("Interrupted waiting to make request to " + limiter.getKey()).initCause(e);
     }
   }
 
   /**
-   * Gets a SvnResource.
+   * Determines whether the passed exception was caused by a problem communicating with the server, as opposed to e.g.
+   * a path not existing.
    * 
-   * @param source Path to the resource in Subversion, relative to the repository root.
-   * @return The resource.
-   * @throws IOException Never thrown, just here to satisfy interface.
+   * @param e The exception.
+   * @return true if the exception was caused by a communication problem, false otherwise.
    */
-  public Resource getResource(String source) throws IOException {
-    String repositorySource = getRepositoryRoot() + source;
-    Resource resource = (Resource) resourcesCache.get(repositorySource);
-    if (resource == null) {
-      resource = new SvnResource(this, repositorySource);
-      resourcesCache.put(repositorySource, resource);
-    }
-    return resource;
+  private boolean isCommunicationError(SVNException e) {
+    return e.getErrorMessage().getErrorCode().getCategory() == SVNErrorCode.RA_CATEGORY;
   }
 
   /**
-   * Fetch the needed file information for a given file (size, last modification time) and report it back in a
-   * SvnResource.
+   * Determines whether the passed exception was caused by an operation running out of time, either because its
+   * deadline passed or because the server didn't respond before a timeout.
    * 
-   * @param repositorySource Full path to resource in subversion (including host, protocol etc.)
-   * @return SvnResource filled with the needed informations
+   * @param e The exception.
+   * @return true if the exception was caused by a timeout, false otherwise.
    */
-  protected SvnResource resolveResource(String repositorySource) {
-    Message.debug("Resolving resource for " + repositorySource + " [revision=" + svnRetrieveRevision + "]");
-    SvnResource result = null;
-    try {
-      SVNURL url = SVNURL.parseURIEncoded(repositorySource);
-      SVNRepository repository = getRepository(url, true);
-      SVNNodeKind nodeKind = repository.checkPath("", svnRetrieveRevision);
-      if (nodeKind == SVNNodeKind.NONE) {
-        // log this on debug, NOT error, see http://code.google.com/p/ivysvn/issues/detail?id=21
-        Message.debug("No resource found at " + repositorySource + ", returning default resource");
-        result = new SvnResource();
-      } else {
-        Message.debug("Resource found at " + repositorySource + ", returning resolved resource");
-        SVNDirEntry entry = repository.info("", svnRetrieveRevision);
-        result = new SvnResource(this, repositorySource, true, entry.getDate().getTime(), entry.getSize());
+  private boolean isTimeout(SVNException e) {
+    if (e instanceof SVNCancelException) {
+      return true;
+    }
+    for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+      if (cause instanceof SocketTimeoutException) {
+        return true;
       }
-    } catch (SVNException e) {
-      Message.error("Error resolving resource " + repositorySource + ", " + e.getMessage());
-      Message.debug("Exception is: " + getStackTrace(e)); // useful for debugging network issues
-      result = new SvnResource();
     }
-    return result;
+    return false;
   }
 
   private String getStackTrace(Throwable t) {
@@ -395,17 +1777,82 @@ public class SvnRepository extends AbstractRepository {
    * @throws IOException On listing failure.
    */
   public List<String> list(String source) throws IOException {
+    TraceRecorder.Span span = trace("list", source);
+    try {
+      return listTraced(source);
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Returns a listing of resource located at a certain location, see list().
+   * 
+   * @param source The path to the folder in subversion from which to generate the listing, relative to the repository
+   *          root.
+   * @return A listing of the parent directory's file content, as a List of Strings.
+   * @throws IOException On listing failure.
+   */
+  private List<String> listTraced(final String source) throws IOException {
+    SvnRepository shard = getShard(source);
+    if (shard != null) {
+      return shard.list(source);
+    }
     String repositorySource = getRepositoryRoot();
     Message.debug("Getting list for " + repositorySource + source + " [revision=" + svnRetrieveRevision + "]");
+    String requestKey = getRequestKey("list", repositorySource + source);
+    boolean deadlineStarted = OperationDeadline.startIfNone(operationTimeout);
     try {
-      SVNURL url = SVNURL.parseURIEncoded(repositorySource);
-      SVNRepository repository = getRepository(url, true);
-      SvnDao svnDAO = new SvnDao(repository);
-      List<String> list = svnDAO.list(source, svnRetrieveRevision);
+      List<String> list = RequestCoalescer.getInstance().execute(requestKey,
+          new RequestCoalescer.Request<List<String>>() {
+            public List<String> execute() throws SVNException, IOException {
+              return read("list", source, false, new ReadAction<List<String>>() {
+                public List<String> read(String root) throws SVNException {
+                  SVNRepository repository = borrowRepository(SVNURL.parseURIEncoded(root));
+                  boolean reuse = false;
+                  try {
+                    SvnDao svnDAO = new SvnDao(repository);
+                    svnDAO.setMetrics(metrics);
+                    List<String> list = svnDAO.list(source, svnRetrieveRevision);
+                    reuse = true;
+                    return list;
+                  } finally {
+                    returnRepository(repository, reuse);
+                  }
+                }
+              });
+            }
+
+            @Override
+            public List<String> share(List<String> list) {
+              return new ArrayList<String>(list); // the leader's list is added to once shared
+            }
+          });
+      // add the folders leading to any shards under the listed folder
+      String folder = normalisePath(source);
+      for (String prefix : shardRoots.keySet()) {
+        if (prefix.startsWith(folder) && prefix.length() > folder.length()) {
+          String child = prefix.substring(folder.length()).split("/")[0];
+          if (!list.contains(child)) {
+            list.add(child);
+          }
+        }
+      }
+      knownLists.put(requestKey, new ArrayList<String>(list));
       return list;
     } catch (SVNException e) {
+      List<String> knownList = knownLists.get(requestKey);
+      if (knownList != null && isTimeout(e)) {
+        Message.warn("Timed out getting list for " + repositorySource + source + ", using previous result: "
+            + e.getMessage());
+        return new ArrayList<String>(knownList);
+      }
       Message.error("Error getting list for " + repositorySource + source + " [revision=" + svnRetrieveRevision + "]");
       throw (IOException) new IOException().initCause(e);
+    } finally {
+      if (deadlineStarted) {
+        OperationDeadline.end();
+      }
     }
   }
 
@@ -463,6 +1910,18 @@ public class SvnRepository extends AbstractRepository {
     this.portNumber = portNumber;
   }
 
+  /**
+   * Set whether svn+ssh sessions share persistent SSH connections. When enabled each session opens a channel on an
+   * existing connection to the same host with the same credentials (SVNKit multiplexes up to 8 sessions over each
+   * connection) instead of performing its own key exchange and authentication, and idle connections are kept open
+   * for re-use. Enabled by default, this applies to all svn+ssh sessions opened in the JVM.
+   * 
+   * @param sshConnectionSharing Whether to share SSH connections.
+   */
+  public void setSshConnectionSharing(boolean sshConnectionSharing) {
+    SVNSSHSession.setUsePersistentConnection(sshConnectionSharing);
+  }
+
   /**
    * Set the SSL Certificate file to use for SSL authentication to Subversion.
    * 
@@ -491,6 +1950,14 @@ public class SvnRepository extends AbstractRepository {
       repositoryRoot += "/";
     }
     this.repositoryRoot = repositoryRoot;
+    metrics.register(repositoryRoot);
+  }
+
+  /**
+   * @return The performance metrics for this repository.
+   */
+  public RepositoryMetrics getMetrics() {
+    return metrics;
   }
 
   /**
@@ -499,7 +1966,7 @@ public class SvnRepository extends AbstractRepository {
    * @return The repository root.
    * @throws IllegalStateException If the repository root is null.
    */
-  private String getRepositoryRoot() {
+  String getRepositoryRoot() {
     if (repositoryRoot == null) {
       throw new IllegalStateException(
           "No repository root defined, you must set the 'repositoryRoot' attribute on 'svn' in your ivy settings");
@@ -549,4 +2016,311 @@ public class SvnRepository extends AbstractRepository {
     this.cleanupPublishFolder = cleanupPublishFolder;
   }
 
+  /**
+   * Set whether to add published files whose content already exists in the repository (because it was previously
+   * published or retrieved) as server-side copies instead of uploading the file data again.
+   * 
+   * @param contentDeduplication Whether to deduplicate published content or not.
+   */
+  public void setContentDeduplication(boolean contentDeduplication) {
+    this.contentDeduplication = contentDeduplication;
+  }
+
+  /**
+   * Sets the maximum size of the windows file data is split into when it is published.
+   * 
+   * @param deltaWindowSize The window size in bytes.
+   */
+  public void setDeltaWindowSize(int deltaWindowSize) {
+    if (deltaWindowSize <= 0) {
+      throw new IllegalArgumentException("Delta window size must be greater than 0");
+    }
+    this.deltaWindowSize = deltaWindowSize;
+  }
+
+  /**
+   * Sets whether published file data should be delta compressed before being sent to Subversion. "auto" skips
+   * compression for files which are already compressed (jar, zip, gz etc.).
+   * 
+   * @param deltaCompression One of "true", "false" or "auto".
+   */
+  public void setDeltaCompression(String deltaCompression) {
+    if (!SvnDao.DELTA_COMPRESSION_TRUE.equals(deltaCompression)
+        && !SvnDao.DELTA_COMPRESSION_FALSE.equals(deltaCompression)
+        && !SvnDao.DELTA_COMPRESSION_AUTO.equals(deltaCompression)) {
+      throw new IllegalArgumentException("Invalid delta compression setting '" + deltaCompression
+          + "', must be one of true, false or auto");
+    }
+    this.deltaCompression = deltaCompression;
+  }
+
+  /**
+   * Sets the maximum number of times a publish which fails because a concurrent publish changed the same paths (e.g.
+   * the same module or binary diff folder), or because the connection to the server was lost, will be attempted.
+   * 
+   * @param maxCommitAttempts The maximum number of attempts, 1 disables retrying.
+   */
+  public void setMaxCommitAttempts(int maxCommitAttempts) {
+    if (maxCommitAttempts < 1) {
+      throw new IllegalArgumentException("Maximum commit attempts must be at least 1");
+    }
+    this.maxCommitAttempts = maxCommitAttempts;
+  }
+
+  /**
+   * Sets the size from which files published via binary diff are first committed to the binary diff folder in commits
+   * of their own, so that if the connection fails part way through a publish only the files which weren't staged yet
+   * need to be sent again when it is retried.
+   * 
+   * @param stagingThreshold The size in bytes, 0 to disable staging.
+   */
+  public void setStagingThreshold(long stagingThreshold) {
+    this.stagingThreshold = stagingThreshold;
+  }
+
+  /**
+   * Adds a read-only replica of the repository (e.g. a mirror maintained by svnsync) which reads can be sent to instead
+   * of the primary repository. Reads go to the healthy replica with the lowest latency, except for reads of modules
+   * published via this repository, which only go to replicas that have caught up with the publish.
+   * 
+   * @param replicaRoot The URL of the Ivy repository root in the replica.
+   */
+  public void addReadReplica(String replicaRoot) {
+    readReplicaRouter.addReplica(replicaRoot);
+  }
+
+  /**
+   * Adds a read-only replica of a shard's repository, see addReadReplica(). Replicas added via addReadReplica() only
+   * mirror the repository root so aren't used for shards.
+   * 
+   * @param prefix The shard's path prefix, as passed to addShard().
+   * @param replicaRoot The URL of the shard's Ivy repository root in the replica.
+   */
+  public void addShardReadReplica(String prefix, String replicaRoot) {
+    String shardPrefix = normalisePath(prefix);
+    List<String> replicaRoots = shardReplicaRoots.get(shardPrefix);
+    if (replicaRoots == null) {
+      replicaRoots = new ArrayList<String>();
+      shardReplicaRoots.put(shardPrefix, replicaRoots);
+    }
+    replicaRoots.add(replicaRoot);
+  }
+
+  /**
+   * Sets the number of sessions to open and authenticate in the background as soon as the repository is configured,
+   * so that the first requests don't have to wait for connections to be set up. Prewarming is started by prewarm().
+   * The number is limited to the maximum number of idle sessions kept in the session pool, as any more sessions would
+   * be closed as soon as they were returned to it.
+   * 
+   * @param prewarmSessions The number of sessions, 0 to disable.
+   */
+  public void setPrewarmSessions(int prewarmSessions) {
+    if (prewarmSessions < 0) {
+      throw new IllegalArgumentException("Number of sessions to prewarm cannot be negative");
+    }
+    int maxIdleSessions = SVNRepositoryCache.getInstance().getMaxIdleSessions();
+    if (prewarmSessions > maxIdleSessions) {
+      Message.warn("Only " + maxIdleSessions + " of the " + prewarmSessions
+          + " sessions to prewarm can be kept in the session pool, prewarming " + maxIdleSessions);
+      prewarmSessions = maxIdleSessions;
+    }
+    this.prewarmSessions = prewarmSessions;
+  }
+
+  /**
+   * Sets the maximum number of concurrent requests to each Subversion server, requests over the limit wait for a
+   * request in progress to finish instead of failing. Unless adaptive concurrency is disabled the actual limit starts
+   * lower and is adapted to the latency and error rate of each server's responses, never exceeding this maximum.
+   * 
+   * @param maxConcurrentRequests The maximum number of concurrent requests, 0 for no limit.
+   */
+  public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+    if (maxConcurrentRequests < 0) {
+      throw new IllegalArgumentException("Maximum concurrent requests cannot be negative");
+    }
+    this.maxConcurrentRequests = maxConcurrentRequests;
+  }
+
+  /**
+   * Sets whether the number of concurrent requests to each server is adapted to the latency and error rate of its
+   * responses, or is always the maximum set via setMaxConcurrentRequests().
+   * 
+   * @param adaptiveConcurrency Whether to adapt the concurrency limit.
+   */
+  public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+    this.adaptiveConcurrency = adaptiveConcurrency;
+  }
+
+  /**
+   * Sets the maximum rate at which file data is retrieved by this repository. Short bursts (up to a second's worth of
+   * data) are let through at full speed. The limit can be changed while transfers are in progress.
+   * 
+   * @param bytesPerSecond The maximum rate in bytes per second, 0 for no limit.
+   */
+  public void setMaxGetBytesPerSecond(long bytesPerSecond) {
+    getBandwidthLimiter.setBytesPerSecond(bytesPerSecond);
+  }
+
+  /**
+   * Sets the maximum rate at which file data is published by this repository. Short bursts (up to a second's worth of
+   * data) are let through at full speed. The limit can be changed while transfers are in progress.
+   * 
+   * @param bytesPerSecond The maximum rate in bytes per second, 0 for no limit.
+   */
+  public void setMaxPutBytesPerSecond(long bytesPerSecond) {
+    putBandwidthLimiter.setBytesPerSecond(bytesPerSecond);
+  }
+
+  /**
+   * Sets the timeout for opening connections to Subversion servers.
+   * 
+   * @param connectTimeout The timeout in milliseconds, 0 to wait indefinitely.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0) {
+      throw new IllegalArgumentException("Connect timeout cannot be negative");
+    }
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Sets the timeout for waiting for data from Subversion servers, so a hung connection fails instead of blocking.
+   * 
+   * @param readTimeout The timeout in milliseconds, 0 to wait indefinitely.
+   */
+  public void setReadTimeout(int readTimeout) {
+    if (readTimeout < 0) {
+      throw new IllegalArgumentException("Read timeout cannot be negative");
+    }
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Sets the total time each retrieve, listing or resource lookup may take, and each publish from the start of its
+   * transaction (or group transaction) to its commit. Once the time has passed any further Subversion calls fail.
+   * Resource lookups and listings which fail this way (or because of a read timeout) return their last successful
+   * result if there is one.
+   * 
+   * @param operationTimeout The timeout in milliseconds, 0 for no limit.
+   */
+  public void setOperationTimeout(long operationTimeout) {
+    if (operationTimeout < 0) {
+      throw new IllegalArgumentException("Operation timeout cannot be negative");
+    }
+    this.operationTimeout = operationTimeout;
+  }
+
+  /**
+   * Adds a shard, paths starting with the passed prefix will be stored in the shard's repository instead of under the
+   * repository root. For example, with the usual "[organisation]/[module]/..." patterns a prefix of "acme" stores all
+   * of the acme organisation's modules in the shard. Where several prefixes match a path the longest one is used.
+   * 
+   * @param prefix The path prefix, relative to the repository root.
+   * @param shardRoot The root of the Ivy repository in the shard.
+   */
+  public void addShard(String prefix, String shardRoot) {
+    if (!shardRoot.endsWith("/")) {
+      shardRoot += "/";
+    }
+    shardRoots.put(normalisePath(prefix), shardRoot);
+  }
+
+  /**
+   * Sets a file to write a trace of the operations performed by this repository to at the end of each run (i.e. Ant
+   * build), in Chrome trace event format.
+   * 
+   * @param traceFile The trace file, null to disable tracing.
+   * @throws IOException If the file's path cannot be determined.
+   */
+  public void setTraceFile(File traceFile) throws IOException {
+    traceRecorder = traceFile == null ? null : TraceRecorder.getInstance(traceFile);
+  }
+
+  /**
+   * Sets the thresholds above which operations are logged as slow, see SlowOperationLog.setThresholds().
+   * 
+   * @param thresholds Comma separated list of thresholds in milliseconds in the form type=threshold, where type is an
+   *          operation type (e.g. "checkPath") or "*" for all other types.
+   */
+  public void setSlowOperationThresholds(String thresholds) {
+    if (slowOperationLog == null) {
+      slowOperationLog = new SlowOperationLog();
+      metrics.setSlowOperationLog(slowOperationLog);
+    }
+    slowOperationLog.setThresholds(thresholds);
+  }
+
+  /**
+   * @return The log of slow operations, null if slow operations aren't logged.
+   */
+  public SlowOperationLog getSlowOperationLog() {
+    return slowOperationLog;
+  }
+
+  /**
+   * Begins a trace span for an operation performed by this repository.
+   * 
+   * @param name The name of the operation.
+   * @param detail Detail about the operation (e.g. the path).
+   * @return The span, which must be ended via Span.end().
+   */
+  private TraceRecorder.Span trace(String name, String detail) {
+    return traceRecorder == null ? TraceRecorder.NONE : traceRecorder.begin(name, detail);
+  }
+
+  /**
+   * Sets a local directory to use as a journal for publishing in the background. When set, publishing copies the files
+   * into the journal and returns immediately, with a background thread committing them in order. Publishes left in
+   * the journal by a process which died before they were committed are committed when the publisher is started. The
+   * journal is locked while in use, so it cannot be shared between processes.
+   * 
+   * @param journalDirectory The journal directory.
+   */
+  public void setAsyncPublishJournal(File journalDirectory) {
+    publishJournal = new PublishJournal(journalDirectory);
+    asyncPublisher = new AsyncPublisher(this, publishJournal);
+  }
+
+  /**
+   * Starts the background publisher if a journal has been set, which locks the journal and commits any publishes left
+   * in it by a previous process. Otherwise does nothing.
+   * 
+   * @throws IOException If the journal is in use by another process or an error occurs reading it.
+   */
+  public void startAsyncPublisher() throws IOException {
+    if (asyncPublisher != null) {
+      asyncPublisher.start();
+    }
+  }
+
+  /**
+   * Gets the publisher committing publishes in the background, which can be used to check on their progress.
+   * 
+   * @return The publisher, or null if publishes are committed synchronously.
+   */
+  public AsyncPublisher getAsyncPublisher() {
+    return asyncPublisher;
+  }
+
+  /**
+   * Waits for all publishes being committed in the background to finish, including any being replayed from the
+   * journal.
+   * 
+   * @param timeout Maximum time to wait in milliseconds, 0 to wait forever.
+   * @return true if all publishes finished (successfully or not), false if the timeout expired first.
+   * @throws IOException If an error occurs reading the journal or the wait is interrupted.
+   */
+  public boolean waitForAsyncPublishes(long timeout) throws IOException {
+    if (asyncPublisher == null) {
+      return true;
+    }
+    asyncPublisher.start();
+    try {
+      return asyncPublisher.waitForPublishes(timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new IOException("Interrupted waiting for background publishes").initCause(e);
+    }
+  }
+
 }
@@ -18,9 +18,27 @@ package fm.last.ivy.plugins.svnresolver;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.core.IvyPatternHelper;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.DefaultArtifact;
 import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.plugins.parser.xml.UpdateOptions;
+import org.apache.ivy.plugins.parser.xml.XmlModuleDescriptorParser;
+import org.apache.ivy.plugins.parser.xml.XmlModuleDescriptorUpdater;
 import org.apache.ivy.plugins.resolver.RepositoryResolver;
+import org.apache.ivy.plugins.resolver.ResolverSettings;
+import org.apache.ivy.util.ChecksumHelper;
+import org.apache.ivy.util.FileUtil;
+import org.xml.sax.SAXException;
 
 /**
  * An Ivy resolver for Subversion repositories.
@@ -34,6 +52,22 @@ public class SvnResolver extends RepositoryResolver {
     setRepository(new SvnRepository());
   }
 
+  /**
+   * Starts opening sessions in the background if prewarming is enabled, and starts committing any publishes left in
+   * the publish journal by a previous process. All of the resolver's attributes have been set by the time it is added
+   * to the settings.
+   */
+  @Override
+  public void setSettings(ResolverSettings settings) {
+    super.setSettings(settings);
+    getSvnRepository().prewarm();
+    try {
+      getSvnRepository().startAsyncPublisher();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot use publish journal: " + e.getMessage(), e);
+    }
+  }
+
   /**
    * Gets the Repository in use by this resolver, casting it to the correct type.
    * 
@@ -58,6 +92,233 @@ public class SvnResolver extends RepositoryResolver {
     getSvnRepository().commitPublishTransaction();
   }
 
+  /**
+   * Publishes checksum files for artifacts in the current publish transaction by calculating the checksums while the
+   * artifacts are streamed into Subversion, instead of writing them to temporary files first. Falls back to the default
+   * behaviour for anything not published as part of the transaction.
+   */
+  @Override
+  protected void putChecksum(Artifact artifact, File src, String dest, boolean overwrite, String algorithm)
+    throws IOException {
+    if (!getSvnRepository().putChecksum(dest, algorithm, overwrite)) {
+      super.putChecksum(artifact, src, dest, overwrite, algorithm);
+    }
+  }
+
+  /**
+   * Promotes a module revision to a new revision and status, e.g. from a release candidate to a release. The module's
+   * folders are copied on the server in a single commit and only its ivy file is rewritten, so the time taken doesn't
+   * depend on the size of its artifacts.
+   * 
+   * @param source The module revision to promote.
+   * @param target The module revision to promote to, must be a revision of the same module.
+   * @param status The status to give the promoted module.
+   * @throws IOException If the module cannot be promoted.
+   */
+  public void promote(ModuleRevisionId source, ModuleRevisionId target, String status) throws IOException {
+    promote(source, target, status, this);
+  }
+
+  /**
+   * Promotes a module revision to a new revision and status in the area of the repository used by another resolver,
+   * e.g. from an integration area to a release area. The module's folders are copied on the server in a single commit
+   * and only its ivy file is rewritten, so the time taken doesn't depend on the size of its artifacts. If the target
+   * patterns give the module's files different names (e.g. because the names contain the revision), the files are
+   * copied individually to their new names instead.
+   * 
+   * @param source The module revision to promote.
+   * @param target The module revision to promote to, must be a revision of the same module.
+   * @param status The status to give the promoted module.
+   * @param targetResolver The resolver whose patterns determine where the module is promoted to, must have the same
+   *          repository root as this resolver.
+   * @throws IOException If the module cannot be promoted.
+   */
+  public void promote(ModuleRevisionId source, ModuleRevisionId target, String status, SvnResolver targetResolver)
+    throws IOException {
+    if (!source.getModuleId().equals(target.getModuleId())) {
+      throw new IllegalArgumentException("Cannot promote " + source + " to a different module " + target);
+    }
+    if (!getSvnRepository().getRepositoryRoot().equals(targetResolver.getSvnRepository().getRepositoryRoot())) {
+      throw new IllegalArgumentException("Cannot promote to resolver '" + targetResolver.getName()
+          + "' which has a different repository root");
+    }
+    String sourceIvyPath = IvyPatternHelper.substitute((String) getIvyPatterns().get(0), source, "ivy", "ivy", "xml");
+    String targetIvyPath = IvyPatternHelper.substitute((String) targetResolver.getIvyPatterns().get(0), target, "ivy",
+        "ivy", "xml");
+    File sourceIvyFile = File.createTempFile("ivy", ".xml");
+    File targetIvyFile = File.createTempFile("ivy", ".xml");
+    try {
+      getSvnRepository().get(sourceIvyPath, sourceIvyFile);
+      IvySettings settings = IvyContext.getContext().getSettings();
+      Artifact[] ivyArtifacts = { DefaultArtifact.newIvyArtifact(source, new Date()) };
+      Artifact[] artifacts = XmlModuleDescriptorParser.getInstance().parseDescriptor(settings,
+          sourceIvyFile.toURI().toURL(), false).getAllArtifacts();
+      Map<String, String> folders = new LinkedHashMap<String, String>();
+      Map<String, String> files = new LinkedHashMap<String, String>();
+      if (renamesFiles(getIvyPatterns(), targetResolver.getIvyPatterns(), ivyArtifacts, target)
+          || renamesFiles(getArtifactPatterns(), targetResolver.getArtifactPatterns(), artifacts, target)) {
+        addFiles(files, getIvyPatterns(), targetResolver.getIvyPatterns(), ivyArtifacts, target);
+        addFiles(files, getArtifactPatterns(), targetResolver.getArtifactPatterns(), artifacts, target);
+      } else {
+        addFolders(folders, getIvyPatterns(), targetResolver.getIvyPatterns(), source, target);
+        addFolders(folders, getArtifactPatterns(), targetResolver.getArtifactPatterns(), source, target);
+      }
+
+      UpdateOptions options = new UpdateOptions().setSettings(settings).setStatus(status).setRevision(
+          target.getRevision()).setPubdate(new Date());
+      XmlModuleDescriptorUpdater.update(sourceIvyFile.toURI().toURL(), targetIvyFile, options);
+
+      Map<String, byte[]> replacedFiles = new HashMap<String, byte[]>();
+      replacedFiles.put(targetIvyPath, FileUtil.readEntirely(targetIvyFile).getBytes());
+      for (String algorithm : getChecksumAlgorithms()) {
+        if (getSvnRepository().getResource(sourceIvyPath + "." + algorithm).exists()) {
+          replacedFiles.put(targetIvyPath + "." + algorithm, ChecksumHelper.computeAsString(targetIvyFile, algorithm)
+              .getBytes());
+        }
+      }
+      getSvnRepository().promote(folders, files, replacedFiles, "Ivy promoting " + source + " to " + target
+          + " with status " + status);
+    } catch (ParseException e) {
+      throw (IOException) new IOException("Error parsing ivy file " + sourceIvyPath).initCause(e);
+    } catch (SAXException e) {
+      throw (IOException) new IOException("Error updating ivy file " + sourceIvyPath).initCause(e);
+    } finally {
+      sourceIvyFile.delete();
+      targetIvyFile.delete();
+    }
+  }
+
+  /**
+   * Determines the folders which need to be copied to promote a module revision.
+   * 
+   * @param folders The folders to copy, where key is the source and value is the destination, new folders are added.
+   * @param sourcePatterns The patterns for the source module revision.
+   * @param targetPatterns The patterns for the target module revision.
+   * @param source The source module revision.
+   * @param target The target module revision.
+   */
+  private void addFolders(Map<String, String> folders, List<?> sourcePatterns, List<?> targetPatterns,
+      ModuleRevisionId source, ModuleRevisionId target) {
+    if (sourcePatterns.size() != targetPatterns.size()) {
+      throw new IllegalArgumentException("Source and target resolvers must have the same number of patterns");
+    }
+    for (int i = 0; i < sourcePatterns.size(); i++) {
+      folders.put(getFolder((String) sourcePatterns.get(i), source), getFolder((String) targetPatterns.get(i), target));
+    }
+  }
+
+  /**
+   * Determines whether promoting a module revision gives any of its files a different name.
+   * 
+   * @param sourcePatterns The patterns for the source module revision.
+   * @param targetPatterns The patterns for the target module revision.
+   * @param artifacts The source module revision's artifacts.
+   * @param target The target module revision.
+   * @return true if any file name differs between the source and target patterns, false otherwise.
+   */
+  private boolean renamesFiles(List<?> sourcePatterns, List<?> targetPatterns, Artifact[] artifacts,
+      ModuleRevisionId target) {
+    if (sourcePatterns.size() != targetPatterns.size()) {
+      throw new IllegalArgumentException("Source and target resolvers must have the same number of patterns");
+    }
+    for (int i = 0; i < sourcePatterns.size(); i++) {
+      for (Artifact artifact : artifacts) {
+        String sourcePath = IvyPatternHelper.substitute((String) sourcePatterns.get(i), artifact);
+        String targetPath = IvyPatternHelper.substitute((String) targetPatterns.get(i), DefaultArtifact
+            .cloneWithAnotherMrid(artifact, target));
+        if (!getFileName(sourcePath).equals(getFileName(targetPath))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Determines the files which need to be copied to promote a module revision whose files are renamed, along with
+   * their checksums. Only files which exist are added, as not every pattern need have been published to.
+   * 
+   * @param files The files to copy, where key is the source and value is the destination, new files are added.
+   * @param sourcePatterns The patterns for the source module revision.
+   * @param targetPatterns The patterns for the target module revision.
+   * @param artifacts The source module revision's artifacts.
+   * @param target The target module revision.
+   * @throws IOException If an error occurs checking whether a file exists.
+   */
+  private void addFiles(Map<String, String> files, List<?> sourcePatterns, List<?> targetPatterns,
+      Artifact[] artifacts, ModuleRevisionId target) throws IOException {
+    for (int i = 0; i < sourcePatterns.size(); i++) {
+      for (Artifact artifact : artifacts) {
+        String sourcePath = IvyPatternHelper.substitute((String) sourcePatterns.get(i), artifact);
+        if (files.containsKey(sourcePath) || !getSvnRepository().getResource(sourcePath).exists()) {
+          continue;
+        }
+        String targetPath = IvyPatternHelper.substitute((String) targetPatterns.get(i), DefaultArtifact
+            .cloneWithAnotherMrid(artifact, target));
+        files.put(sourcePath, targetPath);
+        for (String algorithm : getChecksumAlgorithms()) {
+          if (getSvnRepository().getResource(sourcePath + "." + algorithm).exists()) {
+            files.put(sourcePath + "." + algorithm, targetPath + "." + algorithm);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the file name part of a path.
+   * 
+   * @param path The path.
+   * @return The file name.
+   */
+  private static String getFileName(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * Determines the folder a pattern resolves to for a module revision.
+   * 
+   * @param pattern The pattern.
+   * @param mrid The module revision.
+   * @return The folder.
+   */
+  private String getFolder(String pattern, ModuleRevisionId mrid) {
+    String folderPattern = pattern.substring(0, pattern.lastIndexOf('/'));
+    if (folderPattern.contains("[artifact]") || folderPattern.contains("[type]") || folderPattern.contains("[ext]")) {
+      throw new IllegalArgumentException("Cannot promote modules whose artifacts aren't in a single folder per "
+          + "revision: " + pattern);
+    }
+    return IvyPatternHelper.substitute(folderPattern, mrid);
+  }
+
+  /**
+   * Starts a group publish transaction, all modules published via this resolver until the group is committed will be
+   * published in a single commit.
+   * 
+   * @throws IOException If an error occurs starting the group transaction.
+   */
+  public void beginGroupPublishTransaction() throws IOException {
+    getSvnRepository().beginGroupPublishTransaction();
+  }
+
+  /**
+   * Aborts the current group publish transaction.
+   * 
+   * @throws IOException If an error occurs aborting the group transaction.
+   */
+  public void abortGroupPublishTransaction() throws IOException {
+    getSvnRepository().abortGroupPublishTransaction();
+  }
+
+  /**
+   * Commits the current group publish transaction.
+   * 
+   * @throws IOException If an error occurs committing the group transaction.
+   */
+  public void commitGroupPublishTransaction() throws IOException {
+    getSvnRepository().commitGroupPublishTransaction();
+  }
+
   /**
    * Determines whether a parameter is valid or not, parameters that are determined to be "unset" property placeholders
    * will be silently ignored.
@@ -112,6 +373,18 @@ public class SvnResolver extends RepositoryResolver {
     }
   }
 
+  /**
+   * Set whether svn+ssh sessions share persistent SSH connections instead of each performing their own SSH handshake.
+   * 
+   * @param sshConnectionSharingString Whether to share SSH connections.
+   */
+  public void setSshConnectionSharing(String sshConnectionSharingString) {
+    if (validParameter(sshConnectionSharingString)) {
+      boolean sshConnectionSharing = Boolean.parseBoolean(sshConnectionSharingString.trim());
+      getSvnRepository().setSshConnectionSharing(sshConnectionSharing);
+    }
+  }
+
   /**
    * Set the SSL Certificate file to use for SSL authentication to Subversion.
    * 
@@ -229,4 +502,266 @@ public class SvnResolver extends RepositoryResolver {
     }
   }
 
+  /**
+   * Set whether to add published files whose content already exists in the repository as copies instead of uploading
+   * them (defaults to false).
+   * 
+   * @param contentDeduplicationString Whether to deduplicate published content or not.
+   */
+  public void setContentDeduplication(String contentDeduplicationString) {
+    if (validParameter(contentDeduplicationString)) {
+      boolean contentDeduplication = Boolean.parseBoolean(contentDeduplicationString.trim());
+      getSvnRepository().setContentDeduplication(contentDeduplication);
+    }
+  }
+
+  /**
+   * Set the maximum size in bytes of the windows file data is split into when it is published.
+   * 
+   * @param deltaWindowSizeString The window size.
+   */
+  public void setDeltaWindowSize(String deltaWindowSizeString) {
+    if (validParameter(deltaWindowSizeString)) {
+      int deltaWindowSize = Integer.parseInt(deltaWindowSizeString.trim());
+      getSvnRepository().setDeltaWindowSize(deltaWindowSize);
+    }
+  }
+
+  /**
+   * Set whether published file data should be delta compressed, one of "true", "false" or "auto" (only compress files
+   * which aren't already compressed).
+   * 
+   * @param deltaCompression The delta compression setting.
+   */
+  public void setDeltaCompression(String deltaCompression) {
+    if (validParameter(deltaCompression)) {
+      getSvnRepository().setDeltaCompression(deltaCompression.trim().toLowerCase());
+    }
+  }
+
+  /**
+   * Set the maximum number of times a publish which conflicts with a concurrent publish, or loses its connection to the
+   * server, will be attempted.
+   * 
+   * @param maxCommitAttemptsString The maximum number of attempts.
+   */
+  public void setMaxCommitAttempts(String maxCommitAttemptsString) {
+    if (validParameter(maxCommitAttemptsString)) {
+      int maxCommitAttempts = Integer.parseInt(maxCommitAttemptsString.trim());
+      getSvnRepository().setMaxCommitAttempts(maxCommitAttempts);
+    }
+  }
+
+  /**
+   * Set the size in bytes from which files published via binary diff are staged in commits of their own, so a failed
+   * publish doesn't need to send them again when it is retried.
+   * 
+   * @param stagingThresholdString The size in bytes.
+   */
+  public void setStagingThreshold(String stagingThresholdString) {
+    if (validParameter(stagingThresholdString)) {
+      long stagingThreshold = Long.parseLong(stagingThresholdString.trim());
+      getSvnRepository().setStagingThreshold(stagingThreshold);
+    }
+  }
+
+  /**
+   * Set the number of sessions to open in the background as soon as the resolver has been configured.
+   * 
+   * @param prewarmSessionsString The number of sessions.
+   */
+  public void setPrewarmSessions(String prewarmSessionsString) {
+    if (validParameter(prewarmSessionsString)) {
+      int prewarmSessions = Integer.parseInt(prewarmSessionsString.trim());
+      getSvnRepository().setPrewarmSessions(prewarmSessions);
+    }
+  }
+
+  /**
+   * Set the maximum number of concurrent requests to each Subversion server, requests over the limit are queued.
+   * 
+   * @param maxConcurrentRequestsString The maximum number of concurrent requests, 0 for no limit.
+   */
+  public void setMaxConcurrentRequests(String maxConcurrentRequestsString) {
+    if (validParameter(maxConcurrentRequestsString)) {
+      int maxConcurrentRequests = Integer.parseInt(maxConcurrentRequestsString.trim());
+      getSvnRepository().setMaxConcurrentRequests(maxConcurrentRequests);
+    }
+  }
+
+  /**
+   * Set whether the number of concurrent requests to each server is adapted to its latency and error rate.
+   * 
+   * @param adaptiveConcurrencyString Whether to adapt the concurrency limit.
+   */
+  public void setAdaptiveConcurrency(String adaptiveConcurrencyString) {
+    if (validParameter(adaptiveConcurrencyString)) {
+      boolean adaptiveConcurrency = Boolean.parseBoolean(adaptiveConcurrencyString.trim());
+      getSvnRepository().setAdaptiveConcurrency(adaptiveConcurrency);
+    }
+  }
+
+  /**
+   * Set the maximum rate at which file data is retrieved, in bytes per second.
+   * 
+   * @param maxGetBytesPerSecondString The maximum rate, 0 for no limit.
+   */
+  public void setMaxGetBytesPerSecond(String maxGetBytesPerSecondString) {
+    if (validParameter(maxGetBytesPerSecondString)) {
+      long maxGetBytesPerSecond = Long.parseLong(maxGetBytesPerSecondString.trim());
+      getSvnRepository().setMaxGetBytesPerSecond(maxGetBytesPerSecond);
+    }
+  }
+
+  /**
+   * Set the maximum rate at which file data is published, in bytes per second.
+   * 
+   * @param maxPutBytesPerSecondString The maximum rate, 0 for no limit.
+   */
+  public void setMaxPutBytesPerSecond(String maxPutBytesPerSecondString) {
+    if (validParameter(maxPutBytesPerSecondString)) {
+      long maxPutBytesPerSecond = Long.parseLong(maxPutBytesPerSecondString.trim());
+      getSvnRepository().setMaxPutBytesPerSecond(maxPutBytesPerSecond);
+    }
+  }
+
+  /**
+   * Set the timeout for opening connections to Subversion servers, in milliseconds.
+   * 
+   * @param connectTimeoutString The timeout, 0 to wait indefinitely.
+   */
+  public void setConnectTimeout(String connectTimeoutString) {
+    if (validParameter(connectTimeoutString)) {
+      int connectTimeout = Integer.parseInt(connectTimeoutString.trim());
+      getSvnRepository().setConnectTimeout(connectTimeout);
+    }
+  }
+
+  /**
+   * Set the timeout for waiting for data from Subversion servers, in milliseconds.
+   * 
+   * @param readTimeoutString The timeout, 0 to wait indefinitely.
+   */
+  public void setReadTimeout(String readTimeoutString) {
+    if (validParameter(readTimeoutString)) {
+      int readTimeout = Integer.parseInt(readTimeoutString.trim());
+      getSvnRepository().setReadTimeout(readTimeout);
+    }
+  }
+
+  /**
+   * Set the total time in milliseconds each retrieve, listing, resource lookup or publish may take.
+   * 
+   * @param operationTimeoutString The timeout, 0 for no limit.
+   */
+  public void setOperationTimeout(String operationTimeoutString) {
+    if (validParameter(operationTimeoutString)) {
+      long operationTimeout = Long.parseLong(operationTimeoutString.trim());
+      getSvnRepository().setOperationTimeout(operationTimeout);
+    }
+  }
+
+  /**
+   * Set the shards the repository is split across, paths starting with a shard's prefix (e.g. an organisation) are
+   * stored in the shard instead of under the repository root.
+   * 
+   * @param shards Comma separated list of shards in the form prefix=root, where root is the full URL of the Ivy
+   *          repository root in the shard.
+   */
+  public void setShards(String shards) {
+    if (validParameter(shards)) {
+      for (String shard : shards.split(",")) {
+        if (shard.trim().length() > 0) {
+          int index = shard.indexOf('=');
+          if (index < 0) {
+            throw new IllegalArgumentException("Invalid shard '" + shard.trim() + "', expected prefix=root");
+          }
+          getSvnRepository().addShard(shard.substring(0, index).trim(), shard.substring(index + 1).trim());
+        }
+      }
+    }
+  }
+
+  /**
+   * Set read-only replicas of the repository which reads can be sent to instead of the repository root. Replicas of a
+   * shard are given in the form prefix=URL, where prefix is the shard's prefix in shards.
+   * 
+   * @param readReplicas Comma separated list of the URLs of the Ivy repository root in each replica.
+   */
+  public void setReadReplicas(String readReplicas) {
+    if (validParameter(readReplicas)) {
+      for (String replica : readReplicas.split(",")) {
+        if (replica.trim().length() > 0) {
+          int index = replica.indexOf('=');
+          if (index >= 0 && index < replica.indexOf("://")) {
+            getSvnRepository().addShardReadReplica(replica.substring(0, index).trim(),
+                replica.substring(index + 1).trim());
+          } else {
+            getSvnRepository().addReadReplica(replica.trim());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Set a local directory to record publishes in, in which case publishes return immediately and are committed to
+   * Subversion in the background.
+   * 
+   * @param journalPath Path to the journal directory.
+   */
+  public void setAsyncPublishJournal(String journalPath) {
+    if (validParameter(journalPath)) {
+      getSvnRepository().setAsyncPublishJournal(new File(journalPath.trim()));
+    }
+  }
+
+  /**
+   * Set a file to write a trace of the plugin's operations to in Chrome trace event format at the end of each run
+   * (i.e. Ant build), e.g. to find where the time goes in a slow resolve or publish.
+   * 
+   * @param traceFile Path to the trace file.
+   */
+  public void setTraceFile(String traceFile) {
+    if (validParameter(traceFile)) {
+      try {
+        getSvnRepository().setTraceFile(new File(traceFile.trim()));
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Invalid trace file '" + traceFile.trim() + "'", e);
+      }
+    }
+  }
+
+  /**
+   * Set the thresholds above which operations are logged as slow, e.g. "checkPath=500,*=2000", where "*" applies to
+   * all operation types not listed. The slowest operations are summarised at the end of each run.
+   * 
+   * @param thresholds Comma separated list of thresholds in milliseconds in the form type=threshold.
+   */
+  public void setSlowOperationThresholds(String thresholds) {
+    if (validParameter(thresholds)) {
+      getSvnRepository().setSlowOperationThresholds(thresholds.trim());
+    }
+  }
+
+  /**
+   * Waits for all publishes being committed in the background to finish.
+   * 
+   * @param timeout Maximum time to wait in milliseconds, 0 to wait forever.
+   * @return true if all publishes finished, false if the timeout expired first.
+   * @throws IOException If an error occurs reading the journal or the wait is interrupted.
+   */
+  public boolean waitForAsyncPublishes(long timeout) throws IOException {
+    return getSvnRepository().waitForAsyncPublishes(timeout);
+  }
+
+  /**
+   * Gets the publisher committing publishes in the background, which can be used to check on their progress.
+   * 
+   * @return The publisher, or null if publishes are committed synchronously.
+   */
+  public AsyncPublisher getAsyncPublisher() {
+    return getSvnRepository().getAsyncPublisher();
+  }
+
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import org.apache.ivy.plugins.repository.Repository;
+import org.apache.ivy.plugins.repository.Resource;
+import org.apache.ivy.plugins.repository.TransferEvent;
+
+/**
+ * Transfer progress event which also contains the throughput of the transfer.
+ */
+public class SvnTransferEvent extends TransferEvent {
+
+  /**
+   * The average throughput of the transfer so far.
+   */
+  private final long bytesPerSecond;
+
+  /**
+   * Constructs a new progress event.
+   * 
+   * @param repository The repository performing the transfer.
+   * @param resource The resource being transferred.
+   * @param length The number of bytes transferred since the last progress event.
+   * @param totalLength The total number of bytes transferred so far.
+   * @param requestType The type of transfer, TransferEvent.REQUEST_GET or TransferEvent.REQUEST_PUT.
+   * @param bytesPerSecond The average throughput of the transfer so far.
+   */
+  public SvnTransferEvent(Repository repository, Resource resource, long length, long totalLength, int requestType,
+      long bytesPerSecond) {
+    super(repository, resource, length, requestType);
+    setTotalLength(totalLength);
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * @return the average throughput of the transfer so far in bytes per second
+   */
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+}
@@ -16,16 +16,19 @@
 package fm.last.ivy.plugins.svnresolver;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.ivy.util.FileUtil;
 import org.apache.ivy.util.Message;
 import org.tmatesoft.svn.core.SVNErrorCode;
 import org.tmatesoft.svn.core.SVNErrorMessage;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNNodeKind;
 import org.tmatesoft.svn.core.SVNURL;
-import org.tmatesoft.svn.core.auth.BasicAuthenticationManager;
 import org.tmatesoft.svn.core.auth.SVNAuthentication;
 import org.tmatesoft.svn.core.auth.SVNPasswordAuthentication;
 import org.tmatesoft.svn.core.auth.SVNSSHAuthentication;
@@ -44,6 +47,39 @@ public class SvnUtils {
    */
   private static final ProxySettings proxySettings = new ProxySettings();
 
+  /**
+   * Contents of SSH private key files which have been read, keyed by file path.
+   */
+  private static final Map<String, PrivateKey> privateKeys = new ConcurrentHashMap<String, PrivateKey>();
+
+  /**
+   * The contents of an SSH private key file, along with the modification time of the file when it was read.
+   */
+  private static class PrivateKey {
+
+    /**
+     * The modification time of the file when it was read.
+     */
+    private final long lastModified;
+
+    /**
+     * The contents of the file.
+     */
+    private final char[] contents;
+
+    /**
+     * Constructs a new instance.
+     * 
+     * @param lastModified The modification time of the file when it was read.
+     * @param contents The contents of the file.
+     */
+    PrivateKey(long lastModified, char[] contents) {
+      this.lastModified = lastModified;
+      this.contents = contents;
+    }
+
+  }
+
   /**
    * Check that the passed node exists and represents a folder.
    * 
@@ -83,7 +119,8 @@ public class SvnUtils {
   /**
    * Creates a reference to a subversion repository, initialised with a valid authentication
    * manager. Based on the passed parameters a set of one or more valid authentication mechanisms
-   * will be decided on. These can be:
+   * will be decided on, the mechanism which was last accepted for the same host and credentials is
+   * tried first. These can be:
    * 
    * 1. SSH KeyFile authentication. 
    * 2. SSH User name and Password authentication. 
@@ -108,13 +145,13 @@ public class SvnUtils {
   public static SVNRepository createRepository(SVNURL url, String userName, String userPassword, File keyFile,
       String sshPassphrase, int portNumber, File certFile, String sslPassphrase, boolean storageAllowed) throws SVNException {
     SVNRepository repository = SVNRepositoryFactory.create(url);
-    List<SVNAuthentication> authentications = new ArrayList<SVNAuthentication>();
+    Map<String, SVNAuthentication> authentications = new LinkedHashMap<String, SVNAuthentication>();
 
     if (keyFile != null && userName != null) { // 1. ssh key file authentication
       Message.debug("Adding SSH key file authentication");
-      SVNSSHAuthentication svnSSHAuthentication = new SVNSSHAuthentication(userName, keyFile, sshPassphrase, portNumber,
-          storageAllowed);
-      authentications.add(svnSSHAuthentication);
+      SVNSSHAuthentication svnSSHAuthentication = new SVNSSHAuthentication(userName, readPrivateKey(keyFile),
+          sshPassphrase, portNumber, storageAllowed);
+      authentications.put("SSH key file", svnSSHAuthentication);
     }
 
     if (userName != null && userPassword != null) { // username and password auth
@@ -123,34 +160,79 @@ public class SvnUtils {
         Message.debug("Adding SSH user/pass authentication");
         SVNSSHAuthentication svnSSHAuthentication = new SVNSSHAuthentication(userName, userPassword, portNumber,
             storageAllowed);
-        authentications.add(svnSSHAuthentication);
+        authentications.put("SSH user/pass", svnSSHAuthentication);
       } else { // default to SVN password auth, valid for svn://, http(s):// and hopefully others
         // 3. Subversion User name and Password authentication.
         Message.debug("Adding SVN user/pass authentication");
         SVNPasswordAuthentication svnPasswordAuthentication = new SVNPasswordAuthentication(userName, userPassword,
             storageAllowed);
-        authentications.add(svnPasswordAuthentication);
+        authentications.put("SVN user/pass", svnPasswordAuthentication);
       }
     } else if (userName != null && userPassword == null) { // 4. svn username auth
       Message.debug("Adding user authentication");
       SVNUserNameAuthentication userNameAuthentication = new SVNUserNameAuthentication(userName, storageAllowed);
-      authentications.add(userNameAuthentication);
+      authentications.put("user", userNameAuthentication);
     }
 
     if (certFile != null && sslPassphrase != null) { // 5. ssl authentication
       Message.debug("Adding SSL certificate authentication");
       SVNSSLAuthentication svnSSLAuthentication = new SVNSSLAuthentication(certFile, sslPassphrase, storageAllowed);
-      authentications.add(svnSSLAuthentication);
+      authentications.put("SSL certificate", svnSSLAuthentication);
     }
 
     if (authentications.isEmpty()) {
       throw new SVNException(SVNErrorMessage.create(SVNErrorCode.AUTHZ_INVALID_CONFIG, "Missing authentication values"));
     }
 
-    BasicAuthenticationManager authManager = new BasicAuthenticationManager(authentications
-        .toArray(new SVNAuthentication[] {}));
+    String credentialsKey = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort() + " " + userName + " "
+        + keyFile + " " + certFile;
+    RememberingAuthenticationManager authManager = new RememberingAuthenticationManager(credentialsKey,
+        authentications);
     proxySettings.setProxy(authManager); // if there are any proxy settings this will set them on the auth manager
     repository.setAuthenticationManager(authManager);
+    repository.addConnectionListener(ConnectionMetricsListener.getInstance());
     return repository;
   }
+
+  /**
+   * Creates a thread-safe map which holds at most the passed number of entries, evicting the least recently used entry
+   * when it is full.
+   * 
+   * @param <K> The type of the keys.
+   * @param <V> The type of the values.
+   * @param maxEntries The maximum number of entries.
+   * @return The map.
+   */
+  public static <K, V> Map<K, V> createLruMap(final int maxEntries) {
+    return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxEntries;
+      }
+    });
+  }
+
+  /**
+   * Reads an SSH private key file, the contents are cached so that the file is only read again if it changes.
+   * 
+   * @param keyFile The key file.
+   * @return The contents of the key file.
+   * @throws SVNException If the key file cannot be read.
+   */
+  private static char[] readPrivateKey(File keyFile) throws SVNException {
+    String path = keyFile.getAbsolutePath();
+    PrivateKey privateKey = privateKeys.get(path);
+    if (privateKey == null || privateKey.lastModified != keyFile.lastModified()) {
+      try {
+        privateKey = new PrivateKey(keyFile.lastModified(), FileUtil.readEntirely(keyFile).toCharArray());
+      } catch (IOException e) {
+        throw new SVNException(SVNErrorMessage.create(SVNErrorCode.AUTHN_CREDS_UNAVAILABLE,
+            "Cannot read SSH key file ''{0}''", path), e);
+      }
+      privateKeys.put(path, privateKey);
+    }
+    return privateKey.contents;
+  }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.IOException;
+
+import org.apache.ivy.ant.IvyTask;
+import org.apache.ivy.plugins.resolver.DependencyResolver;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Ant task which waits for publishes being committed in the background by an svn resolver configured with an
+ * asyncPublishJournal to finish, for use at the end of a build or before anything which needs the published modules.
+ * Example usage:
+ *
+ * <pre>
+ * &lt;taskdef name="svnwaitforpublish" classname="fm.last.ivy.plugins.svnresolver.SvnWaitForPublishTask"/&gt;
+ * &lt;svnwaitforpublish resolver="ivysvn" timeout="600000"/&gt;
+ * </pre>
+ */
+public class SvnWaitForPublishTask extends IvyTask {
+
+  /**
+   * The name of the svn resolver to wait for.
+   */
+  private String resolver;
+
+  /**
+   * Maximum time to wait in milliseconds, 0 to wait forever.
+   */
+  private long timeout = 0;
+
+  /**
+   * Whether to fail the build if any background publishes failed.
+   */
+  private boolean failOnError = true;
+
+  /**
+   * Set the name of the svn resolver to wait for.
+   *
+   * @param resolver The resolver name.
+   */
+  public void setResolver(String resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Set the maximum time to wait in milliseconds, 0 to wait forever.
+   *
+   * @param timeout The timeout.
+   */
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Set whether to fail the build if any background publishes failed.
+   *
+   * @param failOnError Whether to fail on error.
+   */
+  public void setFailOnError(boolean failOnError) {
+    this.failOnError = failOnError;
+  }
+
+  @Override
+  public void doExecute() throws BuildException {
+    if (resolver == null) {
+      throw new BuildException("The 'resolver' attribute is required");
+    }
+    DependencyResolver dependencyResolver = getSettings().getResolver(resolver);
+    if (!(dependencyResolver instanceof SvnResolver)) {
+      throw new BuildException("Resolver '" + resolver + "' is not an svn resolver");
+    }
+    SvnResolver svnResolver = (SvnResolver) dependencyResolver;
+    try {
+      if (!svnResolver.waitForAsyncPublishes(timeout)) {
+        throw new BuildException("Timed out waiting for background publishes to '" + resolver + "'");
+      }
+    } catch (IOException e) {
+      throw new BuildException("Error waiting for background publishes to '" + resolver + "'", e);
+    }
+    AsyncPublisher publisher = svnResolver.getAsyncPublisher();
+    if (failOnError && publisher != null && publisher.getFailedCount() > 0) {
+      throw new BuildException(publisher.getFailedCount() + " background publishes to '" + resolver
+          + "' failed and " + publisher.getHeldBackCount() + " were held back, last error: "
+          + publisher.getLastError().getMessage(), publisher.getLastError());
+    }
+  }
+
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * Records plugin-level operations (e.g. resolving a resource, retrieving a file, the phases of a commit) as spans and
+ * writes them to a file in Chrome trace event format at the end of each run (see EndOfRunNotifier), so a whole
+ * resolve or publish can be viewed on a timeline (e.g. in chrome://tracing or Perfetto) to see where time goes. Each
+ * span records the thread it ran on and its parent span, which is the span that was in progress on the same thread when
+ * it began, unless a parent is passed explicitly (e.g. for work handed to another thread). Tracing is opt-in, when it
+ * is disabled spans are NONE, which records nothing.
+ */
+public class TraceRecorder implements EndOfRunListener {
+
+  /**
+   * Span which records nothing, used when tracing is disabled.
+   */
+  public static final Span NONE = new Span(null, null, null, null);
+
+  /**
+   * Maximum number of spans recorded per run, so a long run can't run out of memory.
+   */
+  static final int MAX_SPANS = 1000000;
+
+  /**
+   * Recorders keyed by the canonical path of the file they write to, so repositories tracing to the same file share a
+   * recorder.
+   */
+  private static final Map<String, TraceRecorder> instances = new HashMap<String, TraceRecorder>();
+
+  /**
+   * The span in progress on the calling thread, null if none.
+   */
+  private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+
+  /**
+   * The file to write the trace to.
+   */
+  private final File file;
+
+  /**
+   * The time the recorder was created as returned by System.nanoTime(), span times are relative to this.
+   */
+  private final long origin = System.nanoTime();
+
+  /**
+   * Used to give each span a unique id.
+   */
+  private final AtomicLong nextId = new AtomicLong();
+
+  /**
+   * The number of spans recorded since the trace was last written.
+   */
+  private final AtomicInteger spanCount = new AtomicInteger();
+
+  /**
+   * Finished spans as trace events in JSON, which haven't been written yet.
+   */
+  private final Queue<String> events = new ConcurrentLinkedQueue<String>();
+
+  /**
+   * The names of the threads spans have been recorded on, keyed by thread id.
+   */
+  private final Map<Long, String> threadNames = new ConcurrentHashMap<Long, String>();
+
+  /**
+   * Constructs a new instance.
+   *
+   * @param file The file to write the trace to.
+   */
+  TraceRecorder(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Gets the recorder which writes to the passed file at the end of each run, creating it if necessary.
+   *
+   * @param file The file to write the trace to.
+   * @return The recorder.
+   * @throws IOException If the file's path cannot be determined.
+   */
+  public static TraceRecorder getInstance(File file) throws IOException {
+    String key = file.getCanonicalPath();
+    synchronized (instances) {
+      TraceRecorder recorder = instances.get(key);
+      if (recorder == null) {
+        recorder = new TraceRecorder(file);
+        instances.put(key, recorder);
+      }
+      EndOfRunNotifier.register(recorder); // the recorder may be re-used by a later run in the same JVM
+      return recorder;
+    }
+  }
+
+  /**
+   * Gets the span in progress on the calling thread, e.g. to pass to a thread doing part of its work.
+   *
+   * @return The span, NONE if there is none.
+   */
+  public static Span current() {
+    Span span = current.get();
+    return span == null ? NONE : span;
+  }
+
+  /**
+   * Begins a span on the calling thread, as a child of the span in progress on the thread if there is one.
+   *
+   * @param name The name of the operation.
+   * @param detail Detail about the operation (e.g. the path), may be null.
+   * @return The span, which must be ended via Span.end().
+   */
+  public Span begin(String name, String detail) {
+    Span parent = current.get();
+    return begin(name, detail, parent != null && parent.recorder == this ? parent : null);
+  }
+
+  /**
+   * Begins a span on the calling thread.
+   *
+   * @param name The name of the operation.
+   * @param detail Detail about the operation (e.g. the path), may be null.
+   * @param parent The parent span, null for none.
+   * @return The span, which must be ended via Span.end().
+   */
+  private Span begin(String name, String detail, Span parent) {
+    Span span = new Span(this, name, detail, parent);
+    span.id = nextId.incrementAndGet();
+    span.start = System.nanoTime();
+    span.previous = current.get();
+    current.set(span);
+    return span;
+  }
+
+  /**
+   * Records a span which has ended.
+   *
+   * @param span The span.
+   * @param end The time the span ended, as returned by System.nanoTime().
+   */
+  private void record(Span span, long end) {
+    if (spanCount.incrementAndGet() > MAX_SPANS) {
+      if (spanCount.get() == MAX_SPANS + 1) {
+        Message.warn("Recorded " + MAX_SPANS + " spans for " + file + ", ignoring any more");
+      }
+      return;
+    }
+    Thread thread = Thread.currentThread();
+    threadNames.put(thread.getId(), thread.getName());
+    StringBuilder event = new StringBuilder();
+    event.append("{\"name\":").append(quote(span.name)).append(",\"cat\":\"ivysvn\",\"ph\":\"X\",\"ts\":").append(
+        (span.start - origin) / 1000).append(",\"dur\":").append((end - span.start) / 1000).append(
+        ",\"pid\":1,\"tid\":").append(thread.getId()).append(",\"args\":{\"id\":").append(span.id);
+    if (span.parent != null) {
+      event.append(",\"parent\":").append(span.parent.id);
+    }
+    if (span.detail != null) {
+      event.append(",\"detail\":").append(quote(span.detail));
+    }
+    event.append("}}");
+    events.add(event.toString());
+  }
+
+  /**
+   * Writes the spans recorded since the trace was last written to the trace file if there are any, replacing its
+   * contents, so each run's trace only contains the spans of that run.
+   *
+   * @param logger The logger of the run.
+   */
+  public void runFinished(MessageLogger logger) {
+    if (events.isEmpty()) {
+      return; // e.g. notified again when the JVM exits after the end of an Ant build
+    }
+    try {
+      int spans = write();
+      logger.info("Wrote " + spans + " spans to " + file);
+    } catch (IOException e) {
+      logger.warn("Error writing trace to " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the spans recorded since the trace was last written to the trace file, replacing its contents.
+   *
+   * @return The number of spans written.
+   * @throws IOException If an error occurs writing the file.
+   */
+  public int write() throws IOException {
+    List<String> lines = new ArrayList<String>();
+    for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+      lines.add("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey()
+          + ",\"args\":{\"name\":" + quote(thread.getValue()) + "}}");
+    }
+    int spans = 0;
+    for (String event = events.poll(); event != null; event = events.poll()) { // spans ending now go in the next write
+      lines.add(event);
+      spans++;
+    }
+    spanCount.set(0);
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try {
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+      for (int i = 0; i < lines.size(); i++) {
+        writer.write(lines.get(i));
+        writer.write(i < lines.size() - 1 ? ",\n" : "\n");
+      }
+      writer.write("]}\n");
+    } finally {
+      writer.close();
+    }
+    return spans;
+  }
+
+  /**
+   * Quotes a string for use in JSON.
+   *
+   * @param value The string.
+   * @return The quoted string.
+   */
+  static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  /**
+   * An operation being traced.
+   */
+  public static class Span {
+
+    /**
+     * The recorder the span is recorded by, null for NONE.
+     */
+    private final TraceRecorder recorder;
+
+    /**
+     * The name of the operation.
+     */
+    private final String name;
+
+    /**
+     * Detail about the operation, may be null.
+     */
+    private final String detail;
+
+    /**
+     * The parent span, null for none.
+     */
+    private final Span parent;
+
+    /**
+     * The span's unique id.
+     */
+    private long id;
+
+    /**
+     * The time the span began, as returned by System.nanoTime().
+     */
+    private long start;
+
+    /**
+     * The span which was in progress on the thread when this span began, restored when it ends.
+     */
+    private Span previous;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param recorder The recorder the span is recorded by, null for NONE.
+     * @param name The name of the operation.
+     * @param detail Detail about the operation, may be null.
+     * @param parent The parent span, null for none.
+     */
+    private Span(TraceRecorder recorder, String name, String detail, Span parent) {
+      this.recorder = recorder;
+      this.name = name;
+      this.detail = detail;
+      this.parent = parent;
+    }
+
+    /**
+     * Begins a child span of this span on the calling thread, which may be a different thread to the one this span
+     * began on.
+     *
+     * @param childName The name of the child operation.
+     * @param childDetail Detail about the child operation, may be null.
+     * @return The child span, NONE if this span is NONE.
+     */
+    public Span beginChild(String childName, String childDetail) {
+      if (recorder == null) {
+        return NONE;
+      }
+      return recorder.begin(childName, childDetail, this);
+    }
+
+    /**
+     * Ends the span on the calling thread, which must be the thread that began it.
+     */
+    public void end() {
+      if (recorder == null) {
+        return;
+      }
+      recorder.record(this, System.nanoTime());
+      if (previous == null) {
+        current.remove();
+      } else {
+        current.set(previous);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Tracks the progress of a single file transfer, notifying a listener as data passes through the streams it wraps.
+ * Notifications are batched so listeners are not called for every small read or write.
+ */
+public class TransferProgress {
+
+  /**
+   * Minimum number of bytes to transfer between notifications.
+   */
+  private static final int NOTIFICATION_INTERVAL = 64 * 1024;
+
+  /**
+   * The URL of the file being transferred.
+   */
+  private final String url;
+
+  /**
+   * The type of transfer.
+   */
+  private final int requestType;
+
+  /**
+   * The listener to notify.
+   */
+  private final TransferProgressListener listener;
+
+  /**
+   * The time the transfer started.
+   */
+  private final long startTime = System.currentTimeMillis();
+
+  /**
+   * The total number of bytes transferred.
+   */
+  private long totalLength = 0;
+
+  /**
+   * The number of bytes transferred which the listener hasn't been notified of yet.
+   */
+  private long pendingLength = 0;
+
+  /**
+   * Constructs a new instance.
+   * 
+   * @param url The URL of the file being transferred.
+   * @param requestType The type of transfer, TransferEvent.REQUEST_GET or TransferEvent.REQUEST_PUT.
+   * @param listener The listener to notify.
+   */
+  public TransferProgress(String url, int requestType, TransferProgressListener listener) {
+    this.url = url;
+    this.requestType = requestType;
+    this.listener = listener;
+  }
+
+  /**
+   * Records that data has been transferred, notifying the listener if enough data has been transferred since the
+   * last notification.
+   * 
+   * @param length The number of bytes transferred.
+   */
+  private void transferred(long length) {
+    totalLength += length;
+    pendingLength += length;
+    if (pendingLength >= NOTIFICATION_INTERVAL) {
+      notifyListener();
+    }
+  }
+
+  /**
+   * Notifies the listener of any data transferred since the last notification.
+   */
+  private void notifyListener() {
+    if (pendingLength > 0) {
+      listener.transferProgress(url, requestType, pendingLength, totalLength, getBytesPerSecond());
+      pendingLength = 0;
+    }
+  }
+
+  /**
+   * @return the average throughput of the transfer so far
+   */
+  public long getBytesPerSecond() {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    return totalLength * 1000 / elapsed;
+  }
+
+  /**
+   * Wraps a stream which data is being read from, tracking the data read.
+   * 
+   * @param input The stream to wrap.
+   * @return The wrapped stream.
+   */
+  public InputStream wrap(InputStream input) {
+    return new FilterInputStream(input) {
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+          notifyListener();
+        } else {
+          transferred(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count == -1) {
+          notifyListener();
+        } else {
+          transferred(count);
+        }
+        return count;
+      }
+
+      @Override
+      public void close() throws IOException {
+        notifyListener();
+        super.close();
+      }
+
+    };
+  }
+
+  /**
+   * Wraps a stream which data is being written to, tracking the data written.
+   * 
+   * @param output The stream to wrap.
+   * @return The wrapped stream.
+   */
+  public OutputStream wrap(OutputStream output) {
+    return new FilterOutputStream(output) {
+
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        transferred(1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        transferred(len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        notifyListener();
+        super.close();
+      }
+
+    };
+  }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+/**
+ * Listener which is notified as file data is transferred to or from Subversion.
+ */
+public interface TransferProgressListener {
+
+  /**
+   * Called when a chunk of file data has been transferred.
+   * 
+   * @param url The URL of the file being transferred.
+   * @param requestType The type of transfer, TransferEvent.REQUEST_GET or TransferEvent.REQUEST_PUT.
+   * @param length The number of bytes transferred since the last notification.
+   * @param totalLength The total number of bytes transferred so far.
+   * @param bytesPerSecond The average throughput of the transfer so far.
+   */
+  void transferProgress(String url, int requestType, long length, long totalLength, long bytesPerSecond);
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for BandwidthLimiter.
+ */
+public class BandwidthLimiterTest {
+
+  /**
+   * Writes the passed number of bytes through the passed limiter.
+   * 
+   * @param limiter The limiter.
+   * @param length The number of bytes to write.
+   * @return The time taken in milliseconds.
+   * @throws IOException If an error occurs writing the data.
+   */
+  private long write(BandwidthLimiter limiter, int length) throws IOException {
+    long start = System.currentTimeMillis();
+    OutputStream output = limiter.wrap(new ByteArrayOutputStream());
+    output.write(new byte[length]);
+    output.close();
+    return System.currentTimeMillis() - start;
+  }
+
+  @Test
+  public void testUnlimited() throws IOException {
+    BandwidthLimiter limiter = new BandwidthLimiter();
+    assertTrue(write(limiter, 10 * 1024 * 1024) < 500);
+  }
+
+  @Test
+  public void testBurstThenLimited() throws IOException {
+    BandwidthLimiter limiter = new BandwidthLimiter();
+    limiter.setBytesPerSecond(BandwidthLimiter.BURST_MINIMUM * 2);
+    assertTrue(write(limiter, (int) BandwidthLimiter.BURST_MINIMUM * 2) < 200); // a full bucket passes at once
+    long elapsed = write(limiter, (int) BandwidthLimiter.BURST_MINIMUM);
+    assertTrue("Took " + elapsed + "ms", elapsed >= 400);
+  }
+
+  @Test
+  public void testLimitChangedDuringTransfer() throws IOException {
+    final BandwidthLimiter limiter = new BandwidthLimiter();
+    limiter.setBytesPerSecond(BandwidthLimiter.BURST_MINIMUM);
+    InputStream input = limiter.wrap(new ByteArrayInputStream(new byte[(int) BandwidthLimiter.BURST_MINIMUM * 4]) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        if (pos > 0) { // lift the limit once the first read has been made
+          limiter.setBytesPerSecond(0);
+        }
+        return super.read(b, off, (int) Math.min(len, BandwidthLimiter.BURST_MINIMUM));
+      }
+    });
+    long start = System.currentTimeMillis();
+    assertEquals(BandwidthLimiter.BURST_MINIMUM * 4, IOUtils.toByteArray(input).length);
+    assertTrue(System.currentTimeMillis() - start < 500);
+  }
+
+}
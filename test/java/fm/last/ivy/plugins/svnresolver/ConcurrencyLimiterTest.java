@@ -0,0 +1,197 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNURL;
+
+/**
+ * Unit tests for ConcurrencyLimiter.
+ */
+public class ConcurrencyLimiterTest {
+
+  /**
+   * Makes a request through the passed limiter.
+   * 
+   * @param limiter The limiter.
+   * @param type The type of request.
+   * @param latency The latency of the request.
+   * @param failed Whether the request failed.
+   * @throws Exception If interrupted or out of time while waiting to make the request.
+   */
+  private void request(ConcurrencyLimiter limiter, String type, long latency, boolean failed) throws Exception {
+    limiter.acquire(false);
+    limiter.release(type, latency, failed, false);
+  }
+
+  /**
+   * Starts a thread which makes a request through the passed limiter, and waits until the request is queued.
+   * 
+   * @param limiter The limiter.
+   * @param bulk Whether the request is a bulk request.
+   * @return The thread, which finishes once the request has been allowed.
+   * @throws InterruptedException If interrupted while waiting for the request to be queued.
+   */
+  private Thread queue(final ConcurrencyLimiter limiter, final boolean bulk) throws InterruptedException {
+    int queueDepth = limiter.getQueueDepth();
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          limiter.acquire(bulk);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    for (int i = 0; i < 100 && limiter.getQueueDepth() == queueDepth; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(queueDepth + 1, limiter.getQueueDepth());
+    return thread;
+  }
+
+  @Test
+  public void testAdaptiveLimit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, true);
+    assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, limiter.getLimit());
+    for (int i = 0; i < 100; i++) { // fast successful requests increase the limit up to the maximum
+      request(limiter, "info", 1000, false);
+    }
+    assertEquals(8, limiter.getLimit());
+    request(limiter, "info", -1, true); // failures halve it
+    assertEquals(4, limiter.getLimit());
+    for (int i = 0; i < 10; i++) { // as does rising latency, more gradually
+      request(limiter, "info", 1000000, false);
+    }
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void testLatencyComparedPerType() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, true);
+    for (int i = 0; i < 100; i++) { // slower requests of another type aren't a sign of overload
+      request(limiter, "info", 1000, false);
+      request(limiter, "list", 100000, false);
+    }
+    assertEquals(8, limiter.getLimit());
+    request(limiter, "list", 1000000, false);
+    assertEquals(7, limiter.getLimit());
+  }
+
+  @Test
+  public void testConfigureKeepsAdaptedLimit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, true);
+    request(limiter, "info", -1, true);
+    assertEquals(2, limiter.getLimit());
+    limiter.configure(16, true); // e.g. another repository on the same server with a higher maximum
+    assertEquals(2, limiter.getLimit());
+    limiter.configure(1, true);
+    assertEquals(1, limiter.getLimit());
+    limiter.configure(8, false);
+    assertEquals(8, limiter.getLimit());
+  }
+
+  @Test
+  public void testKeyedByServer() throws Exception {
+    assertEquals("http://svn.example.com:80", ConcurrencyLimiter.getKey(SVNURL
+        .parseURIEncoded("http://svn.example.com/repo/ivy")));
+    assertEquals("svn+ssh://svn.example.com:2222", ConcurrencyLimiter.getKey(SVNURL
+        .parseURIEncoded("svn+ssh://svn.example.com:2222/other")));
+  }
+
+  @Test
+  public void testStaticLimit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, false);
+    assertEquals(8, limiter.getLimit());
+    request(limiter, "info", -1, true);
+    assertEquals(8, limiter.getLimit());
+  }
+
+  @Test
+  public void testRequestsOverLimitQueued() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, false);
+    limiter.acquire(false);
+    Thread thread = queue(limiter, false);
+    assertEquals(1, limiter.getInFlight());
+    limiter.release("info", 1000, false, false);
+    thread.join(5000);
+    assertTrue(!thread.isAlive());
+    assertEquals(0, limiter.getQueueDepth());
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  @Test
+  public void testQueuedRequestFailsAtDeadline() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, false);
+    limiter.acquire(false);
+    OperationDeadline.start(100);
+    long start = System.nanoTime();
+    try {
+      limiter.acquire(false);
+      fail("Queued request should have run out of time");
+    } catch (SVNCancelException e) {
+      assertTrue(System.nanoTime() - start < 5000000000L);
+    } finally {
+      OperationDeadline.end();
+    }
+    assertEquals(0, limiter.getQueueDepth());
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  @Test
+  public void testMetadataRequestsFirst() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, false);
+    for (int i = 0; i < 4; i++) {
+      limiter.acquire(true);
+    }
+    Thread bulk = queue(limiter, true);
+    Thread metadata = queue(limiter, false);
+    limiter.release("info", -1, false, true);
+    metadata.join(5000);
+    assertTrue(!metadata.isAlive());
+    assertEquals(1, limiter.getBulkQueueDepth());
+    limiter.release("info", -1, false, true);
+    bulk.join(5000);
+    assertTrue(!bulk.isAlive());
+    assertEquals(4, limiter.getInFlight());
+  }
+
+  @Test
+  public void testBulkShareReserved() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, false);
+    for (int i = 0; i < 4; i++) {
+      limiter.acquire(false);
+    }
+    Thread bulk = queue(limiter, true);
+    Thread metadata = queue(limiter, false);
+    limiter.release("info", 1000, false, false);
+    bulk.join(5000);
+    assertTrue(!bulk.isAlive()); // no bulk requests were in progress so one goes ahead of the queued metadata
+    assertEquals(1, limiter.getMetadataQueueDepth());
+    assertEquals(1, limiter.getBulkInFlight());
+    limiter.release("info", 1000, false, false);
+    metadata.join(5000);
+    assertTrue(!metadata.isAlive());
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+
+/**
+ * Unit tests for ConnectionMetricsListener. SVNKit doesn't notify listeners of file:// connections, so connection
+ * events are passed to the listener directly.
+ */
+public class ConnectionMetricsListenerTest {
+
+  @BeforeClass
+  public static void setUpFactory() {
+    SVNRepositoryFactoryImpl.setup();
+  }
+
+  @Test
+  public void testConnectionLifecycle() throws Exception {
+    ConnectionMetricsListener listener = new ConnectionMetricsListener();
+    SVNURL url = SVNURL.parseURIEncoded("svn://example.com/repository");
+    SVNRepository first = SVNRepositoryFactory.create(url);
+    SVNRepository second = SVNRepositoryFactory.create(url);
+
+    listener.connectionOpened(first);
+    listener.connectionOpened(second);
+    Thread.sleep(10);
+    listener.connectionClosed(first);
+    listener.connectionOpened(first); // e.g. after setLocation(url, true)
+    listener.connectionClosed(first);
+    listener.connectionClosed(second);
+    listener.connectionClosed(second); // ignored, already closed
+
+    ConnectionMetricsListener.HostConnections connections = listener.getHostConnections(url);
+    assertEquals(3, connections.getOpened());
+    assertEquals(3, connections.getClosed());
+    assertEquals(1, connections.getReconnects());
+    assertEquals(0, connections.getOpen());
+    assertEquals(2, connections.getPeakOpen());
+    assertEquals(3, connections.getLifetimes().getCount());
+    assertTrue(connections.getLifetimes().getMaxMillis() >= 10);
+  }
+
+  @Test
+  public void testHostsTrackedSeparately() throws Exception {
+    ConnectionMetricsListener listener = new ConnectionMetricsListener();
+    SVNURL url = SVNURL.parseURIEncoded("svn://example.com/repository");
+    SVNURL otherUrl = SVNURL.parseURIEncoded("svn://example.com:3691/repository");
+    listener.connectionOpened(SVNRepositoryFactory.create(url));
+    assertEquals(1, listener.getHostConnections(url).getOpen());
+    assertEquals(0, listener.getHostConnections(otherUrl).getOpen());
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.ivy.ant.IvyTask;
+import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.util.MessageLogger;
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+/**
+ * Unit tests for EndOfRunNotifier.
+ */
+public class EndOfRunNotifierTest {
+
+  @Test
+  public void testNotifiedWhenAntBuildFinishes() {
+    final List<MessageLogger> notifications = new ArrayList<MessageLogger>();
+    EndOfRunListener listener = new EndOfRunListener() {
+      public void runFinished(MessageLogger logger) {
+        notifications.add(logger);
+      }
+    };
+    Project project = new Project();
+    int buildListeners = project.getBuildListeners().size();
+    IvyContext.pushNewCopyContext().push(IvyTask.ANT_PROJECT_CONTEXT_KEY, project);
+    try {
+      EndOfRunNotifier.register(listener);
+      EndOfRunNotifier.register(listener); // e.g. a second resolver using the same trace file
+      assertEquals(buildListeners + 1, project.getBuildListeners().size());
+
+      project.fireBuildFinished(null);
+      assertEquals(1, notifications.size());
+      assertSame(IvyContext.getContext().getMessageLogger(), notifications.get(0));
+      assertEquals(buildListeners, project.getBuildListeners().size());
+    } finally {
+      IvyContext.popContext();
+    }
+  }
+
+}
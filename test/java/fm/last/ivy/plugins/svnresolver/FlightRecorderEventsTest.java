@@ -0,0 +1,87 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for FlightRecorderEvents. The tests are compiled for Java 5, so recordings are made via reflection.
+ */
+public class FlightRecorderEventsTest {
+
+  @Test
+  public void testEventsWithoutRecording() {
+    // must be harmless whether or not JFR is available
+    FlightRecorderEvents.begin(FlightRecorderEvents.Type.RPC, "checkPath", "org/module").setRevision(1).setBytes(2)
+        .commit();
+    FlightRecorderEvents.lookup("resource", "org/module", true);
+  }
+
+  @Test
+  public void testEventsRecorded() throws Exception {
+    assumeTrue(FlightRecorderEvents.isAvailable());
+    Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+    Object recording = recordingClass.getDeclaredConstructor().newInstance();
+    for (FlightRecorderEvents.Type type : FlightRecorderEvents.Type.values()) {
+      recordingClass.getMethod("enable", String.class).invoke(recording, type.getEventName());
+    }
+    recordingClass.getMethod("start").invoke(recording);
+    FlightRecorderEvents.begin(FlightRecorderEvents.Type.RPC, "getFile", "org/module/1.0/module.jar").setRevision(7)
+        .setBytes(1024).commit();
+    FlightRecorderEvents.lookup("folder", "org/module", false);
+    recordingClass.getMethod("stop").invoke(recording);
+
+    File file = File.createTempFile("ivysvn", ".jfr");
+    try {
+      Object path = Class.forName("java.nio.file.Paths").getMethod("get", URI.class).invoke(null, file.toURI());
+      recordingClass.getMethod("dump", Class.forName("java.nio.file.Path")).invoke(recording, path);
+      List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents",
+          Class.forName("java.nio.file.Path")).invoke(null, path);
+      List<String> names = new ArrayList<String>();
+      for (Object event : events) {
+        Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+        String name = (String) eventType.getClass().getMethod("getName").invoke(eventType);
+        names.add(name);
+        if (name.equals(FlightRecorderEvents.Type.RPC.getEventName())) {
+          assertEquals("getFile", getValue(event, "operation"));
+          assertEquals("org/module/1.0/module.jar", getValue(event, "path"));
+          assertEquals(7L, getValue(event, "revision"));
+          assertEquals(1024L, getValue(event, "bytes"));
+        }
+      }
+      assertTrue(names.contains(FlightRecorderEvents.Type.RPC.getEventName()));
+      assertTrue(names.contains(FlightRecorderEvents.Type.CACHE_LOOKUP.getEventName()));
+    } finally {
+      recordingClass.getMethod("close").invoke(recording);
+      file.delete();
+    }
+  }
+
+  private Object getValue(Object event, String field) throws Exception {
+    return Class.forName("jdk.jfr.consumer.RecordedObject").getMethod("getValue", String.class).invoke(event, field);
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNCancelException;
+
+/**
+ * Unit tests for OperationDeadline.
+ */
+public class OperationDeadlineTest {
+
+  @After
+  public void tearDown() {
+    OperationDeadline.end();
+  }
+
+  @Test
+  public void testNoDeadline() throws Exception {
+    OperationDeadline.start(0);
+    OperationDeadline.check();
+    assertEquals(Long.MAX_VALUE, OperationDeadline.getRemaining());
+    OutputStream output = new ByteArrayOutputStream();
+    assertSame(output, OperationDeadline.wrap(output));
+  }
+
+  @Test
+  public void testDeadlinePassed() throws Exception {
+    OperationDeadline.start(50);
+    OperationDeadline.check();
+    Thread.sleep(100);
+    assertEquals(0, OperationDeadline.getRemaining());
+    try {
+      OperationDeadline.CANCELLER.checkCancelled();
+      fail("Deadline should have passed");
+    } catch (SVNCancelException e) {
+      assertTrue(e.getMessage().contains("50ms"));
+    }
+    try {
+      OperationDeadline.wrap(new ByteArrayOutputStream()).write(new byte[1]);
+      fail("Deadline should have passed");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof SVNCancelException);
+    }
+  }
+
+  @Test
+  public void testStartIfNone() throws Exception {
+    OperationDeadline.start(10000);
+    Long deadline = OperationDeadline.get();
+    assertFalse(OperationDeadline.startIfNone(50)); // part of a larger operation
+    assertEquals(deadline, OperationDeadline.get());
+    OperationDeadline.end();
+    assertTrue(OperationDeadline.startIfNone(50));
+    assertTrue(OperationDeadline.getRemaining() <= 50);
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNURL;
+
+/**
+ * Unit tests for RepositoryMetrics and LatencyHistogram.
+ */
+public class RepositoryMetricsTest {
+
+  @Test
+  public void testEmptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMeanMillis(), 0);
+    assertEquals(0, histogram.getPercentileMillis(0.99), 0);
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(1000000); // 1ms
+    }
+    histogram.record(1000000000); // 1s
+    assertEquals(100, histogram.getCount());
+    assertEquals(10.99, histogram.getMeanMillis(), 0.001);
+    assertEquals(1000, histogram.getMaxMillis(), 0);
+    double median = histogram.getPercentileMillis(0.5);
+    assertTrue(median >= 1 && median <= 2); // accurate to within a factor of two
+    assertTrue(histogram.getPercentileMillis(0.99) <= 2);
+    assertEquals(1000, histogram.getPercentileMillis(1), 0);
+  }
+
+  @Test
+  public void testAttributes() throws Exception {
+    RepositoryMetrics metrics = new RepositoryMetrics();
+    metrics.register("file:///tmp/metrics");
+    ObjectName name = metrics.getObjectName();
+    assertNotNull(name);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      metrics.record(RepositoryMetrics.Operation.GET_FILE, System.nanoTime());
+      metrics.addBytes(true, 100);
+      metrics.addBytes(false, 20);
+      metrics.resourceCacheLookup(true);
+      metrics.resourceCacheLookup(true);
+      metrics.resourceCacheLookup(false);
+      metrics.sessionsInUse(2);
+      metrics.activeTransactions(1);
+      assertEquals(1L, server.getAttribute(name, "getFileCount"));
+      assertEquals(0L, server.getAttribute(name, "commitCount"));
+      assertEquals(100L, server.getAttribute(name, "BytesRetrieved"));
+      assertEquals(20L, server.getAttribute(name, "BytesPublished"));
+      assertEquals(2.0 / 3, (Double) server.getAttribute(name, "ResourceCacheHitRatio"), 0.001);
+      assertEquals(2, ((Number) server.getAttribute(name, "SessionsInUse")).intValue());
+      assertEquals(1, ((Number) server.getAttribute(name, "ActiveTransactions")).intValue());
+      assertEquals(0, ((Number) server.getAttribute(name, "ConcurrencyLimit")).intValue());
+      ConcurrencyLimiter.getInstance(ConcurrencyLimiter.getKey(SVNURL.parseURIEncoded("file:///tmp/metrics")), 3,
+          false);
+      assertEquals(3, ((Number) server.getAttribute(name, "ConcurrencyLimit")).intValue());
+      assertEquals(RepositoryMetrics.Operation.values().length * 6 + 21,
+          server.getMBeanInfo(name).getAttributes().length);
+      try {
+        server.invoke(name, "reset", new Object[0], new String[0]);
+        fail("Metrics have no operations");
+      } catch (ReflectionException e) {
+        assertTrue(e.getCause() instanceof NoSuchMethodException);
+      }
+    } finally {
+      metrics.unregister();
+    }
+    assertFalse(server.isRegistered(name));
+    assertNull(metrics.getObjectName());
+  }
+
+  @Test
+  public void testUnregisteredAtEndOfRun() throws Exception {
+    RepositoryMetrics metrics = new RepositoryMetrics();
+    metrics.register("file:///tmp/metrics");
+    ObjectName name = metrics.getObjectName();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertTrue(server.isRegistered(name));
+    EndOfRunNotifier.notifyListeners(new DefaultMessageLogger(Message.MSG_WARN));
+    assertFalse(server.isRegistered(name));
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNException;
+
+/**
+ * Unit tests for RequestCoalescer.
+ */
+public class RequestCoalescerTest {
+
+  /**
+   * Request which counts how often it is made, and blocks until released.
+   */
+  private static class BlockingRequest extends RequestCoalescer.Request<String> {
+
+    private final AtomicInteger executions;
+
+    private final CountDownLatch started;
+
+    private final CountDownLatch release;
+
+    private final boolean fail;
+
+    BlockingRequest(AtomicInteger executions, CountDownLatch started, CountDownLatch release, boolean fail) {
+      this.executions = executions;
+      this.started = started;
+      this.release = release;
+      this.fail = fail;
+    }
+
+    @Override
+    public String execute() throws SVNException, IOException {
+      executions.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted");
+      }
+      if (fail) {
+        throw new IOException("Request failed");
+      }
+      return "result";
+    }
+
+    @Override
+    public String share(String result) {
+      return "shared " + result;
+    }
+
+  }
+
+  /**
+   * Starts threads which make the same request through the passed coalescer once the first of them has started it.
+   * 
+   * @param coalescer The coalescer.
+   * @param threads The number of threads.
+   * @param fail Whether the request fails.
+   * @param results Collects the result (or error message) of each thread.
+   * @return The number of times the request was made.
+   * @throws InterruptedException If interrupted while waiting for the threads.
+   */
+  private int execute(final RequestCoalescer coalescer, int threads, boolean fail, final List<String> results)
+    throws InterruptedException {
+    AtomicInteger executions = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    final BlockingRequest request = new BlockingRequest(executions, started, release, fail);
+    List<Thread> running = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            results.add(coalescer.execute("key", request));
+          } catch (Exception e) {
+            results.add(e.getMessage());
+          }
+        }
+      };
+      thread.start();
+      running.add(thread);
+      if (i == 0) {
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+      }
+    }
+    Thread.sleep(200); // let the followers join
+    release.countDown();
+    for (Thread thread : running) {
+      thread.join(5000);
+    }
+    return executions.get();
+  }
+
+  @Test
+  public void testConcurrentRequestsCoalesced() throws Exception {
+    List<String> results = Collections.synchronizedList(new ArrayList<String>());
+    assertEquals(1, execute(new RequestCoalescer(), 3, false, results));
+    Collections.sort(results);
+    assertEquals("[result, shared result, shared result]", results.toString());
+  }
+
+  @Test
+  public void testErrorShared() throws Exception {
+    List<String> results = Collections.synchronizedList(new ArrayList<String>());
+    assertEquals(1, execute(new RequestCoalescer(), 2, true, results));
+    assertEquals("[Request failed, Request failed]", results.toString());
+  }
+
+  @Test
+  public void testLaterRequestsNotCoalesced() throws Exception {
+    RequestCoalescer coalescer = new RequestCoalescer();
+    List<String> results = Collections.synchronizedList(new ArrayList<String>());
+    assertEquals(1, execute(coalescer, 1, false, results));
+    assertEquals(1, execute(coalescer, 1, false, results));
+    assertEquals("[result, result]", results.toString());
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.MessageLogger;
+import org.junit.Test;
+
+/**
+ * Unit tests for SlowOperationLog.
+ */
+public class SlowOperationLogTest {
+
+  @Test
+  public void testThresholds() {
+    SlowOperationLog log = new SlowOperationLog();
+    assertEquals(-1, log.getThreshold("checkPath"));
+    log.setThresholds("checkPath=500, getFile = 10000");
+    assertEquals(500, log.getThreshold("checkPath"));
+    assertEquals(10000, log.getThreshold("getFile"));
+    assertEquals(-1, log.getThreshold("info"));
+    log.setThresholds("checkPath=500,*=2000");
+    assertEquals(2000, log.getThreshold("info"));
+    assertEquals(2000, log.getThreshold("getFile"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidThreshold() {
+    new SlowOperationLog().setThresholds("checkPath");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeThreshold() {
+    new SlowOperationLog().setThresholds("checkPath=-1");
+  }
+
+  @Test
+  public void testCheck() {
+    SlowOperationLog log = new SlowOperationLog();
+    log.setThresholds("checkPath=500");
+    log.check("checkPath", 499 * 1000000L, "org/module", 3, null);
+    log.check("getFile", 60000 * 1000000L, "org/module/module.jar", 3, null);
+    assertTrue(log.getSlowest().isEmpty());
+
+    log.check("checkPath", 500 * 1000000L, "org/module", -1, null);
+    List<String> slowest = log.getSlowest();
+    assertEquals(1, slowest.size());
+    assertEquals("checkPath took 500ms [path=org/module, revision=HEAD, server=null, session=null]", slowest.get(0));
+  }
+
+  @Test
+  public void testSummaryKeepsSlowest() {
+    SlowOperationLog log = new SlowOperationLog();
+    log.setThresholds("*=0");
+    for (int i = 0; i < SlowOperationLog.SUMMARY_SIZE * 2; i++) {
+      log.check("info", i * 1000000L, "path" + i, i, null);
+    }
+    List<String> slowest = log.getSlowest();
+    assertEquals(SlowOperationLog.SUMMARY_SIZE, slowest.size());
+    int last = SlowOperationLog.SUMMARY_SIZE * 2 - 1;
+    assertTrue(slowest.get(0).startsWith("info took " + last + "ms"));
+    assertTrue(slowest.get(slowest.size() - 1).startsWith("info took " + (last - SlowOperationLog.SUMMARY_SIZE + 1)
+        + "ms"));
+  }
+
+  @Test
+  public void testRunFinishedStartsNewSummary() {
+    SlowOperationLog log = new SlowOperationLog();
+    log.setThresholds("*=0");
+    log.check("info", 1000000L, "path", -1, null);
+    MessageLogger logger = new DefaultMessageLogger(Message.MSG_ERR);
+    log.runFinished(logger);
+    assertEquals(1, logger.getWarns().size());
+    assertTrue(((String) logger.getWarns().get(0)).startsWith("1 slow Subversion operations, slowest 1:"));
+    assertTrue(log.getSlowest().isEmpty());
+
+    log.runFinished(logger); // nothing logged since
+    assertEquals(1, logger.getWarns().size());
+  }
+
+}
@@ -160,6 +160,30 @@ public class SvnDaoTest extends BaseTestCase {
     assertEquals(testData, FileUtils.readFileToString(retrieved));
   }
 
+  @Test
+  public void testPutFile_DeltaCompressionAuto() throws SVNException, IOException {
+    svnDAO.setDeltaCompression(SvnDao.DELTA_COMPRESSION_AUTO);
+    svnDAO.setDeltaWindowSize(100); // force data to be split over several windows
+    StringBuilder testData = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      testData.append("test data ").append(i);
+    }
+    ISVNEditor commitEditor = getCommitEditor();
+    svnDAO.createFolders(commitEditor, TEST_PATH, -1);
+    svnDAO.putFile(commitEditor, testData.toString().getBytes(), TEST_PATH, "compressed.jar", false);
+    svnDAO.putFile(commitEditor, testData.toString().getBytes(), TEST_PATH, "uncompressed.txt", false);
+    svnDAO.putFile(commitEditor, new byte[0], TEST_PATH, "empty.jar", false);
+    commitEditor.closeEdit();
+
+    for (String fileName : new String[] { "compressed.jar", "uncompressed.txt", "empty.jar" }) {
+      SVNURL sourceURL = SVNURL.parseURIEncoded(ivyRepositoryRoot + "/" + TEST_PATH + "/" + fileName);
+      File retrieved = new File(testTempFolder, fileName);
+      svnDAO.getFile(sourceURL, retrieved, -1);
+      String expected = fileName.startsWith("empty") ? "" : testData.toString();
+      assertEquals(expected, FileUtils.readFileToString(retrieved));
+    }
+  }
+
   @Test
   public void testList() throws SVNException {
     String testData = new String("test data");
@@ -15,16 +15,21 @@
  */
 package fm.last.ivy.plugins.svnresolver;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.junit.Test;
 import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNLogEntry;
+import org.tmatesoft.svn.core.SVNLogEntryPath;
 import org.tmatesoft.svn.core.io.ISVNEditor;
 
 /**
@@ -80,6 +85,27 @@ public class SvnRepositoryNoBinaryDiffPublishTest extends BaseSvnRepositoryPubli
     assertPublish("2.0", fileContents2, false);
   }
 
+  @Test
+  public void testContentDeduplication_BinaryDiffFalse() throws IOException, SVNException {
+    File ivySettingsFile = prepareTestIvySettings(defaultIvySettingsFile,
+        "binaryDiff=\"false\" contentDeduplication=\"true\"");
+    publish(ivySettingsFile, defaultFileContents, true);
+    publish(ivySettingsFile, defaultFileContents, "2.0", true); // same artifact contents, different revision
+    assertPublish("1.0", defaultFileContents, false);
+    assertPublish("2.0", defaultFileContents, false);
+
+    // artifact should have been added as a copy of the 1.0 artifact instead of being uploaded again
+    String artifactPath = "/" + ivyRepositoryPath + "/" + defaultOrganisation + "/" + defaultModule + "/2.0/"
+        + defaultArtifactName;
+    long latestRevision = readRepository.getLatestRevision();
+    Collection<?> logEntries = readRepository.log(new String[] { "" }, null, latestRevision, latestRevision, true,
+        false);
+    SVNLogEntry logEntry = (SVNLogEntry) logEntries.iterator().next();
+    SVNLogEntryPath changedPath = (SVNLogEntryPath) logEntry.getChangedPaths().get(artifactPath);
+    assertNotNull(artifactPath + " not changed in revision " + latestRevision, changedPath);
+    assertEquals(artifactPath.replace("/2.0/", "/1.0/"), changedPath.getCopyPath());
+  }
+
   @Test
   public void testPublish_Issue16() throws IOException, SVNException {
     File ivySettingsFile = prepareTestIvySettings(new File(ivySettingsDataFolder, "ivysettings-issue16.xml"));
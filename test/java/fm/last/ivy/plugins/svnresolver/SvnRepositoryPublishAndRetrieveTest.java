@@ -16,16 +16,24 @@
 package fm.last.ivy.plugins.svnresolver;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.ivy.Ivy;
 import org.apache.ivy.ant.IvyPublish;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.util.ChecksumHelper;
+import org.apache.tools.ant.Project;
 import org.junit.Test;
 import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
 
 /**
  * Unit test which tests publishing artifacts and then retrieving them. These aren't unit tests in the strict sense of
@@ -156,4 +164,91 @@ public class SvnRepositoryPublishAndRetrieveTest extends BaseSvnRepositoryPublis
     assertEquals(fileContents2, FileUtils.readFileToString(new File(testTempFolder, fileToPublish2.getName())));
   }
 
+  @Test
+  public void testGroupPublish() throws IOException, SVNException {
+    File ivySettingsFile = prepareTestIvySettings(defaultIvySettingsFile, "binaryDiff=\"false\"");
+    Project project = createProject();
+    project.setProperty("ivy.settings.file", ivySettingsFile.getAbsolutePath());
+    resolve(project, new File(ivysDataFolder, "ivy-test-publish.xml"));
+
+    SvnGroupPublishTask groupPublish = new SvnGroupPublishTask();
+    groupPublish.setProject(project);
+    groupPublish.setTaskName("svngrouppublish");
+    groupPublish.setResolver("ivysvn");
+    String[] revisions = { "1.0", "2.0" };
+    for (String revision : revisions) {
+      String distPath = DIST_PATH + "/" + revision;
+      FileUtils.writeStringToFile(new File(distPath, defaultArtifactName), "contents " + revision);
+      IvyPublish ivyPublish = createIvyPublish(revision, false);
+      ivyPublish.setProject(project);
+      ivyPublish.setArtifactspattern(distPath + "/[artifact].[ext]");
+      groupPublish.addTask(ivyPublish);
+    }
+    long revisionBefore = readRepository.getLatestRevision();
+    groupPublish.execute();
+    assertEquals("Modules should have been published in a single commit", revisionBefore + 1, readRepository
+        .getLatestRevision());
+    assertPublish("1.0", "contents 1.0", false);
+    assertPublish("2.0", "contents 2.0", false);
+  }
+
+  @Test
+  public void testPromote() throws IOException, SVNException, ParseException {
+    File ivySettingsFile = prepareTestIvySettings(defaultIvySettingsFile, "binaryDiff=\"false\"");
+    publish(ivySettingsFile, "candidate contents", "1.0-RC1", false);
+    Ivy ivy = Ivy.newInstance();
+    ivy.configure(ivySettingsFile);
+    SvnResolver resolver = (SvnResolver) ivy.getSettings().getResolver("ivysvn");
+    ModuleRevisionId source = ModuleRevisionId.newInstance(defaultOrganisation, defaultModule, "1.0-RC1");
+    ModuleRevisionId target = ModuleRevisionId.newInstance(defaultOrganisation, defaultModule, "1.0");
+
+    long revisionBefore = readRepository.getLatestRevision();
+    resolver.promote(source, target, "release");
+    assertEquals("Module should have been promoted in a single commit", revisionBefore + 1, readRepository
+        .getLatestRevision());
+    assertPublish("1.0", "candidate contents", false);
+    assertPublish("1.0-RC1", "candidate contents", false);
+
+    String ivyPath = defaultOrganisation + "/" + defaultModule + "/1.0/" + defaultIvyFileName;
+    File ivyFile = new File(testTempFolder, "promoted-ivy.xml");
+    svnDAO.getFile(SVNURL.parseURIEncoded(ivyRepositoryRoot + "/" + ivyPath), ivyFile, -1);
+    String ivyXml = FileUtils.readFileToString(ivyFile);
+    assertTrue(ivyXml.contains("status=\"release\""));
+    assertTrue(ivyXml.contains("revision=\"1.0\""));
+    File checksumFile = new File(testTempFolder, "promoted-ivy.xml.sha1");
+    svnDAO.getFile(SVNURL.parseURIEncoded(ivyRepositoryRoot + "/" + ivyPath + ".sha1"), checksumFile, -1);
+    assertEquals(ChecksumHelper.computeAsString(ivyFile, "sha1"), FileUtils.readFileToString(checksumFile));
+  }
+
+  @Test
+  public void testPromoteRenamesFiles() throws IOException, SVNException, ParseException {
+    File ivySettingsFile = prepareTestIvySettings(new File(ivySettingsDataFolder, "ivysettings-issue13.xml"));
+    IvyPublish publish = createIvyPublish("1.0-RC1", false);
+    publish(ivySettingsFile, "candidate contents", publish);
+    Ivy ivy = Ivy.newInstance();
+    ivy.configure(ivySettingsFile);
+    SvnResolver resolver = (SvnResolver) ivy.getSettings().getResolver("ivysvn");
+    ModuleRevisionId source = ModuleRevisionId.newInstance(defaultOrganisation, defaultModule, "1.0-RC1");
+    ModuleRevisionId target = ModuleRevisionId.newInstance(defaultOrganisation, defaultModule, "1.0");
+
+    long revisionBefore = readRepository.getLatestRevision();
+    resolver.promote(source, target, "release");
+    assertEquals("Module should have been promoted in a single commit", revisionBefore + 1, readRepository
+        .getLatestRevision());
+    String folder = defaultOrganisation + "/" + defaultModule + "/1.0/";
+    Map<String, String> artifacts = new HashMap<String, String>();
+    artifacts.put("testartifact-1.0.jar", "candidate contents");
+    assertNonBinaryDiffPublish(defaultOrganisation, defaultModule, "1.0", artifacts, "ivy-1.0.xml");
+    assertTrue(svnDAO.fileExists(folder + "testartifact-1.0.jar.sha1", -1));
+    assertFalse(svnDAO.fileExists(folder + "testartifact-1.0-RC1.jar", -1));
+    assertFalse(svnDAO.fileExists(folder + "ivy-1.0-RC1.xml", -1));
+    File promotedIvyFile = new File(testTempFolder, "promoted-ivy.xml");
+    svnDAO.getFile(SVNURL.parseURIEncoded(ivyRepositoryRoot + "/" + folder + "ivy-1.0.xml"), promotedIvyFile, -1);
+    assertTrue(FileUtils.readFileToString(promotedIvyFile).contains("status=\"release\""));
+
+    File ivyFile = prepareTestIvyFile(defaultIvyXml, "1.0");
+    retrieve(ivyFile, DEFAULT_RETRIEVE_TO_PATTERN, ivySettingsFile);
+    assertEquals("candidate contents", FileUtils.readFileToString(new File(testTempFolder, defaultArtifactName)));
+  }
+
 }
@@ -0,0 +1,772 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.plugins.repository.TransferEvent;
+import org.apache.ivy.plugins.repository.TransferListener;
+import org.apache.ivy.util.ChecksumHelper;
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.MessageLogger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+
+/**
+ * Tests publish transactions performed directly against the SvnRepository.
+ */
+public class SvnRepositoryTransactionTest extends BaseTestCase {
+
+  private SvnRepository repository;
+
+  @Before
+  public void setUp() throws SVNException {
+    super.setUp();
+    repository = new SvnRepository();
+    repository.setRepositoryRoot(ivyRepositoryRoot);
+    repository.setUserName(svnUserName);
+    repository.setUserPassword(svnPassword);
+    repository.setBinaryDiff(false);
+  }
+
+  /**
+   * Releases the publish journal, if one was used, so the next test can use it.
+   * 
+   * @throws Exception If an error occurs waiting for publishes or releasing the journal.
+   */
+  @After
+  public void closeAsyncPublisher() throws Exception {
+    if (repository.getAsyncPublisher() != null) {
+      repository.getAsyncPublisher().close();
+    }
+  }
+
+  /**
+   * Publishes a single file for the passed module revision.
+   *
+   * @param mrid The module revision.
+   * @param contents The file contents.
+   * @param putDone Latch which will be released once the file has been put.
+   * @param latch If not null, the commit will wait for this latch to be released.
+   * @throws IOException If an error occurs writing the file or publishing it.
+   * @throws InterruptedException If interrupted while waiting for the latch.
+   */
+  private void publish(ModuleRevisionId mrid, String contents, CountDownLatch putDone, CountDownLatch latch)
+    throws IOException, InterruptedException {
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    FileUtils.writeStringToFile(file, contents);
+    repository.beginPublishTransaction(mrid);
+    repository.put(file, getPath(mrid), false);
+    putDone.countDown();
+    if (latch != null) {
+      latch.await();
+    }
+    repository.commitPublishTransaction();
+  }
+
+  private String getPath(ModuleRevisionId mrid) {
+    return mrid.getOrganisation() + "/" + mrid.getName() + "/" + mrid.getRevision() + "/" + mrid.getName() + ".jar";
+  }
+
+  private String retrieve(ModuleRevisionId mrid) throws SVNException, IOException {
+    File retrieved = new File(testTempFolder, "retrieved-" + mrid.getName() + ".jar");
+    svnDAO.getFile(SVNURL.parseURIEncoded(ivyRepositoryRoot + "/" + getPath(mrid)), retrieved, -1);
+    return FileUtils.readFileToString(retrieved);
+  }
+
+  @Test
+  public void testPutChecksum() throws Exception {
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "checksum", "1.0");
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    FileUtils.writeStringToFile(file, "checksum contents");
+    repository.beginPublishTransaction(mrid);
+    repository.put(file, getPath(mrid), false);
+    assertTrue(repository.putChecksum(getPath(mrid), "md5", false));
+    assertTrue(repository.putChecksum(getPath(mrid), "sha1", false));
+    assertFalse(repository.putChecksum(getPath(mrid) + ".notscheduled", "md5", false));
+    repository.commitPublishTransaction();
+
+    File retrieved = new File(testTempFolder, "retrieved.md5");
+    svnDAO.getFile(SVNURL.parseURIEncoded(ivyRepositoryRoot + "/" + getPath(mrid) + ".md5"), retrieved, -1);
+    assertEquals(ChecksumHelper.computeAsString(file, "md5"), FileUtils.readFileToString(retrieved));
+    svnDAO.getFile(SVNURL.parseURIEncoded(ivyRepositoryRoot + "/" + getPath(mrid) + ".sha1"), retrieved, -1);
+    assertEquals(ChecksumHelper.computeAsString(file, "sha1"), FileUtils.readFileToString(retrieved));
+  }
+
+  @Test
+  public void testTransferProgressEvents() throws Exception {
+    final List<SvnTransferEvent> events = new ArrayList<SvnTransferEvent>();
+    repository.addTransferListener(new TransferListener() {
+      public void transferProgress(TransferEvent event) {
+        if (event instanceof SvnTransferEvent) {
+          events.add((SvnTransferEvent) event);
+        }
+      }
+    });
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "progress", "1.0");
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    byte[] contents = new byte[200 * 1024];
+    new Random().nextBytes(contents);
+    FileUtils.writeByteArrayToFile(file, contents);
+    repository.beginPublishTransaction(mrid);
+    repository.put(file, getPath(mrid), false);
+    repository.commitPublishTransaction();
+    repository.get(getPath(mrid), new File(testTempFolder, "retrieved.jar"));
+
+    long putLength = 0;
+    long getLength = 0;
+    String resourceName = repository.getResource(getPath(mrid)).getName();
+    for (SvnTransferEvent event : events) {
+      assertEquals(TransferEvent.TRANSFER_PROGRESS, event.getEventType());
+      assertEquals(resourceName, event.getResource().getName());
+      assertTrue(event.getBytesPerSecond() >= 0);
+      if (event.getRequestType() == TransferEvent.REQUEST_PUT) {
+        putLength += event.getLength();
+        assertEquals(putLength, event.getTotalLength());
+      } else {
+        getLength += event.getLength();
+        assertEquals(getLength, event.getTotalLength());
+      }
+    }
+    assertEquals(contents.length, putLength);
+    assertEquals(contents.length, getLength);
+  }
+
+  @Test
+  public void testConflictingCommitRetried() throws Exception {
+    final ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "conflict", "1.0");
+    final SvnRepository otherRepository = new SvnRepository();
+    otherRepository.setRepositoryRoot(ivyRepositoryRoot);
+    otherRepository.setUserName(svnUserName);
+    otherRepository.setUserPassword(svnPassword);
+    otherRepository.setBinaryDiff(false);
+    final File otherFile = new File(testTempFolder, "other.jar");
+    FileUtils.writeStringToFile(otherFile, "other contents");
+    final int[] conflicts = new int[1];
+    // while the first commit is in progress, commit the same file from another repository
+    repository.addTransferListener(new TransferListener() {
+      public void transferProgress(TransferEvent event) {
+        if (event.getRequestType() == TransferEvent.REQUEST_PUT
+            && event.getEventType() == TransferEvent.TRANSFER_PROGRESS && conflicts[0]++ == 0) {
+          try {
+            otherRepository.beginPublishTransaction(mrid);
+            otherRepository.put(otherFile, getPath(mrid), false);
+            otherRepository.commitPublishTransaction();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    });
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    FileUtils.writeStringToFile(file, "conflicting contents");
+    repository.beginPublishTransaction(mrid);
+    repository.put(file, getPath(mrid), true);
+    repository.commitPublishTransaction();
+
+    assertEquals(2, conflicts[0]); // file was sent again when the commit was retried
+    assertEquals("conflicting contents", retrieve(mrid));
+  }
+
+  @Test
+  public void testConflictingBinaryDiffCopyReplanned() throws Exception {
+    repository.setBinaryDiff(true);
+    final ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "copyconflict", "1.0");
+    final SvnRepository otherRepository = new SvnRepository();
+    otherRepository.setRepositoryRoot(ivyRepositoryRoot);
+    otherRepository.setUserName(svnUserName);
+    otherRepository.setUserPassword(svnPassword);
+    otherRepository.setBinaryDiff(false);
+    final File otherFile = new File(testTempFolder, "other.jar");
+    FileUtils.writeStringToFile(otherFile, "other contents");
+    final int[] commits = new int[1];
+    // once the files are committed to the binary diff folder, create the release folder from another repository
+    MessageLogger logger = Message.getDefaultLogger();
+    Message.setDefaultLogger(new DefaultMessageLogger(Message.MSG_WARN) {
+      @Override
+      public void log(String message, int level) {
+        super.log(message, level);
+        if (message.startsWith("Commit finished") && commits[0]++ == 0) {
+          try {
+            otherRepository.beginPublishTransaction(mrid);
+            otherRepository.put(otherFile, getPath(mrid), false);
+            otherRepository.commitPublishTransaction();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    });
+    try {
+      File file = new File(testTempFolder, mrid.getName() + ".jar");
+      FileUtils.writeStringToFile(file, "replanned contents");
+      repository.beginPublishTransaction(mrid);
+      repository.put(file, getPath(mrid), true);
+      repository.commitPublishTransaction();
+    } finally {
+      Message.setDefaultLogger(logger);
+    }
+
+    assertEquals(2, commits[0]); // the other repository committed between the two commits of the publish
+    // the copy to the release folder was retried, replacing the folder created in the meantime
+    assertEquals("replanned contents", retrieve(mrid));
+  }
+
+  @Test
+  public void testConnectionErrorsRetryable() {
+    assertTrue(SvnPublishTransaction.isRetryableConnectionError(SVNErrorMessage.create(SVNErrorCode.RA_SVN_IO_ERROR,
+        "Connection reset")));
+    SVNErrorMessage cause = SVNErrorMessage.create(SVNErrorCode.RA_DAV_REQUEST_FAILED, "Request failed");
+    assertTrue(SvnPublishTransaction.isRetryableConnectionError(cause.wrap("Commit failed")));
+    assertFalse(SvnPublishTransaction.isRetryableConnectionError(SVNErrorMessage.create(SVNErrorCode.FS_NOT_FOUND,
+        "Path not found")));
+  }
+
+  @Test
+  public void testAsyncPublish() throws Exception {
+    File journalDirectory = new File(testTempFolder, "journal");
+    repository.setAsyncPublishJournal(journalDirectory);
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "async", "1.0");
+    publish(mrid, "async contents", new CountDownLatch(1), null);
+
+    assertTrue(repository.waitForAsyncPublishes(60000));
+    assertEquals(1, repository.getAsyncPublisher().getCommittedCount());
+    assertEquals(0, repository.getAsyncPublisher().getFailedCount());
+    assertEquals("async contents", retrieve(mrid));
+    assertEquals(0, new PublishJournal(journalDirectory).getEntries().size()); // committed entries are removed
+  }
+
+  @Test
+  public void testAsyncPublishReplaysJournal() throws Exception {
+    // simulate a process which died after recording a publish but before committing it
+    File journalDirectory = new File(testTempFolder, "journal");
+    PublishJournal journal = new PublishJournal(journalDirectory);
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "replayed", "1.0");
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    FileUtils.writeStringToFile(file, "replayed contents");
+    PublishJournalEntry entry = journal.createEntry();
+    entry.beginModule(mrid);
+    entry.addFile(file, getPath(mrid), false);
+    entry.addChecksum(getPath(mrid), "md5");
+    journal.complete(entry);
+    journal.createEntry().beginModule(mrid); // incomplete entry, should be discarded
+
+    repository.setAsyncPublishJournal(journalDirectory);
+    assertTrue(repository.waitForAsyncPublishes(60000));
+    assertEquals(1, repository.getAsyncPublisher().getCommittedCount());
+    assertEquals("replayed contents", retrieve(mrid));
+    assertTrue(svnDAO.fileExists(getPath(mrid) + ".md5", -1));
+    assertEquals(0, journal.getEntries().size());
+  }
+
+  @Test
+  public void testAsyncPublishStopsAtFailure() throws Exception {
+    File journalDirectory = new File(testTempFolder, "journal");
+    PublishJournal journal = new PublishJournal(journalDirectory);
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "stopped", "1.0");
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    FileUtils.writeStringToFile(file, "older contents");
+    PublishJournalEntry older = journal.createEntry();
+    older.beginModule(mrid);
+    older.addFile(file, getPath(mrid), true);
+    journal.complete(older);
+    older.getFiles(0).get(0).getFile().delete(); // make the older publish fail
+    FileUtils.writeStringToFile(file, "newer contents");
+    PublishJournalEntry newer = journal.createEntry();
+    newer.beginModule(mrid);
+    newer.addFile(file, getPath(mrid), true);
+    journal.complete(newer);
+
+    repository.setAsyncPublishJournal(journalDirectory);
+    assertTrue(repository.waitForAsyncPublishes(60000));
+    AsyncPublisher publisher = repository.getAsyncPublisher();
+    assertEquals(1, publisher.getFailedCount());
+    assertEquals(1, publisher.getHeldBackCount());
+    assertEquals(0, publisher.getCommittedCount());
+    // both stay in the journal, in order, so the older publish can't be replayed over the newer one later
+    assertEquals(2, journal.getEntries().size());
+    assertFalse(svnDAO.fileExists(getPath(mrid), -1));
+
+    publish(ModuleRevisionId.newInstance("testorg", "later", "1.0"), "later contents", new CountDownLatch(1), null);
+    assertTrue(repository.waitForAsyncPublishes(60000));
+    assertEquals(2, publisher.getHeldBackCount());
+    assertEquals(3, journal.getEntries().size());
+  }
+
+  @Test
+  public void testAsyncPublishJournalLocked() throws Exception {
+    File journalDirectory = new File(testTempFolder, "journal");
+    repository.setAsyncPublishJournal(journalDirectory);
+    repository.startAsyncPublisher();
+    SvnRepository otherRepository = new SvnRepository();
+    otherRepository.setRepositoryRoot(ivyRepositoryRoot);
+    otherRepository.setAsyncPublishJournal(journalDirectory);
+    try {
+      otherRepository.startAsyncPublisher();
+      Assert.fail("Journal in use by another publisher was used");
+    } catch (IOException e) {
+      // expected
+    }
+    repository.getAsyncPublisher().close();
+    otherRepository.startAsyncPublisher(); // released journals can be used again
+    otherRepository.getAsyncPublisher().close();
+  }
+
+  @Test
+  public void testStagedPublishResumes() throws Exception {
+    repository.setBinaryDiff(true);
+    repository.setStagingThreshold(1);
+    final List<String> sent = new ArrayList<String>();
+    repository.addTransferListener(new TransferListener() {
+      public void transferProgress(TransferEvent event) {
+        if (event.getRequestType() == TransferEvent.REQUEST_PUT
+            && event.getEventType() == TransferEvent.TRANSFER_PROGRESS) {
+          sent.add(event.getResource().getName());
+        }
+      }
+    });
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "staged", "1.0");
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    FileUtils.writeStringToFile(file, "staged contents");
+    long revision = svnDAO.getRepository().getLatestRevision();
+    repository.beginPublishTransaction(mrid);
+    repository.put(file, getPath(mrid), true);
+    repository.commitPublishTransaction();
+    // staging commit, commit to binary diff folder and binary diff copy
+    assertEquals(revision + 3, svnDAO.getRepository().getLatestRevision());
+    assertEquals(1, sent.size());
+    assertEquals("staged contents", retrieve(mrid));
+
+    // publishing the same content again, e.g. after a failure, shouldn't send it again
+    sent.clear();
+    repository.beginPublishTransaction(mrid);
+    repository.put(file, getPath(mrid), true);
+    repository.commitPublishTransaction();
+    assertEquals(0, sent.size());
+    assertEquals("staged contents", retrieve(mrid));
+  }
+
+  @Test
+  public void testOverwriteIsNotCheckedWithoutStaging() throws Exception {
+    repository.setBinaryDiff(true);
+    final List<String> sent = new ArrayList<String>();
+    repository.addTransferListener(new TransferListener() {
+      public void transferProgress(TransferEvent event) {
+        if (event.getRequestType() == TransferEvent.REQUEST_PUT
+            && event.getEventType() == TransferEvent.TRANSFER_PROGRESS) {
+          sent.add(event.getResource().getName());
+        }
+      }
+    });
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "unstaged", "1.0");
+    File file = new File(testTempFolder, mrid.getName() + ".jar");
+    FileUtils.writeStringToFile(file, "unstaged contents");
+    for (int i = 0; i < 2; i++) {
+      repository.beginPublishTransaction(mrid);
+      repository.put(file, getPath(mrid), true);
+      repository.commitPublishTransaction();
+    }
+    // the first attempt at a publish sends unchanged files rather than reading them first to compare checksums
+    assertEquals(2, sent.size());
+    assertEquals("unstaged contents", retrieve(mrid));
+  }
+
+  @Test
+  public void testConcurrentGets() throws Exception {
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "shared", "1.0");
+    publish(mrid, "shared contents", new CountDownLatch(1), null);
+    final List<File> retrieved = new ArrayList<File>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      final File destination = new File(testTempFolder, "shared-" + i + ".jar");
+      retrieved.add(destination);
+      final String path = getPath(mrid);
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            repository.get(path, destination);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+    for (File file : retrieved) { // whether or not the gets were coalesced, each destination gets the file
+      assertEquals("shared contents", FileUtils.readFileToString(file));
+    }
+  }
+
+  @Test
+  public void testConcurrentReadsOfDifferentPaths() throws Exception {
+    final List<ModuleRevisionId> mrids = new ArrayList<ModuleRevisionId>();
+    for (int i = 0; i < 4; i++) {
+      ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "concurrent" + i, "1.0");
+      publish(mrid, "contents " + i, new CountDownLatch(1), null);
+      mrids.add(mrid);
+    }
+    final Throwable[] failure = new Throwable[1];
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      final int index = i % mrids.size();
+      final File destination = new File(testTempFolder, "concurrent-" + i + ".jar");
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            ModuleRevisionId mrid = mrids.get(index);
+            for (int j = 0; j < 10; j++) { // each thread reads its own paths, sessions must not be shared
+              assertTrue(repository.resolveResource(ivyRepositoryRoot + "/" + getPath(mrid)).exists());
+              assertTrue(repository.list("testorg/" + mrid.getName()).contains("1.0"));
+              repository.get(getPath(mrid), destination);
+              assertEquals("contents " + index, FileUtils.readFileToString(destination));
+            }
+          } catch (Throwable t) {
+            failure[0] = t;
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join(60000);
+    }
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+  }
+
+  @Test
+  public void testReadReplicaRouting() throws Exception {
+    SVNURL svnRepositoryRootURL = SVNURL.parseURIEncoded(svnRepositoryRoot);
+    assumeTrue("file".equals(svnRepositoryRootURL.getProtocol())); // replica is created by copying the repository
+    ModuleRevisionId replicated = ModuleRevisionId.newInstance("testorg", "replicated", "1.0");
+    publish(replicated, "replicated contents", new CountDownLatch(1), null);
+    File replicaFolder = new File(testTempFolder, "replica");
+    FileUtils.copyDirectory(new File(svnRepositoryRootURL.getPath()), replicaFolder);
+    repository.addReadReplica(SVNURL.fromFile(new File(testTempFolder, "missing")).toString()); // unhealthy replica
+    repository.addReadReplica(SVNURL.fromFile(replicaFolder).appendPath(ivyRepositoryPath, false).toString());
+
+    // change the file in the primary without this repository knowing, reads should still go to the replica
+    SvnRepository otherRepository = new SvnRepository();
+    otherRepository.setRepositoryRoot(ivyRepositoryRoot);
+    otherRepository.setUserName(svnUserName);
+    otherRepository.setUserPassword(svnPassword);
+    otherRepository.setBinaryDiff(false);
+    File file = new File(testTempFolder, replicated.getName() + ".jar");
+    FileUtils.writeStringToFile(file, "primary contents");
+    otherRepository.beginPublishTransaction(replicated);
+    otherRepository.put(file, getPath(replicated), true);
+    otherRepository.commitPublishTransaction();
+    File retrieved = new File(testTempFolder, "retrieved.jar");
+    repository.get(getPath(replicated), retrieved);
+    assertEquals("replicated contents", FileUtils.readFileToString(retrieved));
+
+    // modules published by this repository are read from the primary until the replica catches up
+    ModuleRevisionId unreplicated = ModuleRevisionId.newInstance("testorg", "unreplicated", "1.0");
+    publish(unreplicated, "unreplicated contents", new CountDownLatch(1), null);
+    assertTrue(repository.getResource(getPath(unreplicated)).exists());
+    assertTrue(repository.list("testorg/").contains("unreplicated"));
+    repository.get(getPath(unreplicated), retrieved);
+    assertEquals("unreplicated contents", FileUtils.readFileToString(retrieved));
+  }
+
+  @Test
+  public void testShardedGroupPublish() throws Exception {
+    File shardFolder = new File(testTempFolder, "shard");
+    SVNURL shardRootURL = SVNRepositoryFactory.createLocalRepository(shardFolder, true, false);
+    repository.addShard("shardorg", shardRootURL.toString());
+    repository.setPrewarmSessions(2);
+    repository.prewarm(); // the shard's root is prewarmed too
+    for (int i = 0; i < 100
+        && SVNRepositoryCache.getInstance().getIdleSessionCount(shardRootURL.toString() + "/", shardRootURL) < 2; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(2, SVNRepositoryCache.getInstance().getIdleSessionCount(shardRootURL.toString() + "/", shardRootURL));
+    ModuleRevisionId unsharded = ModuleRevisionId.newInstance("testorg", "unsharded", "1.0");
+    ModuleRevisionId sharded = ModuleRevisionId.newInstance("shardorg", "sharded", "1.0");
+    File unshardedFile = new File(testTempFolder, "unsharded.jar");
+    FileUtils.writeStringToFile(unshardedFile, "unsharded contents");
+    File shardedFile = new File(testTempFolder, "sharded.jar");
+    FileUtils.writeStringToFile(shardedFile, "sharded contents");
+
+    long revisionBefore = svnDAO.getRepository().getLatestRevision();
+    repository.beginGroupPublishTransaction();
+    repository.beginPublishTransaction(unsharded);
+    repository.put(unshardedFile, getPath(unsharded), false);
+    assertTrue(repository.putChecksum(getPath(unsharded), "md5", false));
+    repository.commitPublishTransaction();
+    repository.beginPublishTransaction(sharded);
+    repository.put(shardedFile, getPath(sharded), false);
+    assertTrue(repository.putChecksum(getPath(sharded), "md5", false));
+    repository.commitPublishTransaction();
+    repository.commitGroupPublishTransaction();
+
+    assertEquals(revisionBefore + 1, svnDAO.getRepository().getLatestRevision());
+    // the shard's commit is recorded in this repository's metrics
+    assertEquals(2, repository.getMetrics().getLatencies(RepositoryMetrics.Operation.COMMIT).getCount());
+    assertEquals("unsharded contents", retrieve(unsharded));
+    assertFalse(svnDAO.fileExists(getPath(sharded), -1));
+    SvnDao shardDAO = new SvnDao(SvnUtils.createRepository(shardRootURL, svnUserName, svnPassword, null, null, -1,
+        null, null, false));
+    assertTrue(shardDAO.fileExists(getPath(sharded), -1));
+    assertTrue(shardDAO.fileExists(getPath(sharded) + ".md5", -1));
+    assertTrue(repository.getResource(getPath(sharded)).exists());
+    File retrieved = new File(testTempFolder, "retrieved.jar");
+    repository.get(getPath(sharded), retrieved);
+    assertEquals("sharded contents", FileUtils.readFileToString(retrieved));
+    List<String> organisations = repository.list("");
+    assertTrue(organisations.contains("testorg"));
+    assertTrue(organisations.contains("shardorg"));
+    assertEquals(Arrays.asList("sharded"), repository.list("shardorg"));
+  }
+
+  @Test
+  public void testPrewarm() throws Exception {
+    String prewarmRoot = ivyRepositoryRoot + "/prewarm/"; // root with a pool of its own
+    repository.setRepositoryRoot(prewarmRoot);
+    repository.prewarm(); // not enabled yet, nothing happens
+    repository.setPrewarmSessions(3);
+    repository.prewarm();
+    repository.prewarm(); // sessions are only opened once
+    SVNURL prewarmRootURL = SVNURL.parseURIEncoded(prewarmRoot);
+    for (int i = 0; i < 100 && SVNRepositoryCache.getInstance().getIdleSessionCount(prewarmRoot, prewarmRootURL) < 3;
+        i++) {
+      Thread.sleep(100);
+    }
+    Thread.sleep(200);
+    // all sessions are borrowed from and returned to the pool, sessions in use by other threads are left alone
+    assertEquals(3, SVNRepositoryCache.getInstance().getIdleSessionCount(prewarmRoot, prewarmRootURL));
+  }
+
+  @Test
+  public void testPrewarmSessionsLimitedToPool() throws Exception {
+    int maxIdleSessions = SVNRepositoryCache.getInstance().getMaxIdleSessions();
+    MessageLogger logger = Message.getDefaultLogger();
+    DefaultMessageLogger warnings = new DefaultMessageLogger(Message.MSG_ERR);
+    Message.setDefaultLogger(warnings);
+    try {
+      repository.setPrewarmSessions(maxIdleSessions + 5);
+    } finally {
+      Message.setDefaultLogger(logger);
+    }
+    assertEquals(1, warnings.getWarns().size());
+    String prewarmRoot = ivyRepositoryRoot + "/prewarmlimited/";
+    repository.setRepositoryRoot(prewarmRoot);
+    repository.prewarm();
+    SVNURL prewarmRootURL = SVNURL.parseURIEncoded(prewarmRoot);
+    for (int i = 0; i < 100
+        && SVNRepositoryCache.getInstance().getIdleSessionCount(prewarmRoot, prewarmRootURL) < maxIdleSessions; i++) {
+      Thread.sleep(100);
+    }
+    Thread.sleep(200);
+    assertEquals(maxIdleSessions, SVNRepositoryCache.getInstance().getIdleSessionCount(prewarmRoot, prewarmRootURL));
+  }
+
+  @Test
+  public void testConcurrencyLimited() throws Exception {
+    repository.setMaxConcurrentRequests(2);
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "limited", "1.0");
+    publish(mrid, "limited contents", new CountDownLatch(1), null);
+    assertTrue(repository.getResource(getPath(mrid)).exists());
+    repository.get(getPath(mrid), new File(testTempFolder, "retrieved.jar"));
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.getInstance(SVNRepositoryCache.getKey(ivyRepositoryRoot + "/",
+        ivyRepositoryRootURL), 2, true);
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(2, limiter.getLimit()); // never exceeds the maximum
+  }
+
+  @Test
+  public void testBandwidthLimited() throws Exception {
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "shaped", "1.0");
+    char[] data = new char[(int) BandwidthLimiter.BURST_MINIMUM * 2];
+    Arrays.fill(data, 'x');
+    String contents = new String(data);
+    repository.setMaxPutBytesPerSecond(BandwidthLimiter.BURST_MINIMUM);
+    repository.setMaxGetBytesPerSecond(BandwidthLimiter.BURST_MINIMUM);
+    long start = System.currentTimeMillis();
+    publish(mrid, contents, new CountDownLatch(1), null);
+    assertTrue(System.currentTimeMillis() - start >= 800); // one bucket's worth passes at once, the rest is limited
+    start = System.currentTimeMillis();
+    File retrieved = new File(testTempFolder, "shaped.jar");
+    repository.get(getPath(mrid), retrieved);
+    assertTrue(System.currentTimeMillis() - start >= 800);
+    assertEquals(contents, FileUtils.readFileToString(retrieved));
+  }
+
+  @Test
+  public void testOperationTimeout() throws Exception {
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "slow", "1.0");
+    char[] data = new char[(int) BandwidthLimiter.BURST_MINIMUM * 4];
+    Arrays.fill(data, 'x');
+    publish(mrid, new String(data), new CountDownLatch(1), null);
+    repository.setOperationTimeout(500);
+    String resourceURL = ivyRepositoryRoot + "/" + getPath(mrid);
+    assertTrue(repository.resolveResource(resourceURL).exists());
+    List<String> revisions = repository.list("testorg/slow");
+
+    repository.setMaxGetBytesPerSecond(BandwidthLimiter.BURST_MINIMUM);
+    try {
+      repository.get(getPath(mrid), new File(testTempFolder, "slow.jar"));
+      Assert.fail("Retrieve should have run out of time");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof SVNCancelException);
+    }
+
+    OperationDeadline.start(1); // lookups which run out of time fall back to their previous result
+    Thread.sleep(10);
+    try {
+      assertTrue(repository.resolveResource(resourceURL).exists());
+      assertEquals(revisions, repository.list("testorg/slow"));
+      assertFalse(repository.resolveResource(resourceURL + ".sha1").exists());
+    } finally {
+      OperationDeadline.end();
+    }
+  }
+
+  @Test
+  public void testAsyncGroupPublishLeavesNoDeadline() throws Exception {
+    repository.setAsyncPublishJournal(new File(testTempFolder, "journal"));
+    repository.setOperationTimeout(500);
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "asyncgroup", "1.0");
+    repository.beginGroupPublishTransaction();
+    publish(mrid, "async group contents", new CountDownLatch(1), null);
+    repository.commitGroupPublishTransaction();
+    assertNull(OperationDeadline.get());
+
+    repository.beginGroupPublishTransaction();
+    repository.beginPublishTransaction(ModuleRevisionId.newInstance("testorg", "aborted", "1.0"));
+    repository.abortPublishTransaction();
+    assertNull(OperationDeadline.get());
+
+    assertTrue(repository.waitForAsyncPublishes(60000));
+    Thread.sleep(600); // longer than the operation timeout, so a leftover deadline would have passed
+    File retrieved = new File(testTempFolder, "asyncgroup.jar");
+    repository.get(getPath(mrid), retrieved);
+    assertEquals("async group contents", FileUtils.readFileToString(retrieved));
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "measured", "1.0");
+    publish(mrid, "measured contents", new CountDownLatch(1), null);
+    repository.get(getPath(mrid), new File(testTempFolder, "measured.jar"));
+    repository.resolveResource(ivyRepositoryRoot + "/" + getPath(mrid));
+
+    RepositoryMetrics metrics = repository.getMetrics();
+    assertNotNull(metrics.getObjectName());
+    assertEquals(1, metrics.getLatencies(RepositoryMetrics.Operation.COMMIT).getCount());
+    assertEquals(1, metrics.getLatencies(RepositoryMetrics.Operation.GET_FILE).getCount());
+    assertEquals(1, metrics.getLatencies(RepositoryMetrics.Operation.INFO).getCount());
+    assertTrue(metrics.getLatencies(RepositoryMetrics.Operation.CHECK_PATH).getCount() >= 2);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertEquals((long) "measured contents".length() * 2, // published and retrieved
+        ((Long) server.getAttribute(metrics.getObjectName(), "BytesPublished"))
+            + (Long) server.getAttribute(metrics.getObjectName(), "BytesRetrieved"));
+    assertEquals(0, ((Number) server.getAttribute(metrics.getObjectName(), "SessionsInUse")).intValue());
+    assertEquals(0, ((Number) server.getAttribute(metrics.getObjectName(), "ActiveTransactions")).intValue());
+  }
+
+  @Test
+  public void testTrace() throws Exception {
+    File traceFile = new File(testTempFolder, "trace.json");
+    repository.setTraceFile(traceFile);
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "traced", "1.0");
+    publish(mrid, "traced contents", new CountDownLatch(1), null);
+    repository.get(getPath(mrid), new File(testTempFolder, "traced.jar"));
+    repository.list("testorg/traced");
+
+    TraceRecorder.getInstance(traceFile).write();
+    String trace = FileUtils.readFileToString(traceFile);
+    for (String span : new String[] { "put", "plan", "commit", "commitTree", "prepareBinaryDiff", "get",
+        "list" }) {
+      assertTrue(span, trace.contains("\"name\":\"" + span + "\""));
+    }
+    assertTrue(trace.contains("\"parent\":"));
+  }
+
+  @Test
+  public void testSlowOperations() throws Exception {
+    repository.setSlowOperationThresholds("*=0");
+    ModuleRevisionId mrid = ModuleRevisionId.newInstance("testorg", "slow", "1.0");
+    publish(mrid, "slow contents", new CountDownLatch(1), null);
+    List<String> slowest = repository.getSlowOperationLog().getSlowest();
+    assertFalse(slowest.isEmpty());
+    assertTrue(slowest.toString(), slowest.toString().contains("commit took "));
+  }
+
+  @Test
+  public void testConcurrentPublishTransactions() throws Exception {
+    final ModuleRevisionId first = ModuleRevisionId.newInstance("testorg", "first", "1.0");
+    final ModuleRevisionId second = ModuleRevisionId.newInstance("testorg", "second", "1.0");
+    final CountDownLatch firstPutDone = new CountDownLatch(1);
+    final CountDownLatch secondCommitted = new CountDownLatch(1);
+    final Throwable[] failure = new Throwable[1];
+
+    // first transaction is started on another thread and kept open until second transaction has been committed
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          publish(first, "first contents", firstPutDone, secondCommitted);
+        } catch (Throwable t) {
+          failure[0] = t;
+        }
+      }
+    };
+    thread.start();
+    firstPutDone.await();
+    publish(second, "second contents", new CountDownLatch(1), null);
+    secondCommitted.countDown();
+    thread.join();
+
+    assertNull("Publish on other thread failed: " + failure[0], failure[0]);
+    assertEquals("first contents", retrieve(first));
+    assertEquals("second contents", retrieve(second));
+  }
+
+}
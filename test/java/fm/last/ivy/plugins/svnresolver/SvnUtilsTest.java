@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.auth.SVNAuthentication;
+import org.tmatesoft.svn.core.auth.SVNSSHAuthentication;
+
+/**
+ * Unit tests for SvnUtils.
+ */
+public class SvnUtilsTest extends BaseTestCase {
+
+  @Test
+  public void testAcceptedAuthenticationTriedFirst() throws Exception {
+    SVNURL url = SVNURL.parseURIEncoded("svn+ssh://svn.example.com/repository");
+    File keyFile = new File(testTempFolder, "id_rsa");
+    FileUtils.writeStringToFile(keyFile, "not really a key");
+    ISVNAuthenticationManager authManager = SvnUtils.createRepository(url, "user", "password", keyFile, "passphrase",
+        22, null, null, false).getAuthenticationManager();
+    SVNAuthentication keyAuthentication = authManager.getFirstAuthentication(ISVNAuthenticationManager.SSH, "realm",
+        url);
+    assertTrue(((SVNSSHAuthentication) keyAuthentication).hasPrivateKey());
+    assertEquals("not really a key", new String(((SVNSSHAuthentication) keyAuthentication).getPrivateKey()));
+    SVNAuthentication passwordAuthentication = authManager.getNextAuthentication(ISVNAuthenticationManager.SSH,
+        "realm", url);
+    assertEquals("password", ((SVNSSHAuthentication) passwordAuthentication).getPassword());
+    authManager.acknowledgeAuthentication(false, ISVNAuthenticationManager.SSH, "realm", null, keyAuthentication);
+    authManager.acknowledgeAuthentication(true, ISVNAuthenticationManager.SSH, "realm", null, passwordAuthentication);
+
+    authManager = SvnUtils.createRepository(url, "user", "password", keyFile, "passphrase", 22, null, null, false)
+        .getAuthenticationManager();
+    SVNAuthentication first = authManager.getFirstAuthentication(ISVNAuthenticationManager.SSH, "realm", url);
+    assertEquals("password", ((SVNSSHAuthentication) first).getPassword());
+
+    // other credentials for the same host are unaffected
+    authManager = SvnUtils.createRepository(url, "other", "password", keyFile, "passphrase", 22, null, null, false)
+        .getAuthenticationManager();
+    first = authManager.getFirstAuthentication(ISVNAuthenticationManager.SSH, "realm", url);
+    assertTrue(((SVNSSHAuthentication) first).hasPrivateKey());
+  }
+
+  @Test
+  public void testLruMapEvictsLeastRecentlyUsed() {
+    Map<String, Integer> map = SvnUtils.createLruMap(2);
+    map.put("a", 1);
+    map.put("b", 2);
+    map.get("a"); // b is now the least recently used
+    map.put("c", 3);
+    assertEquals(2, map.size());
+    assertTrue(map.containsKey("a"));
+    assertFalse(map.containsKey("b"));
+    assertTrue(map.containsKey("c"));
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2008 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package fm.last.ivy.plugins.svnresolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.FileUtil;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.MessageLogger;
+import org.junit.Test;
+
+/**
+ * Unit tests for TraceRecorder.
+ */
+public class TraceRecorderTest {
+
+  @Test
+  public void testNoneRecordsNothing() {
+    assertSame(TraceRecorder.NONE, TraceRecorder.current());
+    assertSame(TraceRecorder.NONE, TraceRecorder.NONE.beginChild("child", null));
+    TraceRecorder.NONE.end();
+    assertSame(TraceRecorder.NONE, TraceRecorder.current());
+  }
+
+  @Test
+  public void testNestedSpans() throws Exception {
+    File file = File.createTempFile("ivysvn", ".json");
+    try {
+      TraceRecorder recorder = new TraceRecorder(file);
+      final TraceRecorder.Span parent = recorder.begin("get", "org/module");
+      assertSame(parent, TraceRecorder.current());
+      TraceRecorder.Span child = recorder.begin("checkPath", null);
+      child.end();
+      assertSame(parent, TraceRecorder.current());
+
+      Thread thread = new Thread("worker") {
+        @Override
+        public void run() {
+          parent.beginChild("commitShard", "\"quoted\"").end();
+        }
+      };
+      thread.start();
+      thread.join();
+      parent.end();
+      assertSame(TraceRecorder.NONE, TraceRecorder.current());
+
+      recorder.write();
+      String trace = FileUtil.readEntirely(file);
+      assertTrue(trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+      assertTrue(trace.contains("\"name\":\"get\",\"cat\":\"ivysvn\",\"ph\":\"X\""));
+      assertTrue(trace.contains("\"args\":{\"id\":1,\"detail\":\"org/module\"}"));
+      assertTrue(trace.contains("\"args\":{\"id\":2,\"parent\":1}"));
+      assertTrue(trace.contains("\"args\":{\"id\":3,\"parent\":1,\"detail\":\"\\\"quoted\\\"\"}"));
+      assertTrue(trace.contains("\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getId()
+          + ",\"args\":{\"name\":\"worker\"}"));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testRunFinishedWritesEachRun() throws Exception {
+    File file = File.createTempFile("ivysvn", ".json");
+    try {
+      TraceRecorder recorder = new TraceRecorder(file);
+      MessageLogger logger = new DefaultMessageLogger(Message.MSG_WARN);
+      recorder.begin("get", "first").end();
+      recorder.runFinished(logger);
+      assertTrue(FileUtil.readEntirely(file).contains("\"detail\":\"first\""));
+
+      recorder.runFinished(logger); // nothing recorded since, e.g. when the JVM exits after an Ant build
+      assertTrue(FileUtil.readEntirely(file).contains("\"detail\":\"first\""));
+
+      recorder.begin("get", "second").end();
+      recorder.runFinished(logger);
+      String trace = FileUtil.readEntirely(file);
+      assertTrue(trace.contains("\"detail\":\"second\""));
+      assertFalse(trace.contains("\"detail\":\"first\""));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testQuote() {
+    assertEquals("\"a\\\\b\\u000a\"", TraceRecorder.quote("a\\b\n"));
+  }
+
+  @Test
+  public void testSharedPerFile() throws Exception {
+    File file = File.createTempFile("ivysvn", ".json");
+    file.deleteOnExit(); // written at the end of the run
+    assertSame(TraceRecorder.getInstance(file), TraceRecorder.getInstance(new File(file.getPath())));
+  }
+
+}